@@ -0,0 +1,103 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dev.anthu.processors.snowflake;
+
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileStream;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.nifi.avro.AvroReaderWithEmbeddedSchema;
+import org.apache.nifi.serialization.RecordReader;
+import org.apache.nifi.serialization.record.Record;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares building rows from Avro content through the Avro Record Reader, which creates a NiFi record per row,
+ * with the Avro content format of PutSnowflakeStreamIngest, which decodes into a reused generic record.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class AvroDecodeBenchmark {
+
+    @Param({"1000", "100000"})
+    public int records;
+
+    @Param({"5", "50"})
+    public int width;
+
+    private byte[] content;
+
+    @Setup
+    public void setup() throws IOException {
+        final Schema schema = BenchmarkData.avroSchema(width);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (DataFileWriter<GenericRecord> writer = new DataFileWriter<>(new GenericDatumWriter<GenericRecord>(schema))) {
+            writer.create(schema, out);
+            for (int i = 0; i < records; i++) {
+                writer.append(BenchmarkData.avroRecord(schema, i));
+            }
+        }
+        content = out.toByteArray();
+    }
+
+    @Benchmark
+    public void recordReader(Blackhole blackhole) throws Exception {
+        try (RecordReader reader = new AvroReaderWithEmbeddedSchema(new ByteArrayInputStream(content))) {
+            final ColumnPlan plan = new ColumnPlan(reader.getSchema(), null);
+            final ColumnRow row = new ColumnRow(plan);
+            Record record;
+            while ((record = reader.nextRecord()) != null) {
+                plan.fill(row, record, null);
+                blackhole.consume(row.valueArray());
+            }
+        }
+    }
+
+    @Benchmark
+    public void avroContentFormat(Blackhole blackhole) throws Exception {
+        final DataFileStream<GenericRecord> stream = new DataFileStream<>(new ByteArrayInputStream(content), new GenericDatumReader<>());
+        try (RowSource.AvroRecords rows = new RowSource.AvroRecords(stream, new ColumnPlan(stream.getSchema(), null, null))) {
+            final ColumnRow row = new ColumnRow(rows.getPlan());
+            while (rows.next()) {
+                rows.fill(row, null);
+                blackhole.consume(row.valueArray());
+            }
+        }
+    }
+}
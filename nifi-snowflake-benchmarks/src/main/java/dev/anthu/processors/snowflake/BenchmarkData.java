@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dev.anthu.processors.snowflake;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Synthetic records of a given width, cycling through strings, numbers, doubles, booleans and timestamps.
+ */
+final class BenchmarkData {
+
+    private static final String[] AVRO_TYPES = {
+            "\"string\"", "\"long\"", "\"double\"", "\"boolean\"", "{\"type\": \"long\", \"logicalType\": \"timestamp-millis\"}"
+    };
+
+    private static final RecordFieldType[] RECORD_TYPES = {
+            RecordFieldType.STRING, RecordFieldType.LONG, RecordFieldType.DOUBLE, RecordFieldType.BOOLEAN, RecordFieldType.TIMESTAMP
+    };
+
+    private BenchmarkData() {
+    }
+
+    static Schema avroSchema(int width) {
+        final StringBuilder json = new StringBuilder("{\"type\": \"record\", \"name\": \"row\", \"fields\": [");
+        for (int i = 0; i < width; i++) {
+            if (i > 0) {
+                json.append(", ");
+            }
+            json.append("{\"name\": \"COL_").append(i).append("\", \"type\": ").append(AVRO_TYPES[i % AVRO_TYPES.length]).append('}');
+        }
+        return new Schema.Parser().parse(json.append("]}").toString());
+    }
+
+    static GenericRecord avroRecord(Schema schema, int index) {
+        final GenericRecord record = new GenericData.Record(schema);
+        for (int i = 0; i < schema.getFields().size(); i++) {
+            record.put(i, value(i, index));
+        }
+        return record;
+    }
+
+    static RecordSchema recordSchema(int width) {
+        final List<RecordField> fields = new ArrayList<>(width);
+        for (int i = 0; i < width; i++) {
+            fields.add(new RecordField("COL_" + i, RECORD_TYPES[i % RECORD_TYPES.length].getDataType()));
+        }
+        return new SimpleRecordSchema(fields);
+    }
+
+    static List<Record> records(RecordSchema schema, int count) {
+        final List<Record> records = new ArrayList<>(count);
+        for (int index = 0; index < count; index++) {
+            final Map<String, Object> values = new LinkedHashMap<>();
+            for (int i = 0; i < schema.getFieldCount(); i++) {
+                final Object value = value(i, index);
+                values.put("COL_" + i, i % RECORD_TYPES.length == 4 ? new Timestamp((Long) value) : value);
+            }
+            records.add(new MapRecord(schema, values));
+        }
+        return records;
+    }
+
+    /**
+     * Returns lines of comma separated values, as ingested by the raw processor.
+     */
+    static byte[] lines(int count, int width) {
+        final StringBuilder content = new StringBuilder();
+        for (int index = 0; index < count; index++) {
+            for (int i = 0; i < width; i++) {
+                if (i > 0) {
+                    content.append(',');
+                }
+                content.append(value(i, index));
+            }
+            content.append('\n');
+        }
+        return content.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static Object value(int column, int index) {
+        switch (column % AVRO_TYPES.length) {
+            case 0:
+                return "value " + index + " of column " + column;
+            case 1:
+                return (long) index * column;
+            case 2:
+                return index / (column + 1.0);
+            case 3:
+                return index % 2 == 0;
+            default:
+                return 1_600_000_000_000L + index;
+        }
+    }
+}
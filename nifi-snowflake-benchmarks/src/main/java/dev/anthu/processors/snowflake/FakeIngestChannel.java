@@ -0,0 +1,154 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dev.anthu.processors.snowflake;
+
+import net.snowflake.ingest.streaming.InsertValidationResponse;
+import net.snowflake.ingest.streaming.SnowflakeStreamingIngestChannel;
+import net.snowflake.ingest.utils.ErrorCode;
+import net.snowflake.ingest.utils.SFException;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In-process channel that accepts rows without sending them anywhere. Inserts can be slowed down, rows rejected
+ * and calls failed at fixed intervals, and offset tokens are reported committed after a fixed lag.
+ */
+final class FakeIngestChannel implements SnowflakeStreamingIngestChannel {
+
+    private final String database;
+    private final String schema;
+    private final String table;
+    private final String name;
+    private final FakeSnowflakeIngestController.Settings settings;
+    private final ConcurrentLinkedDeque<InsertedToken> insertedTokens = new ConcurrentLinkedDeque<>();
+    private volatile String committedToken;
+    private volatile boolean closed;
+    // Only updated by insertRows, which callers synchronize on the channel
+    private long insertedRows;
+    private long insertCalls;
+
+    FakeIngestChannel(String database, String schema, String table, String name, FakeSnowflakeIngestController.Settings settings) {
+        this.database = database;
+        this.schema = schema;
+        this.table = table;
+        this.name = name;
+        this.settings = settings;
+    }
+
+    @Override
+    public String getFullyQualifiedName() {
+        return database + "." + schema + "." + table + "." + name;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String getDBName() {
+        return database;
+    }
+
+    @Override
+    public String getSchemaName() {
+        return schema;
+    }
+
+    @Override
+    public String getTableName() {
+        return table;
+    }
+
+    @Override
+    public String getFullyQualifiedTableName() {
+        return database + "." + schema + "." + table;
+    }
+
+    @Override
+    public boolean isValid() {
+        return !closed;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public CompletableFuture<Void> close() {
+        closed = true;
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public InsertValidationResponse insertRow(Map<String, Object> row, String offsetToken) {
+        return insertRows(Collections.singletonList(row), offsetToken);
+    }
+
+    @Override
+    public InsertValidationResponse insertRows(Iterable<Map<String, Object>> rows, String offsetToken) {
+        // Drops the tokens that are committed by now, so that they do not pile up without a commit poll
+        getLatestCommittedOffsetToken();
+        if (settings.insertLatencyMicros > 0) {
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(settings.insertLatencyMicros));
+        }
+        if (settings.failEvery > 0 && ++insertCalls % settings.failEvery == 0) {
+            throw new SFException(ErrorCode.INTERNAL_ERROR, "Injected insert failure");
+        }
+
+        final InsertValidationResponse response = new InsertValidationResponse();
+        long rowIndex = 0;
+        for (Map<String, Object> row : rows) {
+            if (settings.rejectEvery > 0 && ++insertedRows % settings.rejectEvery == 0) {
+                final InsertValidationResponse.InsertError error = new InsertValidationResponse.InsertError(row, rowIndex);
+                error.setException(new SFException(ErrorCode.INTERNAL_ERROR, "Injected row rejection"));
+                response.addError(error);
+            }
+            rowIndex++;
+        }
+        insertedTokens.add(new InsertedToken(offsetToken, System.currentTimeMillis()));
+        return response;
+    }
+
+    @Override
+    public String getLatestCommittedOffsetToken() {
+        // Tokens are committed in the order they were inserted, once they are older than the commit lag
+        final long committedBefore = System.currentTimeMillis() - settings.commitLagMillis;
+        InsertedToken oldest;
+        while ((oldest = insertedTokens.peekFirst()) != null && oldest.insertedAt <= committedBefore) {
+            insertedTokens.pollFirst();
+            committedToken = oldest.offsetToken;
+        }
+        return committedToken;
+    }
+
+    private static final class InsertedToken {
+        private final String offsetToken;
+        private final long insertedAt;
+
+        InsertedToken(String offsetToken, long insertedAt) {
+            this.offsetToken = offsetToken;
+            this.insertedAt = insertedAt;
+        }
+    }
+}
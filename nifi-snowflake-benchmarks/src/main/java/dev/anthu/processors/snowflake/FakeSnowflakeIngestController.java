@@ -0,0 +1,154 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dev.anthu.processors.snowflake;
+
+import dev.anthu.controllers.snowflake.SnowflakeIngestController;
+import net.snowflake.ingest.streaming.SnowflakeStreamingIngestChannel;
+import org.apache.nifi.controller.AbstractControllerService;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Controller handing out {@link FakeIngestChannel}s, so that the ingest path of the processors can be measured
+ * without a Snowflake account. Tables have no known columns and progress is kept in memory.
+ */
+final class FakeSnowflakeIngestController extends AbstractControllerService implements SnowflakeIngestController {
+
+    /**
+     * Behaviour of the fake channels.
+     */
+    static final class Settings {
+        final long insertLatencyMicros;
+        final int rejectEvery;
+        final int failEvery;
+        final long commitLagMillis;
+
+        /**
+         * @param insertLatencyMicros time an insertRows call takes
+         * @param rejectEvery         rejects every nth row, or none with 0
+         * @param failEvery           fails every nth insertRows call, or none with 0
+         * @param commitLagMillis     time until an offset token is reported committed
+         */
+        Settings(long insertLatencyMicros, int rejectEvery, int failEvery, long commitLagMillis) {
+            this.insertLatencyMicros = insertLatencyMicros;
+            this.rejectEvery = rejectEvery;
+            this.failEvery = failEvery;
+            this.commitLagMillis = commitLagMillis;
+        }
+    }
+
+    private final Settings settings;
+    private final Map<String, FakeIngestChannel> channels = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> offsets = new ConcurrentHashMap<>();
+    private final Map<String, String> progress = new ConcurrentHashMap<>();
+
+    FakeSnowflakeIngestController(Settings settings) {
+        this.settings = settings;
+    }
+
+    @Override
+    public SnowflakeStreamingIngestChannel getChannel(String database, String schema, String table, String channelName) {
+        final String key = database + "." + schema + "." + table + "." + channelName;
+        FakeIngestChannel channel = channels.get(key);
+        if (channel == null || !channel.isValid()) {
+            channel = new FakeIngestChannel(database, schema, table, channelName, settings);
+            channels.put(key, channel);
+        }
+        return channel;
+    }
+
+    @Override
+    public void returnChannel(SnowflakeStreamingIngestChannel channel) {
+    }
+
+    @Override
+    public void closeChannel(String database, String schema, String table, String channelName) {
+        final FakeIngestChannel channel = channels.remove(database + "." + schema + "." + table + "." + channelName);
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    @Override
+    public long nextOffset(SnowflakeStreamingIngestChannel channel, int rows) {
+        return offsets.computeIfAbsent(channel.getFullyQualifiedName(), key -> new AtomicLong()).incrementAndGet();
+    }
+
+    @Override
+    public boolean isCommitted(SnowflakeStreamingIngestChannel channel, long offset) {
+        final String token = channel.getLatestCommittedOffsetToken();
+        return token != null && Long.parseLong(token.substring(0, token.indexOf(':'))) >= offset;
+    }
+
+    @Override
+    public boolean isLost(SnowflakeStreamingIngestChannel channel, long offset) {
+        return false;
+    }
+
+    @Override
+    public long getUncommittedRows() {
+        return 0;
+    }
+
+    @Override
+    public long getCommitLag() {
+        return 0;
+    }
+
+    @Override
+    public void saveProgress(Map<SnowflakeStreamingIngestChannel, Map<String, String>> channelProgress) {
+        for (Map<String, String> flowFileProgress : channelProgress.values()) {
+            progress.putAll(flowFileProgress);
+        }
+    }
+
+    @Override
+    public Map<String, Long> getCommittedRecordIndexes(Collection<String> flowFileUuids) {
+        final Map<String, Long> committedRecordIndexes = new HashMap<>();
+        for (String flowFileUuid : flowFileUuids) {
+            final String value = progress.get(flowFileUuid);
+            if (value != null) {
+                committedRecordIndexes.put(flowFileUuid, Long.parseLong(value.substring(0, value.indexOf('|'))));
+            }
+        }
+        return committedRecordIndexes;
+    }
+
+    @Override
+    public void releaseProgress(Collection<String> flowFileUuids) {
+        progress.keySet().removeAll(flowFileUuids);
+    }
+
+    @Override
+    public Set<String> getColumns(String database, String schema, String table) {
+        return null;
+    }
+
+    @Override
+    public Set<String> refreshColumns(String database, String schema, String table) {
+        return null;
+    }
+
+    @Override
+    public void addColumns(String database, String schema, String table, Map<String, String> columns) {
+    }
+}
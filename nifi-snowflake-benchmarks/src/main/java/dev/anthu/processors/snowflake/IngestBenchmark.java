@@ -0,0 +1,183 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dev.anthu.processors.snowflake;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.util.MockComponentLog;
+import org.apache.nifi.util.MockFlowFile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures how fast the processors turn the records of a FlowFile into rows and submit them, against fake
+ * channels so that only the work of the processor is measured: column rows as built by PutSnowflakeStreamIngest,
+ * JSON documents as built by PutSnowflakeStreamIngestAsVariant and lines as read by PutSnowflakeStreamIngestAsRaw.
+ * Run with {@code -p insertLatencyMicros=500} to see how insert threads hide a slow channel.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class IngestBenchmark {
+
+    private static final int BATCH_SIZE = 1000;
+    private static final JsonFactory JSON_FACTORY = new JsonFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+    @Param({"1000", "100000"})
+    public int records;
+
+    @Param({"5", "50"})
+    public int width;
+
+    @Param({"0", "2"})
+    public int insertThreads;
+
+    @Param({"0"})
+    public long insertLatencyMicros;
+
+    @Param({"0"})
+    public int rejectEvery;
+
+    @Param({"0"})
+    public int failEvery;
+
+    private FakeSnowflakeIngestController controller;
+    private ComponentLog logger;
+    private IngestMetrics metrics;
+    private ExecutorService[] insertLanes;
+    private final AtomicInteger nextLane = new AtomicInteger();
+    private List<Record> recordList;
+    private byte[] lines;
+    private FlowFile flowFile;
+
+    @Setup
+    public void setup() {
+        controller = new FakeSnowflakeIngestController(new FakeSnowflakeIngestController.Settings(insertLatencyMicros, rejectEvery, failEvery, 0));
+        logger = new MockComponentLog("benchmark", this);
+        metrics = new IngestMetrics();
+        insertLanes = new ExecutorService[insertThreads];
+        for (int i = 0; i < insertThreads; i++) {
+            insertLanes[i] = Executors.newSingleThreadExecutor();
+        }
+        recordList = BenchmarkData.records(BenchmarkData.recordSchema(width), records);
+        lines = BenchmarkData.lines(records, width);
+        flowFile = new MockFlowFile(1);
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (ExecutorService lane : insertLanes) {
+            lane.shutdown();
+        }
+    }
+
+    @Benchmark
+    public TableBatches columnRows() {
+        final TableBatches batches = newBatches();
+        final RowBatch batch = batches.get("DB", "PUBLIC", "SINK");
+        final ColumnPlan plan = new ColumnPlan(recordList.get(0).getSchema(), null);
+        long recordIndex = 0;
+        for (Record record : recordList) {
+            final ColumnRow row = ColumnRow.reuse(batch.reusableRow(), plan);
+            plan.fill(row, record, null);
+            batch.add(flowFile, recordIndex++, row);
+        }
+        batches.flush();
+        return batches;
+    }
+
+    @Benchmark
+    public TableBatches variantJson() throws IOException {
+        final TableBatches batches = newBatches();
+        final RowBatch batch = batches.get("DB", "PUBLIC", "SINK");
+        final VariantJsonWriter jsonWriter = new VariantJsonWriter(JSON_FACTORY);
+        long recordIndex = 0;
+        for (Record record : recordList) {
+            final Map<String, Object> reusable = batch.reusableRow();
+            final Map<String, Object> row = reusable == null ? new HashMap<>(4) : reusable;
+            row.put("RECORD_CONTENT", jsonWriter.write(record));
+            batch.add(flowFile, recordIndex++, row);
+        }
+        batches.flush();
+        return batches;
+    }
+
+    @Benchmark
+    public TableBatches variantMaps() {
+        final TableBatches batches = newBatches();
+        final RowBatch batch = batches.get("DB", "PUBLIC", "SINK");
+        final VariantMapWriter mapWriter = new VariantMapWriter();
+        final int[] columnOfField = new VariantColumns("RECORD_CONTENT").map(recordList.get(0).getSchema());
+        final Object[] values = new Object[1];
+        long recordIndex = 0;
+        for (Record record : recordList) {
+            mapWriter.write(record, columnOfField, values);
+            final Map<String, Object> reusable = batch.reusableRow();
+            final Map<String, Object> row = reusable == null ? new HashMap<>(4) : reusable;
+            row.put("RECORD_CONTENT", values[0]);
+            batch.add(flowFile, recordIndex++, row);
+        }
+        batches.flush();
+        return batches;
+    }
+
+    @Benchmark
+    public TableBatches rawLines() throws Exception {
+        final TableBatches batches = newBatches();
+        final RowBatch batch = batches.get("DB", "PUBLIC", "SINK");
+        final ContentSplitter splitter = new ContentSplitter(ContentSplitter.Mode.PER_LINE, null, 16 * 1024 * 1024,
+                new ByteArrayInputStream(lines), lines.length);
+        try (RowSource rows = new RowSource.Segments(splitter, "RECORD_CONTENT", null)) {
+            long recordIndex = 0;
+            while (rows.next()) {
+                batch.add(flowFile, recordIndex++, rows.row(batch.reusableRow(), null));
+            }
+        }
+        batches.flush();
+        return batches;
+    }
+
+    private TableBatches newBatches() {
+        return new TableBatches(controller, "benchmark", BATCH_SIZE, logger, metrics, insertLanes, nextLane);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dev.anthu.processors.snowflake;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares writing records as Variant JSON through an ObjectNode tree per record, as PutSnowflakeStreamIngestAsVariant
+ * did before, with the streaming generator of {@link VariantJsonWriter} that is reused across records.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class VariantJsonBenchmark {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+    @Param({"1000"})
+    public int records;
+
+    @Param({"5", "50"})
+    public int width;
+
+    private RecordSchema schema;
+    private List<Record> recordList;
+    private ObjectMapper mapper;
+    private VariantJsonWriter jsonWriter;
+    private int[] columnOfField;
+    private final Object[] values = new Object[1];
+
+    @Setup
+    public void setup() {
+        schema = BenchmarkData.recordSchema(width);
+        recordList = BenchmarkData.records(schema, records);
+        mapper = new ObjectMapper();
+        jsonWriter = new VariantJsonWriter(JSON_FACTORY, 1);
+        // Every field is written into the single column
+        columnOfField = new int[width];
+    }
+
+    @Benchmark
+    public void objectNodeTree(Blackhole blackhole) throws IOException {
+        for (Record record : recordList) {
+            final ObjectNode variantObject = mapper.createObjectNode();
+            for (RecordField field : schema.getFields()) {
+                variantObject.put(field.getFieldName(), record.getAsString(field.getFieldName()));
+            }
+            blackhole.consume(mapper.writer().writeValueAsString(variantObject));
+        }
+    }
+
+    @Benchmark
+    public void reusedGenerator(Blackhole blackhole) throws IOException {
+        for (Record record : recordList) {
+            jsonWriter.write(record, columnOfField, values);
+            blackhole.consume(values[0]);
+        }
+    }
+}
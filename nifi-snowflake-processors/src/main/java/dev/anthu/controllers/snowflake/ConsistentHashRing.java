@@ -0,0 +1,55 @@
+package dev.anthu.controllers.snowflake;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Assigns keys to a fixed list of nodes by consistent hashing. Every node is placed on the ring several times,
+ * so keys spread evenly and changing the number of nodes only moves the keys of the added or removed nodes.
+ */
+class ConsistentHashRing<T> {
+
+    private static final int VIRTUAL_NODES = 64;
+
+    private final List<T> nodes;
+    private final TreeMap<Long, T> ring = new TreeMap<>();
+
+    ConsistentHashRing(List<T> nodes) {
+        this.nodes = nodes;
+        for (int i = 0; i < nodes.size(); i++) {
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                ring.put(hash(i + "#" + v), nodes.get(i));
+            }
+        }
+    }
+
+    T get(String key) {
+        if (nodes.size() == 1) {
+            return nodes.get(0);
+        }
+        final Map.Entry<Long, T> entry = ring.ceilingEntry(hash(key));
+        return entry == null ? ring.firstEntry().getValue() : entry.getValue();
+    }
+
+    List<T> getNodes() {
+        return nodes;
+    }
+
+    private static long hash(String key) {
+        final byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 not available", e);
+        }
+        long hash = 0;
+        for (int i = 0; i < 8; i++) {
+            hash = (hash << 8) | (digest[i] & 0xff);
+        }
+        return hash;
+    }
+}
@@ -2,9 +2,94 @@ package dev.anthu.controllers.snowflake;
 
 import net.snowflake.ingest.streaming.SnowflakeStreamingIngestChannel;
 import org.apache.nifi.controller.ControllerService;
+import org.apache.nifi.processor.exception.ProcessException;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
 
 public interface SnowflakeIngestController extends ControllerService {
+    /**
+     * Returns a valid channel of the table, reopening it if it was invalidated. The channel must be handed back
+     * with {@link #returnChannel} once the caller is done with it.
+     *
+     * @throws ProcessException if the channel cannot be opened, further attempts back off exponentially
+     */
     SnowflakeStreamingIngestChannel getChannel(String database, String schema, String table, String channelName);
 
+    /**
+     * Hands back a channel obtained from {@link #getChannel} once the caller no longer inserts into it. Channels are
+     * only evicted while no caller holds them.
+     */
+    void returnChannel(SnowflakeStreamingIngestChannel channel);
+
     void closeChannel(String database, String schema, String table, String channelName);
+
+    /**
+     * Returns the next offset of the channel for inserting the given number of rows. Offset tokens passed to the
+     * channel must start with an offset obtained here, optionally followed by ':' and any text identifying the data.
+     */
+    long nextOffset(SnowflakeStreamingIngestChannel channel, int rows);
+
+    /**
+     * Returns true once Snowflake has committed all rows of the channel up to and including the given offset.
+     */
+    boolean isCommitted(SnowflakeStreamingIngestChannel channel, long offset);
+
+    /**
+     * Returns true if the rows of the channel up to the given offset can no longer be committed, because the channel
+     * was invalidated before Snowflake committed them. They need to be inserted again.
+     */
+    boolean isLost(SnowflakeStreamingIngestChannel channel, long offset);
+
+    /**
+     * Returns the number of rows inserted into the channels of this service that Snowflake has not committed yet.
+     */
+    long getUncommittedRows();
+
+    /**
+     * Returns how many milliseconds the oldest uncommitted offset has been waiting for a commit, or 0 if there is none.
+     */
+    long getCommitLag();
+
+    /**
+     * Persists where the rows of FlowFiles that are not yet committed to the flow were inserted, so that a FlowFile
+     * ingested again after a restart can skip the records Snowflake already committed. Progress is grouped by channel,
+     * keyed by FlowFile UUID and has the format {@code <committed record index>|<offset>:<last record index>,...},
+     * where the offsets refer to the channel.
+     */
+    void saveProgress(Map<SnowflakeStreamingIngestChannel, Map<String, String>> progress);
+
+    /**
+     * Returns the index of the last record known to be committed by Snowflake by FlowFile UUID, for the FlowFiles with
+     * saved or recovered progress. The committed offset of a channel is fetched at most once per call, and only if the
+     * offsets polled in the background cannot tell.
+     */
+    Map<String, Long> getCommittedRecordIndexes(Collection<String> flowFileUuids);
+
+    /**
+     * Removes the progress of FlowFiles that have been committed to the flow.
+     */
+    void releaseProgress(Collection<String> flowFileUuids);
+
+    /**
+     * Returns the column names of the table as stored by Snowflake, cached when the first channel of the table is
+     * opened, or null if they cannot be looked up.
+     */
+    Set<String> getColumns(String database, String schema, String table);
+
+    /**
+     * Looks up the columns of the table again, for example after rows were rejected because of a column mismatch.
+     * Returns the cached columns if they were looked up only recently.
+     */
+    Set<String> refreshColumns(String database, String schema, String table);
+
+    /**
+     * Adds the columns to the table unless they exist and reopens the channels of the table, which only accept
+     * the columns the table had when they were opened. Channels still leased by a caller are reopened once returned.
+     *
+     * @param columns Snowflake data types by column name, quoted unless all-uppercase
+     * @throws ProcessException if the columns cannot be added
+     */
+    void addColumns(String database, String schema, String table, Map<String, String> columns);
 }
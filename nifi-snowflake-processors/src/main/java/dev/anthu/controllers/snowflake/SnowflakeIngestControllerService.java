@@ -4,19 +4,58 @@ import net.snowflake.ingest.streaming.OpenChannelRequest;
 import net.snowflake.ingest.streaming.SnowflakeStreamingIngestChannel;
 import net.snowflake.ingest.streaming.SnowflakeStreamingIngestClient;
 import net.snowflake.ingest.streaming.SnowflakeStreamingIngestClientFactory;
+import org.apache.nifi.annotation.behavior.Stateful;
+import org.apache.nifi.annotation.lifecycle.OnDisabled;
 import org.apache.nifi.annotation.lifecycle.OnEnabled;
+import org.apache.nifi.annotation.lifecycle.OnShutdown;
+import org.apache.nifi.components.AllowableValue;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.components.state.StateManager;
+import org.apache.nifi.components.state.StateMap;
 import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.context.PropertyContext;
 import org.apache.nifi.controller.ConfigurationContext;
+import org.apache.nifi.dbcp.DBCPService;
+import org.apache.nifi.expression.ExpressionLanguageScope;
+import org.apache.nifi.processor.DataUnit;
+import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.util.StandardValidators;
 
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
-import java.util.UUID;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
 
+@Stateful(scopes = Scope.CLUSTER, description = "Stores the channel and last offsets the rows of FlowFiles waiting for a commit were "
+        + "inserted with, keyed by FlowFile UUID and limited to 500 FlowFiles per node. When such a FlowFile is ingested again after "
+        + "a restart, the records Snowflake already committed are skipped. Also stores which node owns every open channel.")
 public class SnowflakeIngestControllerService extends AbstractControllerService implements SnowflakeIngestController {
 
     static final PropertyDescriptor SNOWFLAKE_URL = new PropertyDescriptor.Builder()
@@ -51,6 +90,197 @@ public class SnowflakeIngestControllerService extends AbstractControllerService
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
             .build();
 
+    static final PropertyDescriptor CHANNELS_PER_TABLE = new PropertyDescriptor.Builder()
+            .name("snowflake-channels-per-table")
+            .displayName("Channels per Table")
+            .description("Number of channels opened for every table and channel name. Channels are numbered 0 to N-1 within the channel name "
+                    + "and handed out round-robin to the task threads, so each thread keeps inserting into the same channel. "
+                    + "Set this to at least the number of Concurrent Tasks of the processors using this service.")
+            .required(true)
+            .defaultValue("1")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    static final PropertyDescriptor COMMIT_POLL_INTERVAL = new PropertyDescriptor.Builder()
+            .name("snowflake-commit-poll-interval")
+            .displayName("Commit Poll Interval")
+            .description("How often the latest committed offset token of every channel with uncommitted rows is fetched. "
+                    + "Processors holding FlowFiles until their rows are committed release them at this pace.")
+            .required(true)
+            .defaultValue("1 sec")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    static final PropertyDescriptor NODE_IDENTIFIER = new PropertyDescriptor.Builder()
+            .name("snowflake-node-identifier")
+            .displayName("Node Identifier")
+            .description("Identifies this NiFi node in channel names, which are <channel name>_<node identifier>_<index>. "
+                    + "Every node of a cluster needs a different identifier, so that nodes open channels of their own instead of "
+                    + "invalidating each other's channels. Defaults to the host name.")
+            .required(false)
+            .expressionLanguageSupported(ExpressionLanguageScope.VARIABLE_REGISTRY)
+            .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+            .build();
+
+    static final PropertyDescriptor CLIENT_COUNT = new PropertyDescriptor.Builder()
+            .name("snowflake-client-count")
+            .displayName("Client Count")
+            .description("Number of Snowflake Ingest clients. Channels are assigned to clients by consistent hashing of their table and "
+                    + "channel name. Every client has its own buffers, memory limit and flush threads, so more clients let ingest "
+                    + "scale with the cores of large nodes.")
+            .required(true)
+            .defaultValue("1")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    static final PropertyDescriptor MAX_OPEN_CHANNELS = new PropertyDescriptor.Builder()
+            .name("snowflake-max-open-channels")
+            .displayName("Max Open Channels")
+            .description("Maximum number of channels kept open across all tables. Above this, the least recently used channels are closed "
+                    + "once they have not been used for a Commit Poll Interval. Channels a processor is inserting into are never closed.")
+            .required(true)
+            .defaultValue("100")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    static final PropertyDescriptor CHANNEL_IDLE_TIMEOUT = new PropertyDescriptor.Builder()
+            .name("snowflake-channel-idle-timeout")
+            .displayName("Channel Idle Timeout")
+            .description("Channels that have not been used for this long are closed. They are opened again when a FlowFile targets their table.")
+            .required(true)
+            .defaultValue("10 min")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    static final PropertyDescriptor METADATA_CONNECTION_POOL = new PropertyDescriptor.Builder()
+            .name("snowflake-metadata-connection-pool")
+            .displayName("Table Metadata Connection Pool")
+            .description("JDBC connection pool to the same Snowflake account. It is used to look up the columns of a table when its first channel "
+                    + "is opened, so that processors can handle record fields without a matching column, and to add such columns. Without it, "
+                    + "record fields are mapped to columns without checking the table.")
+            .required(false)
+            .identifiesControllerService(DBCPService.class)
+            .build();
+
+    static final AllowableValue PROFILE_SDK_DEFAULTS = new AllowableValue("sdk-defaults", "SDK Defaults",
+            "Use the defaults of the Snowflake Ingest SDK");
+    static final AllowableValue PROFILE_LOW_LATENCY = new AllowableValue("low-latency", "Low Latency",
+            "Flush buffered rows every 200 ms in small chunks. Rows are committed within about a second, at the cost of more and smaller files.");
+    static final AllowableValue PROFILE_HIGH_THROUGHPUT = new AllowableValue("high-throughput", "High Throughput",
+            "Flush every 5 seconds with large channels and chunks and more IO threads. Fewer and larger files raise throughput, "
+                    + "rows take several seconds to be committed.");
+    static final AllowableValue PROFILE_MEMORY_CONSTRAINED = new AllowableValue("memory-constrained", "Memory Constrained",
+            "Limit the client to 256 MB, throttle inserts once less than 30 % of it is free and flush small channels and chunks");
+    static final AllowableValue PROFILE_CUSTOM = new AllowableValue("custom", "Custom",
+            "Use the client parameters configured below. The SDK default applies to every parameter that is not set.");
+
+    static final PropertyDescriptor CLIENT_PROFILE = new PropertyDescriptor.Builder()
+            .name("snowflake-client-profile")
+            .displayName("Client Profile")
+            .description("Tuning of the buffering and flushing of the Snowflake Ingest client")
+            .required(true)
+            .allowableValues(PROFILE_SDK_DEFAULTS, PROFILE_LOW_LATENCY, PROFILE_HIGH_THROUGHPUT, PROFILE_MEMORY_CONSTRAINED, PROFILE_CUSTOM)
+            .defaultValue(PROFILE_SDK_DEFAULTS.getValue())
+            .build();
+
+    static final PropertyDescriptor BUFFER_FLUSH_INTERVAL = new PropertyDescriptor.Builder()
+            .name("snowflake-buffer-flush-interval")
+            .displayName("Buffer Flush Interval")
+            .description("How long rows are buffered by the client before they are flushed to Snowflake")
+            .dependsOn(CLIENT_PROFILE, PROFILE_CUSTOM)
+            .required(false)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    static final PropertyDescriptor BUFFER_FLUSH_CHECK_INTERVAL = new PropertyDescriptor.Builder()
+            .name("snowflake-buffer-flush-check-interval")
+            .displayName("Buffer Flush Check Interval")
+            .description("How often the client checks whether its buffers need to be flushed")
+            .dependsOn(CLIENT_PROFILE, PROFILE_CUSTOM)
+            .required(false)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    static final PropertyDescriptor INSERT_THROTTLE_THRESHOLD = new PropertyDescriptor.Builder()
+            .name("snowflake-insert-throttle-threshold")
+            .displayName("Insert Throttle Threshold")
+            .description("Percentage of free memory below which the client slows down inserts")
+            .dependsOn(CLIENT_PROFILE, PROFILE_CUSTOM)
+            .required(false)
+            .addValidator(StandardValidators.createLongValidator(1, 100, true))
+            .build();
+
+    static final PropertyDescriptor IO_TIME_CPU_RATIO = new PropertyDescriptor.Builder()
+            .name("snowflake-io-time-cpu-ratio")
+            .displayName("IO Time CPU Ratio")
+            .description("Ratio of IO to CPU time of the client's flush work. The client runs this many upload threads per available core.")
+            .dependsOn(CLIENT_PROFILE, PROFILE_CUSTOM)
+            .required(false)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    static final PropertyDescriptor MAX_MEMORY_LIMIT = new PropertyDescriptor.Builder()
+            .name("snowflake-max-memory-limit")
+            .displayName("Max Memory Limit")
+            .description("Memory every client may use for buffering. Without a limit the maximum heap size of NiFi is used.")
+            .dependsOn(CLIENT_PROFILE, PROFILE_CUSTOM)
+            .required(false)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+
+    static final PropertyDescriptor MAX_CHANNEL_SIZE = new PropertyDescriptor.Builder()
+            .name("snowflake-max-channel-size")
+            .displayName("Max Channel Size")
+            .description("Buffered size of a single channel after which the client flushes it early")
+            .dependsOn(CLIENT_PROFILE, PROFILE_CUSTOM)
+            .required(false)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+
+    static final PropertyDescriptor MAX_CHUNK_SIZE = new PropertyDescriptor.Builder()
+            .name("snowflake-max-chunk-size")
+            .displayName("Max Chunk Size")
+            .description("Maximum size of the data of one table within a file uploaded by the client")
+            .dependsOn(CLIENT_PROFILE, PROFILE_CUSTOM)
+            .required(false)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+
+    // Client parameter names as understood by the SDK's ParameterProvider
+    static final String PARAMETER_BUFFER_FLUSH_INTERVAL = "streaming_ingest_client_sdk_buffer_flush_interval_in_millis";
+    static final String PARAMETER_BUFFER_FLUSH_CHECK_INTERVAL = "streaming_ingest_client_sdk_buffer_flush_check_interval_in_millis";
+    static final String PARAMETER_INSERT_THROTTLE_THRESHOLD = "streaming_ingest_client_sdk_insert_throttle_threshold_in_percentage";
+    static final String PARAMETER_IO_TIME_CPU_RATIO = "io_time_cpu_ratio";
+    static final String PARAMETER_MAX_MEMORY_LIMIT = "max_memory_limit_in_bytes";
+    static final String PARAMETER_MAX_CHANNEL_SIZE = "max_channel_size_in_bytes";
+    static final String PARAMETER_MAX_CHUNK_SIZE = "max_chunk_size_in_bytes";
+
+    private static final Map<String, Map<String, String>> PROFILES = new HashMap<>();
+
+    static {
+        final Map<String, String> lowLatency = new HashMap<>();
+        lowLatency.put(PARAMETER_BUFFER_FLUSH_INTERVAL, "200");
+        lowLatency.put(PARAMETER_BUFFER_FLUSH_CHECK_INTERVAL, "20");
+        lowLatency.put(PARAMETER_MAX_CHANNEL_SIZE, String.valueOf(8 * 1024 * 1024));
+        lowLatency.put(PARAMETER_MAX_CHUNK_SIZE, String.valueOf(32 * 1024 * 1024));
+        PROFILES.put(PROFILE_LOW_LATENCY.getValue(), lowLatency);
+
+        final Map<String, String> highThroughput = new HashMap<>();
+        highThroughput.put(PARAMETER_BUFFER_FLUSH_INTERVAL, "5000");
+        highThroughput.put(PARAMETER_BUFFER_FLUSH_CHECK_INTERVAL, "500");
+        highThroughput.put(PARAMETER_IO_TIME_CPU_RATIO, "4");
+        highThroughput.put(PARAMETER_MAX_CHANNEL_SIZE, String.valueOf(128 * 1024 * 1024));
+        highThroughput.put(PARAMETER_MAX_CHUNK_SIZE, String.valueOf(512 * 1024 * 1024));
+        PROFILES.put(PROFILE_HIGH_THROUGHPUT.getValue(), highThroughput);
+
+        final Map<String, String> memoryConstrained = new HashMap<>();
+        memoryConstrained.put(PARAMETER_MAX_MEMORY_LIMIT, String.valueOf(256 * 1024 * 1024));
+        memoryConstrained.put(PARAMETER_INSERT_THROTTLE_THRESHOLD, "30");
+        memoryConstrained.put(PARAMETER_MAX_CHANNEL_SIZE, String.valueOf(8 * 1024 * 1024));
+        memoryConstrained.put(PARAMETER_MAX_CHUNK_SIZE, String.valueOf(16 * 1024 * 1024));
+        PROFILES.put(PROFILE_MEMORY_CONSTRAINED.getValue(), memoryConstrained);
+    }
+
     @Override
     protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
         final List<PropertyDescriptor> properties = new ArrayList<>();
@@ -58,31 +288,713 @@ public class SnowflakeIngestControllerService extends AbstractControllerService
         properties.add(SNOWFLAKE_USER);
         properties.add(SNOWFLAKE_PRIVATE_KEY);
         properties.add(SNOWFLAKE_ROLE);
+        properties.add(CHANNELS_PER_TABLE);
+        properties.add(CLIENT_COUNT);
+        properties.add(NODE_IDENTIFIER);
+        properties.add(COMMIT_POLL_INTERVAL);
+        properties.add(MAX_OPEN_CHANNELS);
+        properties.add(CHANNEL_IDLE_TIMEOUT);
+        properties.add(METADATA_CONNECTION_POOL);
+        properties.add(CLIENT_PROFILE);
+        properties.add(BUFFER_FLUSH_INTERVAL);
+        properties.add(BUFFER_FLUSH_CHECK_INTERVAL);
+        properties.add(INSERT_THROTTLE_THRESHOLD);
+        properties.add(IO_TIME_CPU_RATIO);
+        properties.add(MAX_MEMORY_LIMIT);
+        properties.add(MAX_CHANNEL_SIZE);
+        properties.add(MAX_CHUNK_SIZE);
         return properties;
     }
 
-    private SnowflakeStreamingIngestClient client;
-    private final Map<String,SnowflakeStreamingIngestChannel> channelMap = new HashMap<>();
+    private volatile ConsistentHashRing<SnowflakeStreamingIngestClient> clients;
+    private volatile int channelsPerTable;
+    private volatile String nodeIdentifier;
+    private volatile int maxOpenChannels;
+    private volatile long channelIdleTimeout;
+    private volatile long pollInterval;
+
+    private final ConcurrentMap<String, SnowflakeStreamingIngestChannel> channelMap = new ConcurrentHashMap<>();
+    // Channels being opened, so that callers asking for the same channel wait for it without blocking any others
+    private final ConcurrentMap<String, CompletableFuture<SnowflakeStreamingIngestChannel>> openingChannels = new ConcurrentHashMap<>();
+    // Number of callers inserting into a channel by channel key, channels are only evicted while they have none
+    private final ConcurrentMap<String, Integer> channelLeases = new ConcurrentHashMap<>();
+    private final AtomicInteger threadCounter = new AtomicInteger();
+    private final ThreadLocal<Integer> threadSlot = ThreadLocal.withInitial(threadCounter::getAndIncrement);
+    private final ConcurrentMap<String, Long> channelLastUsed = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, OpenBackoff> openBackoffs = new ConcurrentHashMap<>();
+    // Channels opened before columns were added to their table by channel key, closed once no caller leases them
+    private final ConcurrentMap<String, SnowflakeStreamingIngestChannel> staleChannels = new ConcurrentHashMap<>();
+    // Stale channels being closed, reopening them waits for their rows to be committed
+    private final ConcurrentMap<String, CompletableFuture<Void>> closingChannels = new ConcurrentHashMap<>();
+
+    // Offsets are tracked by fully qualified channel name, so they survive reopening a channel
+    private final ConcurrentMap<String, ChannelOffsets> channelOffsets = new ConcurrentHashMap<>();
+    private ScheduledExecutorService commitPoller;
+
+    // Progress of FlowFiles waiting for a commit by FlowFile UUID, prefixed with the key of their channel in channelMap
+    private final ConcurrentMap<String, String> progress = new ConcurrentHashMap<>();
+    // The state of the cluster is limited to about 1 MB in ZooKeeper, so at most this many FlowFiles of a node are stored
+    // with their last few offsets. FlowFiles beyond are ingested again in full after a restart.
+    private static final int MAX_PERSISTED_PROGRESS = 500;
+    private static final int MAX_PERSISTED_OFFSETS = 8;
+    private final Set<String> persistedProgress = new HashSet<>();
+    private volatile boolean progressChanged;
+    private final ConcurrentMap<String, String> recoveredProgress = new ConcurrentHashMap<>();
+    // Highest offset of the recovered progress by channel key, reopened channels continue after it
+    private final ConcurrentMap<String, Long> recoveredOffsets = new ConcurrentHashMap<>();
+    private final Set<String> releasedProgress = ConcurrentHashMap.newKeySet();
+    private final ConcurrentMap<String, String> channelKeys = new ConcurrentHashMap<>();
+
+    // Channels opened by this node, stored in the state as OWNER_PREFIX + channel key = node identifier
+    private static final String OWNER_PREFIX = "owner:";
+    // Escaped within the names of channel keys
+    private static final String KEY_SEPARATORS = "%.:|";
+    private final Set<String> ownedChannels = ConcurrentHashMap.newKeySet();
+    private final Set<String> releasedChannels = ConcurrentHashMap.newKeySet();
+    private volatile boolean ownershipChanged;
+
+    // Column names of the target tables by fully qualified table name, looked up through the metadata connection pool
+    private static final long COLUMN_REFRESH_INTERVAL = 10000;
+    // Data types of added columns, as written by the processors, e.g. VARCHAR or NUMBER(38, 0)
+    private static final Pattern DATA_TYPE = Pattern.compile("[A-Z_]+(\\(\\d+(, ?\\d+)?\\))?");
+    private volatile DBCPService metadataConnectionPool;
+    private final ConcurrentMap<String, TableColumns> tableColumns = new ConcurrentHashMap<>();
 
     public SnowflakeStreamingIngestChannel getChannel(String database, String schema, String table, String channelName) {
-        SnowflakeStreamingIngestChannel currentChannel = channelMap.get(database + "." + schema + "." + table + ":" + channelName);
-        if (currentChannel == null)
-        {
+        final String pooledName = getPooledName(channelName, Math.floorMod(threadSlot.get(), channelsPerTable));
+        return acquireChannel(getChannelKey(database, schema, table, pooledName), database, schema, table, pooledName);
+    }
+
+    public void returnChannel(SnowflakeStreamingIngestChannel channel) {
+        final String channelKey = channelKeys.get(channel.getFullyQualifiedName());
+        if (channelKey != null) {
+            returnChannel(channelKey);
+        }
+    }
+
+    private String getPooledName(String channelName, int index) {
+        return channelName + "_" + nodeIdentifier + "_" + index;
+    }
+
+    /**
+     * Returns the channel with the given key, leased until {@link #returnChannel(String)} so that it is not evicted.
+     */
+    private SnowflakeStreamingIngestChannel acquireChannel(String channelKey, String database, String schema, String table, String channelName) {
+        // Taken before the channel is looked up, eviction removes it from channelMap under the same key of channelLeases
+        channelLeases.merge(channelKey, 1, Integer::sum);
+        try {
+            return getOrOpenChannel(channelKey, database, schema, table, channelName);
+        } catch (RuntimeException e) {
+            returnChannel(channelKey);
+            throw e;
+        }
+    }
+
+    private void returnChannel(String channelKey) {
+        channelLastUsed.put(channelKey, System.currentTimeMillis());
+        channelLeases.computeIfPresent(channelKey, (key, leases) -> leases > 1 ? leases - 1 : null);
+        if (staleChannels.containsKey(channelKey)) {
+            closeStaleChannel(channelKey);
+        }
+    }
+
+    private SnowflakeStreamingIngestChannel getOrOpenChannel(String channelKey, String database, String schema, String table, String channelName) {
+        channelLastUsed.put(channelKey, System.currentTimeMillis());
+        SnowflakeStreamingIngestChannel channel = channelMap.get(channelKey);
+        if (channel != null && isHealthy(channelKey, channel)) {
+            return channel;
+        }
+
+        // Opened outside of any map function, the I/O of one channel must not block callers of others
+        final CompletableFuture<SnowflakeStreamingIngestChannel> opened = new CompletableFuture<>();
+        final CompletableFuture<SnowflakeStreamingIngestChannel> opening = openingChannels.putIfAbsent(channelKey, opened);
+        if (opening != null) {
+            try {
+                return opening.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof ProcessException
+                        ? (ProcessException) e.getCause()
+                        : new ProcessException("Unable to establish Snowflake channel " + channelKey, e.getCause());
+            }
+        }
+        try {
+            // Another caller may have opened it since it was looked up
+            channel = channelMap.get(channelKey);
+            if (channel == null || !isHealthy(channelKey, channel)) {
+                channel = openChannel(channelKey, database, schema, table, channelName);
+                channelMap.put(channelKey, channel);
+            }
+            opened.complete(channel);
+            return channel;
+        } catch (RuntimeException e) {
+            opened.completeExceptionally(e);
+            throw e;
+        } finally {
+            openingChannels.remove(channelKey, opened);
+        }
+    }
+
+    /**
+     * Returns true if the channel is still usable. Otherwise it is removed, so that the next caller reopens it,
+     * and its uncommitted offsets are marked as lost.
+     */
+    private boolean isHealthy(String channelKey, SnowflakeStreamingIngestChannel channel) {
+        if (channel.isValid() && !channel.isClosed()) {
+            return true;
+        }
+        if (channelMap.remove(channelKey, channel)) {
+            getLogger().warn("Channel {} is no longer valid, reopening it", channel.getFullyQualifiedName());
+            final ChannelOffsets offsets = channelOffsets.get(channel.getFullyQualifiedName());
+            if (offsets != null) {
+                offsets.invalidate();
+            }
             try {
-                OpenChannelRequest channelRequest = OpenChannelRequest.builder(UUID.randomUUID().toString())
-                        .setDBName(database)
-                        .setSchemaName(schema)
-                        .setTableName(table)
-                        .setOnErrorOption(OpenChannelRequest.OnErrorOption.CONTINUE)
-                        .build();
-
-                currentChannel = client.openChannel(channelRequest);
-                channelMap.put(database + "." + schema + "." + table + ":" + channelName, currentChannel);
+                channel.close();
             } catch (Exception e) {
-                getLogger().error("Unable to establish Snowflake channel: {}\n{}", channelName, e.toString());
+                getLogger().debug("Failed to close invalid channel {}", channel.getFullyQualifiedName(), e);
+            }
+        }
+        return false;
+    }
+
+    private SnowflakeStreamingIngestChannel openChannel(String channelKey, String database, String schema, String table, String channelName) {
+        final CompletableFuture<Void> closing = closingChannels.get(channelKey);
+        if (closing != null) {
+            closing.join();
+        }
+        final OpenBackoff backoff = openBackoffs.get(channelKey);
+        if (backoff != null && backoff.retryAt > System.currentTimeMillis()) {
+            throw new ProcessException(String.format("Channel %s is unavailable after %d failed attempts, retrying in %d ms",
+                    channelName, backoff.attempts, backoff.retryAt - System.currentTimeMillis()));
+        }
+
+        try {
+            OpenChannelRequest channelRequest = OpenChannelRequest.builder(channelName)
+                    .setDBName(database)
+                    .setSchemaName(schema)
+                    .setTableName(table)
+                    .setOnErrorOption(OpenChannelRequest.OnErrorOption.CONTINUE)
+                    .build();
+
+            final SnowflakeStreamingIngestChannel channel = clients.get(channelKey).openChannel(channelRequest);
+            final long committed = parseOffset(channel.getLatestCommittedOffsetToken());
+            final Long recovered = recoveredOffsets.remove(channelKey);
+            channelOffsets.computeIfAbsent(channel.getFullyQualifiedName(), key -> new ChannelOffsets(committed))
+                    .open(committed, recovered == null ? 0 : recovered);
+            channelKeys.put(channel.getFullyQualifiedName(), channelKey);
+            if (metadataConnectionPool != null && !tableColumns.containsKey(getTableKey(database, schema, table))) {
+                refreshColumns(database, schema, table);
+            }
+            ownedChannels.add(channelKey);
+            releasedChannels.remove(channelKey);
+            ownershipChanged = true;
+            openBackoffs.remove(channelKey);
+            return channel;
+        } catch (Exception e) {
+            final OpenBackoff failed = openBackoffs.compute(channelKey, (key, previous) -> new OpenBackoff(previous == null ? 1 : previous.attempts + 1));
+            getLogger().error("Unable to establish Snowflake channel: {}, retrying in {} ms", channelName, failed.retryAt - System.currentTimeMillis(), e);
+            throw new ProcessException("Unable to establish Snowflake channel " + channelName, e);
+        }
+    }
+
+    public long nextOffset(SnowflakeStreamingIngestChannel channel, int rows) {
+        return channelOffsets.computeIfAbsent(channel.getFullyQualifiedName(), key -> new ChannelOffsets(0)).next(rows);
+    }
+
+    public boolean isCommitted(SnowflakeStreamingIngestChannel channel, long offset) {
+        final ChannelOffsets offsets = channelOffsets.get(channel.getFullyQualifiedName());
+        return offsets != null && offsets.isCommitted(offset);
+    }
+
+    public boolean isLost(SnowflakeStreamingIngestChannel channel, long offset) {
+        final ChannelOffsets offsets = channelOffsets.get(channel.getFullyQualifiedName());
+        return offsets != null && offsets.isLost(offset);
+    }
+
+    public long getUncommittedRows() {
+        long rows = 0;
+        for (SnowflakeStreamingIngestChannel channel : channelMap.values()) {
+            final ChannelOffsets offsets = channelOffsets.get(channel.getFullyQualifiedName());
+            if (offsets != null) {
+                rows += offsets.getUncommittedRows();
+            }
+        }
+        return rows;
+    }
+
+    public long getCommitLag() {
+        long oldest = Long.MAX_VALUE;
+        // Offsets of closed channels are never polled again, they must not hold back the processors
+        for (SnowflakeStreamingIngestChannel channel : channelMap.values()) {
+            final ChannelOffsets offsets = channelOffsets.get(channel.getFullyQualifiedName());
+            if (offsets != null) {
+                oldest = Math.min(oldest, offsets.getOldestUncommitted());
+            }
+        }
+        return oldest == Long.MAX_VALUE ? 0 : System.currentTimeMillis() - oldest;
+    }
+
+    /**
+     * Closes channels that have been idle for longer than the idle timeout and, while more channels than allowed
+     * are open, the least recently used ones that were not handed out since the previous run. Channels still
+     * leased by a caller are never closed.
+     */
+    void evictChannels() {
+        evictChannels(System.currentTimeMillis());
+    }
+
+    void evictChannels(long now) {
+        final List<Map.Entry<String, Long>> byLastUse = new ArrayList<>(channelLastUsed.entrySet());
+        byLastUse.sort(Map.Entry.comparingByValue());
+
+        int open = channelMap.size();
+        for (Map.Entry<String, Long> entry : byLastUse) {
+            final long idle = now - entry.getValue();
+            if ((idle >= channelIdleTimeout || (open > maxOpenChannels && idle >= pollInterval))
+                    && evictChannel(entry.getKey(), entry.getValue())) {
+                open--;
+            }
+        }
+    }
+
+    private boolean evictChannel(String channelKey, long lastUsed) {
+        final AtomicReference<SnowflakeStreamingIngestChannel> evicted = new AtomicReference<>();
+        // Leases are taken on the same key, so no caller can get hold of the channel while it is removed
+        channelLeases.compute(channelKey, (key, leases) -> {
+            // Fails if the channel was handed out again in the meantime
+            if (leases == null && channelLastUsed.remove(channelKey, lastUsed)) {
+                evicted.set(channelMap.remove(channelKey));
             }
+            return leases;
+        });
+        final SnowflakeStreamingIngestChannel channel = evicted.get();
+        if (channel == null) {
+            return false;
+        }
+        releaseChannel(channelKey);
+        closeAndCommit(channel);
+        return true;
+    }
+
+    private void closeAndCommit(SnowflakeStreamingIngestChannel channel) {
+        try {
+            // Closing flushes the channel and waits until all of its rows are committed
+            channel.close().get();
+            closed(channel, null);
+        } catch (Exception e) {
+            closed(channel, e);
         }
-        return currentChannel;
+    }
+
+    private void closed(SnowflakeStreamingIngestChannel channel, Throwable failure) {
+        final ChannelOffsets offsets = channelOffsets.get(channel.getFullyQualifiedName());
+        if (failure == null) {
+            if (offsets != null) {
+                offsets.commitIssued();
+            }
+            getLogger().debug("Closed channel {}", channel.getFullyQualifiedName());
+        } else {
+            getLogger().warn("Failed to close channel {}", channel.getFullyQualifiedName(), failure);
+            // Whether its rows were committed is unknown, so they are taken as lost
+            if (offsets != null) {
+                offsets.invalidate();
+            }
+        }
+    }
+
+    /**
+     * Closes the stale channel with the given key unless a caller still leases it, in which case it is closed once
+     * it is returned. The close is not waited for, only a caller reopening the channel waits for it.
+     */
+    private void closeStaleChannel(String channelKey) {
+        final AtomicReference<SnowflakeStreamingIngestChannel> evicted = new AtomicReference<>();
+        channelLeases.compute(channelKey, (key, leases) -> {
+            if (leases == null) {
+                final SnowflakeStreamingIngestChannel stale = staleChannels.remove(channelKey);
+                // Skipped if the channel was evicted or reopened in the meantime
+                if (stale != null && channelMap.remove(channelKey, stale)) {
+                    channelLastUsed.remove(channelKey);
+                    evicted.set(stale);
+                }
+            }
+            return leases;
+        });
+        final SnowflakeStreamingIngestChannel channel = evicted.get();
+        if (channel == null) {
+            return;
+        }
+        releaseChannel(channelKey);
+        final CompletableFuture<Void> closing = channel.close().handle((ignored, e) -> {
+            closed(channel, e);
+            return null;
+        });
+        closingChannels.put(channelKey, closing);
+        closing.thenRun(() -> closingChannels.remove(channelKey, closing));
+    }
+
+    public Set<String> getColumns(String database, String schema, String table) {
+        if (metadataConnectionPool == null) {
+            return null;
+        }
+        final TableColumns columns = tableColumns.get(getTableKey(database, schema, table));
+        return columns == null ? refreshColumns(database, schema, table) : columns.names;
+    }
+
+    public Set<String> refreshColumns(String database, String schema, String table) {
+        if (metadataConnectionPool == null) {
+            return null;
+        }
+        final String tableName = database + "." + schema + "." + table;
+        final String tableKey = getTableKey(database, schema, table);
+        final TableColumns cached = tableColumns.get(tableKey);
+        if (cached != null && System.currentTimeMillis() - cached.loadedAt < COLUMN_REFRESH_INTERVAL) {
+            return cached.names;
+        }
+
+        try (final Connection connection = metadataConnectionPool.getConnection();
+             final Statement statement = connection.createStatement();
+             final ResultSet resultSet = statement.executeQuery("SHOW COLUMNS IN TABLE " + quoteTableName(database, schema, table))) {
+            final Set<String> names = new HashSet<>();
+            while (resultSet.next()) {
+                names.add(resultSet.getString("column_name"));
+            }
+            final TableColumns columns = new TableColumns(Collections.unmodifiableSet(names));
+            tableColumns.put(tableKey, columns);
+            return columns.names;
+        } catch (SQLException | ProcessException e) {
+            getLogger().warn("Failed to look up the columns of table {}", tableName, e);
+            return cached == null ? null : cached.names;
+        }
+    }
+
+    public void addColumns(String database, String schema, String table, Map<String, String> columns) {
+        if (metadataConnectionPool == null) {
+            throw new ProcessException("Adding columns requires a " + METADATA_CONNECTION_POOL.getDisplayName());
+        }
+        final String tableName = database + "." + schema + "." + table;
+        final List<String> statements = new ArrayList<>(columns.size());
+        for (Map.Entry<String, String> column : columns.entrySet()) {
+            if (!DATA_TYPE.matcher(column.getValue()).matches()) {
+                throw new ProcessException("Invalid data type " + column.getValue() + " of column " + column.getKey());
+            }
+            statements.add("ALTER TABLE " + quoteTableName(database, schema, table)
+                    + " ADD COLUMN IF NOT EXISTS " + quoteIdentifier(column.getKey()) + " " + column.getValue());
+        }
+        try (final Connection connection = metadataConnectionPool.getConnection();
+             final Statement statement = connection.createStatement()) {
+            for (String sql : statements) {
+                statement.execute(sql);
+            }
+        } catch (SQLException e) {
+            throw new ProcessException("Failed to add columns " + columns.keySet() + " to table " + tableName, e);
+        }
+        getLogger().info("Added columns {} to table {}", columns.keySet(), tableName);
+        final String tableKey = getTableKey(database, schema, table);
+        tableColumns.remove(tableKey);
+        refreshColumns(database, schema, table);
+
+        // Channels validate rows against the columns the table had when they were opened
+        for (Map.Entry<String, SnowflakeStreamingIngestChannel> entry : channelMap.entrySet()) {
+            if (entry.getKey().startsWith(tableKey + ":")) {
+                staleChannels.put(entry.getKey(), entry.getValue());
+                closeStaleChannel(entry.getKey());
+            }
+        }
+    }
+
+    private void releaseChannel(String channelKey) {
+        ownedChannels.remove(channelKey);
+        releasedChannels.add(channelKey);
+        ownershipChanged = true;
+    }
+
+    public void saveProgress(Map<SnowflakeStreamingIngestChannel, Map<String, String>> channelProgress) {
+        for (Map.Entry<SnowflakeStreamingIngestChannel, Map<String, String>> channelEntry : channelProgress.entrySet()) {
+            final String channelKey = channelKeys.get(channelEntry.getKey().getFullyQualifiedName());
+            final ChannelOffsets offsets = channelOffsets.get(channelEntry.getKey().getFullyQualifiedName());
+            for (Map.Entry<String, String> entry : channelEntry.getValue().entrySet()) {
+                progress.put(entry.getKey(), channelKey + "|" + compactProgress(entry.getValue(), offsets));
+            }
+        }
+        // Stored by the commit poller, FlowFiles whose progress is not stored yet are only ingested again in full
+        progressChanged = true;
+    }
+
+    /**
+     * Folds the offsets of a FlowFile's progress that are committed already into its committed record index and keeps
+     * the last {@value #MAX_PERSISTED_OFFSETS} of the others. Dropping older offsets only means that more records of
+     * the FlowFile are ingested again if it is returned to the queue.
+     */
+    private static String compactProgress(String flowFileProgress, ChannelOffsets offsets) {
+        final int separator = flowFileProgress.indexOf('|');
+        if (separator == flowFileProgress.length() - 1) {
+            return flowFileProgress;
+        }
+        long committedRecordIndex = Long.parseLong(flowFileProgress.substring(0, separator));
+        final String[] pairs = flowFileProgress.substring(separator + 1).split(",");
+        final List<String> uncommitted = new ArrayList<>(pairs.length);
+        for (String pair : pairs) {
+            final int colon = pair.indexOf(':');
+            if (offsets != null && offsets.isCommitted(Long.parseLong(pair.substring(0, colon)))) {
+                committedRecordIndex = Math.max(committedRecordIndex, Long.parseLong(pair.substring(colon + 1)));
+            } else {
+                uncommitted.add(pair);
+            }
+        }
+        return committedRecordIndex + "|"
+                + String.join(",", uncommitted.subList(Math.max(0, uncommitted.size() - MAX_PERSISTED_OFFSETS), uncommitted.size()));
+    }
+
+    public Map<String, Long> getCommittedRecordIndexes(Collection<String> flowFileUuids) {
+        final Map<String, Long> committedRecordIndexes = new HashMap<>();
+        // Channels whose committed offset was looked up by this call, it is fetched at most once per channel
+        final Set<String> refreshed = new HashSet<>();
+        for (String flowFileUuid : flowFileUuids) {
+            String value = progress.get(flowFileUuid);
+            if (value == null) {
+                value = recoveredProgress.get(flowFileUuid);
+                if (value == null) {
+                    continue;
+                }
+            }
+
+            final String[] parts = value.split("\\|", 3);
+            long committedRecordIndex = Long.parseLong(parts[1]);
+            if (!parts[2].isEmpty()) {
+                final String[] names = parseChannelKey(parts[0]);
+                final String fullyQualifiedName = String.join(".", names);
+                for (String pair : parts[2].split(",")) {
+                    final int colon = pair.indexOf(':');
+                    final long offset = Long.parseLong(pair.substring(0, colon));
+                    // Decided by the offsets of the commit poller unless they do not know the offset yet
+                    ChannelOffsets offsets = channelOffsets.get(fullyQualifiedName);
+                    if ((offsets == null || !offsets.isCommitted(offset) && !offsets.isLost(offset)) && refreshed.add(parts[0])) {
+                        offsets = refreshOffsets(parts[0], names);
+                    }
+                    // Offsets lost when the channel was reopened, in this run or after a restart, stay uncommitted
+                    if (offsets != null && offsets.isCommitted(offset)) {
+                        committedRecordIndex = Math.max(committedRecordIndex, Long.parseLong(pair.substring(colon + 1)));
+                    }
+                }
+            }
+            committedRecordIndexes.put(flowFileUuid, committedRecordIndex);
+        }
+        return committedRecordIndexes;
+    }
+
+    /**
+     * Brings the committed offset of the channel up to date. A channel not opened since its progress was recovered is
+     * opened, which looks up its committed offset and marks the recovered offsets Snowflake has not committed as lost.
+     */
+    private ChannelOffsets refreshOffsets(String channelKey, String[] names) {
+        final boolean open = channelMap.containsKey(channelKey);
+        final SnowflakeStreamingIngestChannel channel = acquireChannel(channelKey, names[0], names[1], names[2], names[3]);
+        try {
+            final ChannelOffsets offsets = channelOffsets.get(channel.getFullyQualifiedName());
+            if (open) {
+                offsets.commit(parseOffset(channel.getLatestCommittedOffsetToken()));
+            }
+            return offsets;
+        } finally {
+            returnChannel(channelKey);
+        }
+    }
+
+    public void releaseProgress(Collection<String> flowFileUuids) {
+        for (String flowFileUuid : flowFileUuids) {
+            progress.remove(flowFileUuid);
+            recoveredProgress.remove(flowFileUuid);
+        }
+        // Removed from the state by the commit poller, a stale entry only costs a lookup
+        releasedProgress.addAll(flowFileUuids);
+    }
+
+    /**
+     * Merges the progress and the channel ownership of this node into the cluster state. Runs on the commit poller,
+     * so that processors never wait for the state provider.
+     */
+    private synchronized void persistState() {
+        final Set<String> released = new HashSet<>(releasedProgress);
+        final Set<String> closed = new HashSet<>(releasedChannels);
+        ownershipChanged = false;
+        progressChanged = false;
+
+        persistedProgress.removeAll(released);
+        final Map<String, String> stored = new HashMap<>();
+        for (Map.Entry<String, String> entry : progress.entrySet()) {
+            if (persistedProgress.contains(entry.getKey()) || persistedProgress.size() < MAX_PERSISTED_PROGRESS) {
+                persistedProgress.add(entry.getKey());
+                stored.put(entry.getKey(), entry.getValue());
+            }
+        }
+        if (stored.size() < progress.size()) {
+            getLogger().debug("Stored the progress of {} of {} FlowFiles waiting for a commit", stored.size(), progress.size());
+        }
+
+        final StateManager stateManager = getStateManager();
+        try {
+            boolean replaced;
+            do {
+                final StateMap stateMap = stateManager.getState(Scope.CLUSTER);
+                final Map<String, String> state = new HashMap<>(stateMap.toMap());
+                state.keySet().removeAll(released);
+                state.putAll(stored);
+                for (String channelKey : closed) {
+                    state.remove(OWNER_PREFIX + channelKey, nodeIdentifier);
+                }
+                for (String channelKey : ownedChannels) {
+                    state.put(OWNER_PREFIX + channelKey, nodeIdentifier);
+                }
+                if (stateMap.getVersion() == -1) {
+                    stateManager.setState(state, Scope.CLUSTER);
+                    replaced = true;
+                } else {
+                    // Other nodes of the cluster store their progress in the same state
+                    replaced = stateManager.replace(stateMap, state, Scope.CLUSTER);
+                }
+            } while (!replaced);
+            releasedProgress.removeAll(released);
+            releasedChannels.removeAll(closed);
+        } catch (IOException e) {
+            ownershipChanged = true;
+            progressChanged = true;
+            getLogger().warn("Failed to store the progress of {} FlowFiles", stored.size(), e);
+        }
+    }
+
+    void pollCommittedOffsets() {
+        for (Map.Entry<String, SnowflakeStreamingIngestChannel> entry : channelMap.entrySet()) {
+            final SnowflakeStreamingIngestChannel channel = entry.getValue();
+            final ChannelOffsets offsets = channelOffsets.get(channel.getFullyQualifiedName());
+            if (offsets == null || !offsets.hasUncommitted() || !isHealthy(entry.getKey(), channel)) {
+                continue;
+            }
+            try {
+                offsets.commit(parseOffset(channel.getLatestCommittedOffsetToken()));
+            } catch (Exception e) {
+                getLogger().warn("Failed to fetch the committed offset of channel {}", channel.getFullyQualifiedName(), e);
+            }
+        }
+
+        if (progressChanged || !releasedProgress.isEmpty() || ownershipChanged) {
+            persistState();
+        }
+    }
+
+    /**
+     * Returns the offset an offset token starts with, or 0 if the channel has no committed token
+     * or it was not written by this service.
+     */
+    /**
+     * Returns the key of a channel in channelMap and in the state, {@code <database>.<schema>.<table>:<channel name>}.
+     * Separators within the names are escaped, so that quoted identifiers containing them are kept apart.
+     */
+    static String getChannelKey(String database, String schema, String table, String channelName) {
+        return getTableKey(database, schema, table) + ":" + escapeName(channelName);
+    }
+
+    static String getTableKey(String database, String schema, String table) {
+        return escapeName(database) + "." + escapeName(schema) + "." + escapeName(table);
+    }
+
+    /**
+     * Returns the database, schema, table and channel name of a channel key.
+     */
+    static String[] parseChannelKey(String channelKey) {
+        final int separator = channelKey.indexOf(':');
+        final String[] names = channelKey.substring(0, separator).split("\\.", 3);
+        return new String[]{unescapeName(names[0]), unescapeName(names[1]), unescapeName(names[2]), unescapeName(channelKey.substring(separator + 1))};
+    }
+
+    /**
+     * Escapes the separators of channel keys and progress as '%' followed by their hex code, like URLs do. Names
+     * without them, unquoted identifiers among them, are kept as they are.
+     */
+    private static String escapeName(String name) {
+        StringBuilder escaped = null;
+        for (int i = 0; i < name.length(); i++) {
+            final char c = name.charAt(i);
+            if (KEY_SEPARATORS.indexOf(c) >= 0) {
+                if (escaped == null) {
+                    escaped = new StringBuilder(name.length() + 8).append(name, 0, i);
+                }
+                escaped.append('%').append(Integer.toHexString(c).toUpperCase());
+            } else if (escaped != null) {
+                escaped.append(c);
+            }
+        }
+        return escaped == null ? name : escaped.toString();
+    }
+
+    private static String unescapeName(String name) {
+        if (name.indexOf('%') < 0) {
+            return name;
+        }
+        final StringBuilder unescaped = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            final char c = name.charAt(i);
+            final int high = c == '%' && i + 2 < name.length() ? Character.digit(name.charAt(i + 1), 16) : -1;
+            final int low = high < 0 ? -1 : Character.digit(name.charAt(i + 2), 16);
+            if (low >= 0) {
+                unescaped.append((char) (high << 4 | low));
+                i += 2;
+            } else {
+                unescaped.append(c);
+            }
+        }
+        return unescaped.toString();
+    }
+
+    static long parseOffset(String offsetToken) {
+        if (offsetToken == null) {
+            return 0;
+        }
+        final int separator = offsetToken.indexOf(':');
+        try {
+            return Long.parseLong(separator < 0 ? offsetToken : offsetToken.substring(0, separator));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Returns the last offset of the progress of a FlowFile, or 0 if it has none.
+     */
+    private static long getLastOffset(String flowFileProgress) {
+        final String pairs = flowFileProgress.substring(flowFileProgress.lastIndexOf('|') + 1);
+        if (pairs.isEmpty()) {
+            return 0;
+        }
+        final String last = pairs.substring(pairs.lastIndexOf(',') + 1);
+        return Long.parseLong(last.substring(0, last.indexOf(':')));
+    }
+
+    /**
+     * Returns the identifier quoted for SQL statements. Unquoted identifiers are stored in uppercase by Snowflake, so
+     * they are quoted in uppercase, identifiers that are quoted already keep their case. Embedded quotes are escaped.
+     *
+     * @throws ProcessException if the identifier is empty or contains control characters
+     */
+    static String quoteIdentifier(String identifier) {
+        final String name;
+        if (identifier.length() > 1 && identifier.charAt(0) == '"' && identifier.charAt(identifier.length() - 1) == '"') {
+            name = identifier.substring(1, identifier.length() - 1).replace("\"\"", "\"");
+        } else {
+            name = identifier.toUpperCase(Locale.ROOT);
+        }
+        if (name.isEmpty()) {
+            throw new ProcessException("Identifier " + identifier + " is empty");
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.isISOControl(name.charAt(i))) {
+                throw new ProcessException("Identifier " + identifier + " contains control characters");
+            }
+        }
+        return '"' + name.replace("\"", "\"\"") + '"';
+    }
+
+    private static String quoteTableName(String database, String schema, String table) {
+        return quoteIdentifier(database) + "." + quoteIdentifier(schema) + "." + quoteIdentifier(table);
     }
 
     @OnEnabled
@@ -94,15 +1006,290 @@ public class SnowflakeIngestControllerService extends AbstractControllerService
         if (context.getProperty(SNOWFLAKE_ROLE).isSet()) {
             props.setProperty("role", context.getProperty(SNOWFLAKE_ROLE).getValue());
         }
+        props.putAll(getClientParameters(context));
+
+        channelsPerTable = context.getProperty(CHANNELS_PER_TABLE).asInteger();
+        nodeIdentifier = getNodeIdentifier(context);
+        metadataConnectionPool = context.getProperty(METADATA_CONNECTION_POOL).asControllerService(DBCPService.class);
+        tableColumns.clear();
+        progress.clear();
+        persistedProgress.clear();
+        progressChanged = false;
+        releasedProgress.clear();
+        recoveredProgress.clear();
+        recoveredOffsets.clear();
+        // Offsets of the channels of an earlier run, closed on disabling without waiting for their commit
+        channelOffsets.clear();
+        channelKeys.clear();
+        ownedChannels.clear();
+        releasedChannels.clear();
+        try {
+            final Map<String, String> state = getStateManager().getState(Scope.CLUSTER).toMap();
+            for (Map.Entry<String, String> entry : state.entrySet()) {
+                if (entry.getKey().startsWith(OWNER_PREFIX)) {
+                    continue;
+                }
+                // Never reopen, and so invalidate, a channel owned by another node
+                final String channelKey = entry.getValue().substring(0, entry.getValue().indexOf('|'));
+                final String owner = state.get(OWNER_PREFIX + channelKey);
+                if (owner == null || owner.equals(nodeIdentifier)) {
+                    recoveredProgress.put(entry.getKey(), entry.getValue());
+                    recoveredOffsets.merge(channelKey, getLastOffset(entry.getValue()), Math::max);
+                }
+            }
+        } catch (IOException e) {
+            getLogger().warn("Failed to load the progress of FlowFiles waiting for a commit, their records are ingested again", e);
+        }
+
+        final int clientCount = context.getProperty(CLIENT_COUNT).asInteger();
+        final List<SnowflakeStreamingIngestClient> clientList = new ArrayList<>(clientCount);
+        for (int i = 0; i < clientCount; i++) {
+            clientList.add(createClient(clientCount == 1 ? "NIFI" : "NIFI_" + i, props));
+        }
+        clients = new ConsistentHashRing<>(clientList);
 
-        client = SnowflakeStreamingIngestClientFactory
-                .builder("NIFI")
-                .setProperties(props)
+        maxOpenChannels = context.getProperty(MAX_OPEN_CHANNELS).asInteger();
+        channelIdleTimeout = context.getProperty(CHANNEL_IDLE_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS);
+        pollInterval = context.getProperty(COMMIT_POLL_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS);
+        commitPoller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "Snowflake Commit Poller " + getIdentifier());
+            thread.setDaemon(true);
+            return thread;
+        });
+        commitPoller.scheduleWithFixedDelay(this::pollCommittedOffsets, pollInterval, pollInterval, TimeUnit.MILLISECONDS);
+        commitPoller.scheduleWithFixedDelay(this::evictChannels, pollInterval, pollInterval, TimeUnit.MILLISECONDS);
+    }
+
+    SnowflakeStreamingIngestClient createClient(String name, Properties properties) {
+        return SnowflakeStreamingIngestClientFactory.builder(name)
+                .setProperties(properties)
                 .build();
     }
 
+    /**
+     * Returns the configured node identifier or the host name, reduced to characters that are safe in channel names.
+     */
+    static String getNodeIdentifier(PropertyContext context) {
+        String identifier = context.getProperty(NODE_IDENTIFIER).evaluateAttributeExpressions().getValue();
+        if (identifier == null) {
+            try {
+                identifier = InetAddress.getLocalHost().getHostName();
+            } catch (UnknownHostException e) {
+                identifier = "node";
+            }
+        }
+        return identifier.replaceAll("[^A-Za-z0-9_]", "_");
+    }
+
+    /**
+     * Returns the SDK client parameters of the selected profile, or the configured ones for the custom profile.
+     */
+    static Map<String, String> getClientParameters(PropertyContext context) {
+        final String profile = context.getProperty(CLIENT_PROFILE).getValue();
+        if (!PROFILE_CUSTOM.getValue().equals(profile)) {
+            return PROFILES.getOrDefault(profile, Collections.emptyMap());
+        }
+
+        final Map<String, String> parameters = new HashMap<>();
+        if (context.getProperty(BUFFER_FLUSH_INTERVAL).isSet()) {
+            parameters.put(PARAMETER_BUFFER_FLUSH_INTERVAL, String.valueOf(context.getProperty(BUFFER_FLUSH_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS)));
+        }
+        if (context.getProperty(BUFFER_FLUSH_CHECK_INTERVAL).isSet()) {
+            parameters.put(PARAMETER_BUFFER_FLUSH_CHECK_INTERVAL, String.valueOf(context.getProperty(BUFFER_FLUSH_CHECK_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS)));
+        }
+        if (context.getProperty(INSERT_THROTTLE_THRESHOLD).isSet()) {
+            parameters.put(PARAMETER_INSERT_THROTTLE_THRESHOLD, context.getProperty(INSERT_THROTTLE_THRESHOLD).getValue());
+        }
+        if (context.getProperty(IO_TIME_CPU_RATIO).isSet()) {
+            parameters.put(PARAMETER_IO_TIME_CPU_RATIO, context.getProperty(IO_TIME_CPU_RATIO).getValue());
+        }
+        if (context.getProperty(MAX_MEMORY_LIMIT).isSet()) {
+            parameters.put(PARAMETER_MAX_MEMORY_LIMIT, String.valueOf(context.getProperty(MAX_MEMORY_LIMIT).asDataSize(DataUnit.B).longValue()));
+        }
+        if (context.getProperty(MAX_CHANNEL_SIZE).isSet()) {
+            parameters.put(PARAMETER_MAX_CHANNEL_SIZE, String.valueOf(context.getProperty(MAX_CHANNEL_SIZE).asDataSize(DataUnit.B).longValue()));
+        }
+        if (context.getProperty(MAX_CHUNK_SIZE).isSet()) {
+            parameters.put(PARAMETER_MAX_CHUNK_SIZE, String.valueOf(context.getProperty(MAX_CHUNK_SIZE).asDataSize(DataUnit.B).longValue()));
+        }
+        return parameters;
+    }
+
     public void closeChannel(String database, String schema, String table, String channelName) {
-        SnowflakeStreamingIngestChannel currentChannel = channelMap.remove(database + "." + schema + "." + table + ":" + channelName);
-        currentChannel.close();
+        for (int i = 0; i < channelsPerTable; i++) {
+            final String channelKey = getChannelKey(database, schema, table, getPooledName(channelName, i));
+            channelLastUsed.remove(channelKey);
+            SnowflakeStreamingIngestChannel currentChannel = channelMap.remove(channelKey);
+            if (currentChannel != null) {
+                releaseChannel(channelKey);
+                closeAndCommit(currentChannel);
+            }
+        }
+    }
+
+    @OnDisabled
+    public void onDisabled() {
+        if (commitPoller != null) {
+            commitPoller.shutdownNow();
+            commitPoller = null;
+        }
+
+        for (SnowflakeStreamingIngestChannel channel : channelMap.values()) {
+            channel.close();
+        }
+        for (String channelKey : channelMap.keySet()) {
+            releaseChannel(channelKey);
+        }
+        channelMap.clear();
+        channelLastUsed.clear();
+        channelLeases.clear();
+        openBackoffs.clear();
+        staleChannels.clear();
+        closingChannels.clear();
+        persistState();
+
+        if (clients != null) {
+            for (SnowflakeStreamingIngestClient client : clients.getNodes()) {
+                try {
+                    client.close();
+                } catch (Exception e) {
+                    getLogger().warn("Failed to close Snowflake client {}", client.getName(), e);
+                }
+            }
+            clients = null;
+        }
+    }
+
+    @OnShutdown
+    public void onShutdown() {
+        // NiFi may shut down without disabling the service, the channels it holds are closed all the same
+        if (clients != null) {
+            onDisabled();
+        }
+    }
+
+    private static final class TableColumns {
+        private final Set<String> names;
+        private final long loadedAt = System.currentTimeMillis();
+
+        TableColumns(Set<String> names) {
+            this.names = names;
+        }
+    }
+
+    static final class OpenBackoff {
+        static final long INITIAL_DELAY = 1000;
+        static final long MAX_DELAY = 60000;
+
+        final int attempts;
+        final long retryAt;
+
+        OpenBackoff(int attempts) {
+            this.attempts = attempts;
+            this.retryAt = System.currentTimeMillis() + Math.min(MAX_DELAY, INITIAL_DELAY << Math.min(attempts - 1, 16));
+        }
+    }
+
+    static final class ChannelOffsets {
+        private final AtomicLong issued;
+        private final AtomicLong committed;
+        // Row count and issue time of every uncommitted offset
+        private final ConcurrentNavigableMap<Long, long[]> uncommitted = new ConcurrentSkipListMap<>();
+        private final AtomicLong uncommittedRows = new AtomicLong();
+        // Offsets Snowflake never committed because the channel was reopened, as last offset before the range -> last offset
+        private final ConcurrentNavigableMap<Long, Long> lost = new ConcurrentSkipListMap<>();
+        private volatile long lostUpTo;
+
+        ChannelOffsets(long committed) {
+            this.issued = new AtomicLong(committed);
+            this.committed = new AtomicLong(committed);
+        }
+
+        long next(int rows) {
+            final long offset = issued.incrementAndGet();
+            uncommitted.put(offset, new long[]{rows, System.currentTimeMillis()});
+            uncommittedRows.addAndGet(rows);
+            return offset;
+        }
+
+        void commit(long offset) {
+            committed.accumulateAndGet(offset, Math::max);
+            // Continue after offsets committed by an earlier run of the channel
+            issued.accumulateAndGet(offset, Math::max);
+
+            Map.Entry<Long, long[]> entry;
+            while ((entry = uncommitted.firstEntry()) != null && entry.getKey() <= offset) {
+                // Only the caller that removes the entry subtracts its rows
+                if (uncommitted.remove(entry.getKey(), entry.getValue())) {
+                    uncommittedRows.addAndGet(-entry.getValue()[0]);
+                }
+            }
+        }
+
+        void commitIssued() {
+            commit(issued.get());
+        }
+
+        /**
+         * Continues after the offsets issued before the channel was opened, including the ones persisted by an
+         * earlier run of the service. Those Snowflake has not committed by now are lost, reopening the channel
+         * dropped their rows, so they are never taken as committed once later offsets are.
+         */
+        synchronized void open(long committedOffset, long recoveredOffset) {
+            commit(committedOffset);
+            issued.accumulateAndGet(recoveredOffset, Math::max);
+            final long first = committed.get();
+            final long last = issued.get();
+            if (last > first) {
+                lost.merge(first, last, Math::max);
+            }
+            lostUpTo = 0;
+            dropUncommitted();
+        }
+
+        long getUncommittedRows() {
+            return uncommittedRows.get();
+        }
+
+        long getOldestUncommitted() {
+            final Map.Entry<Long, long[]> entry = uncommitted.firstEntry();
+            return entry == null ? Long.MAX_VALUE : entry.getValue()[1];
+        }
+
+        boolean hasUncommitted() {
+            return !uncommitted.isEmpty();
+        }
+
+        /**
+         * Drops the uncommitted offsets of an invalidated channel. The offsets of the reopened channel continue
+         * after them, so they can still be told apart.
+         */
+        void invalidate() {
+            lostUpTo = issued.get();
+            dropUncommitted();
+        }
+
+        private void dropUncommitted() {
+            Map.Entry<Long, long[]> entry;
+            while ((entry = uncommitted.pollFirstEntry()) != null) {
+                uncommittedRows.addAndGet(-entry.getValue()[0]);
+            }
+        }
+
+        boolean isCommitted(long offset) {
+            return offset <= committed.get() && !isReopenedAfter(offset);
+        }
+
+        /**
+         * Returns true if the offset was lost, either when the channel was reopened or, until then, when it was invalidated.
+         */
+        boolean isLost(long offset) {
+            return isReopenedAfter(offset) || (offset <= lostUpTo && offset > committed.get());
+        }
+
+        private boolean isReopenedAfter(long offset) {
+            final Map.Entry<Long, Long> range = lost.lowerEntry(offset);
+            return range != null && offset <= range.getValue();
+        }
     }
 }
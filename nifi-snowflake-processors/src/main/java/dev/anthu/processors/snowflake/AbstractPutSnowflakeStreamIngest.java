@@ -0,0 +1,380 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dev.anthu.processors.snowflake;
+
+import dev.anthu.controllers.snowflake.SnowflakeIngestController;
+import net.snowflake.ingest.streaming.SnowflakeStreamingIngestChannel;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.processor.AbstractSessionFactoryProcessor;
+import org.apache.nifi.processor.DataUnit;
+import org.apache.nifi.processor.FlowFileFilter;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessSessionFactory;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.FlowFileFilters;
+import org.apache.nifi.schema.access.SchemaNotFoundException;
+import org.apache.nifi.serialization.MalformedRecordException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Ingestion shared by the processors writing to Snowflake streams: FlowFiles are read into rows by the
+ * {@link RowProducer} of the processor, batched per table and channel, and routed once the rows are inserted.
+ * Delivery guarantees, throttling, insert threads, unknown columns and metrics are handled here for all of them.
+ */
+public abstract class AbstractPutSnowflakeStreamIngest extends AbstractSessionFactoryProcessor {
+
+    public static final Relationship REL_SUCCESS = new Relationship.Builder()
+            .name("success")
+            .description("A FlowFile is routed to this relationship when everything goes well here")
+            .build();
+
+    public static final Relationship REL_FAILURE = new Relationship.Builder()
+            .name("failure")
+            .description("A FlowFile is routed to this relationship it can not be parsed or a problem happens")
+            .build();
+
+    private SnowflakeIngestController snowflakeController;
+    private RowProducer rowProducer;
+
+    private String channelName;
+    private IngestionTimestamp ingestionTimestamp;
+    private int batchSize;
+    private FlowFileFilter flowFileFilter;
+    private boolean waitForCommit;
+    private long commitTimeout;
+    private final IngestMetrics metrics = new IngestMetrics();
+    private final CommitTracker commitTracker = new CommitTracker(metrics);
+    private volatile IngestThrottle throttle;
+    // Insert threads by concurrent task, every execution takes the lanes of one task so that tasks never wait for each other
+    private final Queue<ExecutorService[]> insertLanes = new ConcurrentLinkedQueue<>();
+    private volatile List<ExecutorService> insertThreads = new ArrayList<>();
+    private final AtomicInteger nextLane = new AtomicInteger();
+
+    @OnScheduled
+    public void onScheduled(final ProcessContext context) {
+        snowflakeController = context.getProperty(SnowflakeDefaultProperties.SNOWFLAKE_SERVICE).asControllerService(SnowflakeIngestController.class);
+        channelName = context.getProperty(SnowflakeDefaultProperties.SNOWFLAKE_STREAMING_CHANNEL).getValue();
+        batchSize = context.getProperty(SnowflakeDefaultProperties.SNOWFLAKE_BATCH_SIZE).asInteger();
+        final int lanesPerTask = context.getProperty(SnowflakeDefaultProperties.SNOWFLAKE_INSERT_THREADS).asInteger();
+        final List<ExecutorService> threads = new ArrayList<>();
+        insertLanes.clear();
+        for (int task = 0; lanesPerTask > 0 && task < context.getMaxConcurrentTasks(); task++) {
+            final ExecutorService[] lanes = new ExecutorService[lanesPerTask];
+            for (int i = 0; i < lanes.length; i++) {
+                final String threadName = getClass().getSimpleName() + "[" + getIdentifier() + "] Insert Thread " + task + "-" + i;
+                lanes[i] = Executors.newSingleThreadExecutor(runnable -> {
+                    final Thread thread = new Thread(runnable, threadName);
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                threads.add(lanes[i]);
+            }
+            insertLanes.add(lanes);
+        }
+        insertThreads = threads;
+        flowFileFilter = FlowFileFilters.newSizeBasedFilter(
+                context.getProperty(SnowflakeDefaultProperties.SNOWFLAKE_MAX_BATCH_BYTES).asDataSize(DataUnit.B),
+                DataUnit.B,
+                context.getProperty(SnowflakeDefaultProperties.SNOWFLAKE_MAX_FLOWFILES).asInteger());
+        waitForCommit = SnowflakeDefaultProperties.DELIVERY_AT_LEAST_ONCE.getValue()
+                .equals(context.getProperty(SnowflakeDefaultProperties.SNOWFLAKE_DELIVERY_GUARANTEE).getValue());
+        commitTimeout = context.getProperty(SnowflakeDefaultProperties.SNOWFLAKE_COMMIT_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS);
+        throttle = new IngestThrottle(
+                context.getProperty(SnowflakeDefaultProperties.SNOWFLAKE_UNCOMMITTED_ROWS_HIGH_WATER_MARK).asLong(),
+                context.getProperty(SnowflakeDefaultProperties.SNOWFLAKE_UNCOMMITTED_ROWS_LOW_WATER_MARK).asLong(),
+                context.getProperty(SnowflakeDefaultProperties.SNOWFLAKE_COMMIT_LAG_HIGH_WATER_MARK).asTimePeriod(TimeUnit.MILLISECONDS),
+                context.getProperty(SnowflakeDefaultProperties.SNOWFLAKE_COMMIT_LAG_LOW_WATER_MARK).asTimePeriod(TimeUnit.MILLISECONDS));
+        ingestionTimestamp = Boolean.parseBoolean(context.getProperty(SnowflakeDefaultProperties.SNOWFLAKE_ADD_INGESTION_TIMESTAMP).getValue())
+                ? new IngestionTimestamp(
+                        // Quote column if not all-uppercase
+                        ColumnPlan.optionallyQuoteColumnName(context.getProperty(SnowflakeDefaultProperties.SNOWFLAKE_INGESTION_TIMESTAMP_COLUMN).getValue()),
+                        getTimestampGranularity(context.getProperty(SnowflakeDefaultProperties.SNOWFLAKE_INGESTION_TIMESTAMP_GRANULARITY).getValue()),
+                        IngestionTimestamp.Type.valueOf(context.getProperty(SnowflakeDefaultProperties.SNOWFLAKE_INGESTION_TIMESTAMP_TYPE).getValue()))
+                : IngestionTimestamp.NONE;
+        rowProducer = createRowProducer(context, ingestionTimestamp);
+    }
+
+    private static IngestionTimestamp.Granularity getTimestampGranularity(String value) {
+        if (SnowflakeDefaultProperties.TIMESTAMP_PER_BATCH.getValue().equals(value)) {
+            return IngestionTimestamp.Granularity.BATCH;
+        } else if (SnowflakeDefaultProperties.TIMESTAMP_PER_FLOWFILE.getValue().equals(value)) {
+            return IngestionTimestamp.Granularity.FLOWFILE;
+        } else if (SnowflakeDefaultProperties.TIMESTAMP_SERVER_DEFAULT.getValue().equals(value)) {
+            return IngestionTimestamp.Granularity.SERVER_DEFAULT;
+        }
+        return IngestionTimestamp.Granularity.ROW;
+    }
+
+    /**
+     * Creates the producer of the rows of this processor, called whenever the processor is scheduled.
+     *
+     * @param timestamp ingestion timestamp written to the rows, {@link IngestionTimestamp#NONE} if there is none
+     */
+    abstract RowProducer createRowProducer(ProcessContext context, IngestionTimestamp timestamp);
+
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext validationContext) {
+        return SnowflakeDefaultProperties.validateWaterMarks(validationContext);
+    }
+
+    @Override
+    public Set<Relationship> getRelationships() {
+        final Set<Relationship> relationships = new HashSet<>();
+        relationships.add(REL_SUCCESS);
+        relationships.add(REL_FAILURE);
+        return relationships;
+    }
+
+    @Override
+    public void onTrigger(final ProcessContext context, final ProcessSessionFactory sessionFactory) {
+        try {
+            ingestAndRoute(context, sessionFactory);
+        } finally {
+            metrics.report(sessionFactory);
+        }
+    }
+
+    private void ingestAndRoute(final ProcessContext context, final ProcessSessionFactory sessionFactory) {
+        if (waitForCommit) {
+            commitTracker.release(snowflakeController, commitTimeout, getLogger());
+        }
+
+        if (throttle.isThrottled(snowflakeController, getLogger())) {
+            // Leave the FlowFiles queued rather than blocking this thread in the SDK
+            context.yield();
+            return;
+        }
+
+        final ProcessSession session = sessionFactory.createSession();
+        final TableBatches batches;
+        try {
+            batches = ingest(context, session);
+        } catch (final Throwable t) {
+            session.rollback(true);
+            throw t;
+        }
+
+        if (batches == null) {
+            session.commitAsync();
+            // Nothing to ingest, back off rather than spinning on an empty queue or on held FlowFiles
+            context.yield();
+            return;
+        }
+
+        if (!waitForCommit) {
+            session.commitAsync();
+            return;
+        }
+
+        final Map<SnowflakeStreamingIngestChannel, Long> offsets = batches.getLastOffsets();
+        final Set<String> flowFileUuids = batches.getTrackedFlowFiles();
+        if (offsets.isEmpty()) {
+            // Nothing was inserted, all records were committed by an earlier attempt or failed
+            session.commitAsync(() -> snowflakeController.releaseProgress(flowFileUuids));
+        } else {
+            snowflakeController.saveProgress(batches.getProgress());
+            commitTracker.hold(session, offsets, flowFileUuids);
+        }
+    }
+
+    private TableBatches ingest(final ProcessContext context, final ProcessSession session) {
+        final List<FlowFile> flowFiles = session.get(flowFileFilter);
+        if (flowFiles.isEmpty()) {
+            return null;
+        }
+
+        final RowProducer producer = rowProducer;
+        final IngestionTimestamp timestamp = ingestionTimestamp;
+        final String unknownColumnHandling = producer.getUnknownColumnHandling();
+        final boolean passThrough = SnowflakeDefaultProperties.UNKNOWN_COLUMNS_PASS_THROUGH.getValue().equals(unknownColumnHandling);
+        final Map<String, Long> committedRecordIndexes = waitForCommit
+                ? snowflakeController.getCommittedRecordIndexes(getUuids(flowFiles))
+                : Collections.emptyMap();
+        // None left only without insert threads, there are as many sets of lanes as concurrent tasks
+        final ExecutorService[] lanes = insertLanes.poll();
+        final TableBatches batches = new TableBatches(snowflakeController, channelName, batchSize, getLogger(), metrics,
+                lanes == null ? new ExecutorService[0] : lanes, nextLane);
+        final Map<FlowFile, RowBatch> ingested = new HashMap<>();
+        boolean flushed = false;
+
+        try {
+            for (FlowFile flowFile : flowFiles) {
+                final String database = context.getProperty(SnowflakeDefaultProperties.SNOWFLAKE_DATABASE).evaluateAttributeExpressions(flowFile).getValue();
+                final String schema = context.getProperty(SnowflakeDefaultProperties.SNOWFLAKE_SCHEMA).evaluateAttributeExpressions(flowFile).getValue();
+                final String table = context.getProperty(SnowflakeDefaultProperties.SNOWFLAKE_TABLE).evaluateAttributeExpressions(flowFile).getValue();
+                final Set<String> tableColumns = passThrough ? null : snowflakeController.getColumns(database, schema, table);
+                Map<String, String> unknownColumns = null;
+                RowBatch target = null;
+
+                try (final InputStream in = session.read(flowFile);
+                     final RowSource rows = producer.open(flowFile, in, tableColumns)
+                ) {
+                    if (!rows.getUnknownColumns().isEmpty()
+                            && !SnowflakeDefaultProperties.UNKNOWN_COLUMNS_IGNORE.getValue().equals(unknownColumnHandling)) {
+                        // Handled once the FlowFile is no longer read
+                        unknownColumns = rows.getUnknownColumns();
+                        continue;
+                    }
+
+                    final RowBatch batch = batches.get(database, schema, table);
+                    target = batch;
+                    final long committedRecordIndex = committedRecordIndexes.getOrDefault(flowFile.getAttribute(CoreAttributes.UUID.key()), -1L);
+                    if (waitForCommit) {
+                        batch.track(flowFile, committedRecordIndex);
+                    }
+                    final Object flowFileTimestamp = timestamp.forFlowFile();
+                    long recordIndex = 0;
+                    while (rows.next()) {
+                        if (recordIndex <= committedRecordIndex) {
+                            // Committed by an earlier attempt
+                            recordIndex++;
+                            continue;
+                        }
+                        batch.add(flowFile, recordIndex++, rows.row(batch.reusableRow(), timestamp.forRow(batch, flowFileTimestamp)));
+                    }
+                    ingested.put(flowFile, batch);
+                } catch (SchemaNotFoundException e) {
+                    getLogger().error("Failed to deserialize {}", flowFile, e);
+                    session.transfer(flowFile, REL_FAILURE);
+                } catch (ProcessException e) {
+                    // Failures of a channel or an insert thread concern all FlowFiles of the execution
+                    throw e;
+                } catch (IOException | MalformedRecordException | RuntimeException e) {
+                    // Values a converter cannot handle only fail their FlowFile
+                    getLogger().error("Failed write record {}", flowFile, e);
+                    if (target != null) {
+                        // Records read before the failure must not be inserted once the FlowFile is routed to failure
+                        target.discard(flowFile);
+                    }
+                    session.transfer(flowFile, REL_FAILURE);
+                } finally {
+                    if (unknownColumns != null) {
+                        handleUnknownColumns(session, flowFile, database, schema, table, unknownColumns, unknownColumnHandling);
+                    }
+                }
+            }
+            batches.flush();
+            flushed = true;
+        } finally {
+            // Inserts still running on the insert threads must not outlive a failed execution
+            batches.drain();
+            batches.returnChannels();
+            if (lanes != null) {
+                insertLanes.add(lanes);
+            }
+            if (!flushed && waitForCommit) {
+                // The session is rolled back, rows inserted so far are skipped once its FlowFiles are ingested again
+                snowflakeController.saveProgress(batches.getProgress());
+            }
+        }
+
+        final Set<RowBatch> rejecting = new HashSet<>();
+        for (Map.Entry<FlowFile, RowBatch> entry : ingested.entrySet()) {
+            entry.getValue().getMetrics().recordIngested(entry.getKey().getSize());
+            final FlowFile flowFile = entry.getKey();
+            if (entry.getValue().isFailed(flowFile)) {
+                rejecting.add(entry.getValue());
+            }
+            final Map<Long, String> rejected = entry.getValue().getRejectedRecords(flowFile);
+            final FlowFile failed = rejected.isEmpty() ? null : producer.writeRejected(session, flowFile, rejected);
+            final FlowFile accepted = failed == null ? null : producer.writeAccepted(session, flowFile, rejected);
+            if (accepted != null) {
+                // The records of the original FlowFile are split between its children
+                session.transfer(failed, REL_FAILURE);
+                if ("0".equals(accepted.getAttribute("record.count"))) {
+                    session.remove(accepted);
+                } else {
+                    session.transfer(accepted, REL_SUCCESS);
+                }
+                session.remove(flowFile);
+            } else if (entry.getValue().isFailed(flowFile)) {
+                if (failed != null) {
+                    session.remove(failed);
+                }
+                session.transfer(flowFile, REL_FAILURE);
+            } else {
+                session.transfer(flowFile, REL_SUCCESS);
+            }
+        }
+        if (!passThrough) {
+            // Rows may have been rejected because the cached columns are outdated
+            for (RowBatch batch : rejecting) {
+                final SnowflakeStreamingIngestChannel channel = batch.getChannel();
+                snowflakeController.refreshColumns(channel.getDBName(), channel.getSchemaName(), channel.getTableName());
+            }
+        }
+        return batches;
+    }
+
+    private static List<String> getUuids(List<FlowFile> flowFiles) {
+        final List<String> uuids = new ArrayList<>(flowFiles.size());
+        for (FlowFile flowFile : flowFiles) {
+            uuids.add(flowFile.getAttribute(CoreAttributes.UUID.key()));
+        }
+        return uuids;
+    }
+
+    private void handleUnknownColumns(ProcessSession session, FlowFile flowFile, String database, String schema, String table,
+                                      Map<String, String> unknownColumns, String unknownColumnHandling) {
+        if (SnowflakeDefaultProperties.UNKNOWN_COLUMNS_FAIL.getValue().equals(unknownColumnHandling)) {
+            getLogger().error("Table {}.{}.{} has no columns {} for fields of {}", database, schema, table, unknownColumns.keySet(), flowFile);
+            session.transfer(flowFile, REL_FAILURE);
+            return;
+        }
+        try {
+            snowflakeController.addColumns(database, schema, table, unknownColumns);
+            // Ingested by a later execution, once the channels of the table accept the new columns
+            session.transfer(flowFile);
+        } catch (ProcessException e) {
+            getLogger().error("Failed to add columns {} for fields of {}", unknownColumns.keySet(), flowFile, e);
+            session.transfer(flowFile, REL_FAILURE);
+        }
+    }
+
+    @OnStopped
+    public void onStopped() {
+        // Commit what Snowflake has already committed, the remaining FlowFiles go back to the queue
+        commitTracker.release(snowflakeController, commitTimeout, getLogger());
+        commitTracker.rollbackAll();
+        for (ExecutorService thread : insertThreads) {
+            thread.shutdown();
+        }
+    }
+}
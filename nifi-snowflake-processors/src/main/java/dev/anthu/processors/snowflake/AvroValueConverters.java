@@ -0,0 +1,257 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dev.anthu.processors.snowflake;
+
+import org.apache.avro.LogicalType;
+import org.apache.avro.LogicalTypes;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericFixed;
+import org.apache.avro.generic.GenericRecord;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converters from the values of Avro generic records to types the Snowflake Ingest SDK accepts, chosen once per field
+ * from its schema, with the same results as {@link ValueConverters} for the NiFi records of the same data. Converted
+ * values never refer to the record they were read from, as the decoder reuses it for the next one.
+ */
+final class AvroValueConverters {
+
+    private AvroValueConverters() {
+    }
+
+    /**
+     * Returns the converter for the values of a column of the given schema.
+     */
+    static ColumnPlan.ValueConverter forSchema(Schema schema) {
+        return forSchema(schema, false);
+    }
+
+    private static ColumnPlan.ValueConverter forSchema(Schema schema, boolean nested) {
+        final LogicalType logicalType = schema.getLogicalType();
+        if (logicalType != null) {
+            switch (logicalType.getName()) {
+                case "date":
+                    return nested
+                            ? value -> value == null ? null : LocalDate.ofEpochDay((Integer) value).toString()
+                            : value -> value == null ? null : LocalDate.ofEpochDay((Integer) value);
+                case "time-millis":
+                    return nested
+                            ? value -> value == null ? null : LocalTime.ofNanoOfDay((Integer) value * 1_000_000L).toString()
+                            : value -> value == null ? null : LocalTime.ofNanoOfDay((Integer) value * 1_000_000L);
+                case "time-micros":
+                    return nested
+                            ? value -> value == null ? null : LocalTime.ofNanoOfDay((Long) value * 1_000L).toString()
+                            : value -> value == null ? null : LocalTime.ofNanoOfDay((Long) value * 1_000L);
+                case "timestamp-millis":
+                    return nested
+                            ? value -> value == null ? null : toLocalDateTime(Instant.ofEpochMilli((Long) value)).toString()
+                            : value -> value == null ? null : toLocalDateTime(Instant.ofEpochMilli((Long) value));
+                case "timestamp-micros":
+                    return nested
+                            ? value -> value == null ? null : toLocalDateTime(ofEpochMicros((Long) value)).toString()
+                            : value -> value == null ? null : toLocalDateTime(ofEpochMicros((Long) value));
+                case "decimal":
+                    final int scale = ((LogicalTypes.Decimal) logicalType).getScale();
+                    return value -> value == null ? null : new BigDecimal(new BigInteger(toBytes(value)), scale);
+                default:
+                    break;
+            }
+        }
+
+        switch (schema.getType()) {
+            case STRING:
+            case ENUM:
+                // Utf8 instances are reused by the decoder
+                return value -> value == null ? null : value.toString();
+            case BYTES:
+            case FIXED:
+                return value -> value == null ? null : toBytes(value);
+            case UNION:
+                return forUnion(schema, nested);
+            case ARRAY:
+                return forArray(schema.getElementType());
+            case MAP:
+                return forMap(schema.getValueType());
+            case RECORD:
+                return forRecord(schema);
+            default:
+                return ValueConverters.IDENTITY;
+        }
+    }
+
+    private static ColumnPlan.ValueConverter forUnion(Schema schema, boolean nested) {
+        final List<Schema> types = schema.getTypes();
+        final ColumnPlan.ValueConverter[] converters = new ColumnPlan.ValueConverter[types.size()];
+        Schema single = null;
+        for (int i = 0; i < types.size(); i++) {
+            converters[i] = forSchema(types.get(i), nested);
+            if (types.get(i).getType() != Schema.Type.NULL) {
+                single = single == null ? types.get(i) : schema;
+            }
+        }
+        if (single == null) {
+            return ValueConverters.IDENTITY;
+        } else if (single != schema) {
+            // Nullable field, null values pass every converter
+            return forSchema(single, nested);
+        }
+        return value -> value == null ? null : converters[GenericData.get().resolveUnion(schema, value)].convert(value);
+    }
+
+    private static ColumnPlan.ValueConverter forArray(Schema elementSchema) {
+        final ColumnPlan.ValueConverter elementConverter = forSchema(elementSchema, true);
+        return value -> {
+            if (value == null) {
+                return null;
+            }
+            final Collection<?> elements = (Collection<?>) value;
+            final List<Object> list = new ArrayList<>(elements.size());
+            for (Object element : elements) {
+                list.add(elementConverter.convert(element));
+            }
+            return list;
+        };
+    }
+
+    private static ColumnPlan.ValueConverter forMap(Schema valueSchema) {
+        final ColumnPlan.ValueConverter valueConverter = forSchema(valueSchema, true);
+        return value -> {
+            if (value == null) {
+                return null;
+            }
+            final Map<?, ?> entries = (Map<?, ?>) value;
+            final Map<String, Object> map = new LinkedHashMap<>(entries.size() * 2);
+            for (Map.Entry<?, ?> entry : entries.entrySet()) {
+                map.put(entry.getKey().toString(), valueConverter.convert(entry.getValue()));
+            }
+            return map;
+        };
+    }
+
+    private static ColumnPlan.ValueConverter forRecord(Schema schema) {
+        final List<Schema.Field> fields = schema.getFields();
+        final String[] fieldNames = new String[fields.size()];
+        final ColumnPlan.ValueConverter[] fieldConverters = new ColumnPlan.ValueConverter[fields.size()];
+        for (int i = 0; i < fields.size(); i++) {
+            fieldNames[i] = fields.get(i).name();
+            fieldConverters[i] = forSchema(fields.get(i).schema(), true);
+        }
+        return value -> {
+            if (value == null) {
+                return null;
+            }
+            final GenericRecord record = (GenericRecord) value;
+            final Map<String, Object> map = new LinkedHashMap<>(fieldNames.length * 2);
+            for (int i = 0; i < fieldNames.length; i++) {
+                map.put(fieldNames[i], fieldConverters[i].convert(record.get(i)));
+            }
+            return map;
+        };
+    }
+
+    /**
+     * Returns the Snowflake data type a column for values of the given schema is created with.
+     */
+    static String snowflakeTypeOf(Schema schema) {
+        final LogicalType logicalType = schema.getLogicalType();
+        if (logicalType != null) {
+            switch (logicalType.getName()) {
+                case "date":
+                    return "DATE";
+                case "time-millis":
+                case "time-micros":
+                    return "TIME";
+                case "timestamp-millis":
+                case "timestamp-micros":
+                    return "TIMESTAMP_NTZ";
+                case "decimal":
+                    final LogicalTypes.Decimal decimal = (LogicalTypes.Decimal) logicalType;
+                    return "NUMBER(" + decimal.getPrecision() + ", " + decimal.getScale() + ")";
+                default:
+                    break;
+            }
+        }
+
+        switch (schema.getType()) {
+            case BOOLEAN:
+                return "BOOLEAN";
+            case INT:
+            case LONG:
+                return "NUMBER(38, 0)";
+            case FLOAT:
+            case DOUBLE:
+                return "FLOAT";
+            case BYTES:
+            case FIXED:
+                return "BINARY";
+            case ARRAY:
+                return "ARRAY";
+            case MAP:
+            case RECORD:
+                return "OBJECT";
+            case UNION:
+                Schema single = null;
+                for (Schema type : schema.getTypes()) {
+                    if (type.getType() != Schema.Type.NULL) {
+                        if (single != null) {
+                            return "VARIANT";
+                        }
+                        single = type;
+                    }
+                }
+                return single == null ? "VARIANT" : snowflakeTypeOf(single);
+            case NULL:
+                return "VARIANT";
+            default:
+                return "VARCHAR";
+        }
+    }
+
+    private static LocalDateTime toLocalDateTime(Instant instant) {
+        // Same wall-clock time as java.sql.Timestamp#toLocalDateTime on the records of the Avro Record Reader
+        return LocalDateTime.ofInstant(instant, ZoneId.systemDefault());
+    }
+
+    private static Instant ofEpochMicros(long micros) {
+        return Instant.ofEpochSecond(Math.floorDiv(micros, 1_000_000L), Math.floorMod(micros, 1_000_000L) * 1_000L);
+    }
+
+    private static byte[] toBytes(Object value) {
+        if (value instanceof GenericFixed) {
+            return ((GenericFixed) value).bytes().clone();
+        }
+        // Read without moving the position of the buffer, which the decoder may reuse
+        final ByteBuffer buffer = ((ByteBuffer) value).duplicate();
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
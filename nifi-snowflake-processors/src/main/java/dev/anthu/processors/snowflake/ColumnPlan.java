@@ -0,0 +1,255 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dev.anthu.processors.snowflake;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.nifi.serialization.record.DataType;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.apache.nifi.serialization.record.type.ArrayDataType;
+import org.apache.nifi.serialization.record.type.DecimalDataType;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Mapping of a record schema to the target columns, computed once per schema so that building a row
+ * does not have to quote column names or inspect field types for every record.
+ */
+final class ColumnPlan {
+
+    private final String[] fieldNames;
+    private final int[] fieldPositions;
+    private final ValueConverter[] converters;
+    private final String[] columnNames;
+    private final Map<String, Integer> columnIndices;
+    private final int timestampIndex;
+    private final Map<String, String> unknownColumns = new LinkedHashMap<>();
+
+    /**
+     * @param timestampColumn quoted ingestion timestamp column, or null if no timestamp is written. It replaces
+     *                        any field mapping to the same column.
+     */
+    ColumnPlan(RecordSchema schema, String timestampColumn) {
+        this(schema, timestampColumn, null);
+    }
+
+    /**
+     * @param tableColumns column names of the target table as stored by Snowflake, or null if unknown. Fields without
+     *                     a column are left out and reported by {@link #getUnknownColumns()}.
+     */
+    ColumnPlan(RecordSchema schema, String timestampColumn, Set<String> tableColumns) {
+        this(recordFields(schema), timestampColumn, true, tableColumns);
+    }
+
+    /**
+     * Plan for Avro generic records, which are read by field position.
+     */
+    ColumnPlan(Schema avroSchema, String timestampColumn, Set<String> tableColumns) {
+        this(avroFields(avroSchema), timestampColumn, true, tableColumns);
+    }
+
+    /**
+     * @param timestampWritten false to leave the timestamp column out of the rows, along with any field mapping to it,
+     *                         so that the column default of the table fills it
+     */
+    ColumnPlan(RecordSchema schema, String timestampColumn, boolean timestampWritten, Set<String> tableColumns) {
+        this(recordFields(schema), timestampColumn, timestampWritten, tableColumns);
+    }
+
+    ColumnPlan(Schema avroSchema, String timestampColumn, boolean timestampWritten, Set<String> tableColumns) {
+        this(avroFields(avroSchema), timestampColumn, timestampWritten, tableColumns);
+    }
+
+    private ColumnPlan(List<SourceField> sourceFields, String timestampColumn, boolean timestampWritten, Set<String> tableColumns) {
+        final List<SourceField> fields = new ArrayList<>(sourceFields.size());
+        for (SourceField field : sourceFields) {
+            final String columnName = optionallyQuoteColumnName(field.name);
+            if (columnName.equals(timestampColumn)) {
+                continue;
+            }
+            // Quoted identifiers are stored as they are, unquoted ones in uppercase, so both match the field name
+            if (tableColumns != null && !tableColumns.contains(field.name)) {
+                unknownColumns.put(columnName, field.snowflakeType);
+            } else {
+                fields.add(field);
+            }
+        }
+
+        final int width = fields.size() + (timestampColumn == null || !timestampWritten ? 0 : 1);
+        fieldNames = new String[fields.size()];
+        fieldPositions = new int[fields.size()];
+        converters = new ValueConverter[fields.size()];
+        columnNames = new String[width];
+        columnIndices = new LinkedHashMap<>(width * 2);
+        for (int i = 0; i < fields.size(); i++) {
+            final SourceField field = fields.get(i);
+            fieldNames[i] = field.name;
+            fieldPositions[i] = field.position;
+            converters[i] = field.converter;
+            columnNames[i] = optionallyQuoteColumnName(field.name);
+            columnIndices.put(columnNames[i], i);
+        }
+
+        if (timestampColumn == null || !timestampWritten) {
+            timestampIndex = -1;
+        } else {
+            timestampIndex = width - 1;
+            columnNames[timestampIndex] = timestampColumn;
+            columnIndices.put(timestampColumn, timestampIndex);
+        }
+    }
+
+    private static List<SourceField> recordFields(RecordSchema schema) {
+        final List<SourceField> fields = new ArrayList<>(schema.getFieldCount());
+        for (int i = 0; i < schema.getFieldCount(); i++) {
+            final RecordField field = schema.getField(i);
+            fields.add(new SourceField(field.getFieldName(), i, ValueConverters.forType(field.getDataType()), snowflakeTypeOf(field.getDataType())));
+        }
+        return fields;
+    }
+
+    private static List<SourceField> avroFields(Schema schema) {
+        final List<SourceField> fields = new ArrayList<>(schema.getFields().size());
+        for (Schema.Field field : schema.getFields()) {
+            fields.add(new SourceField(field.name(), field.pos(), AvroValueConverters.forSchema(field.schema()),
+                    AvroValueConverters.snowflakeTypeOf(field.schema())));
+        }
+        return fields;
+    }
+
+    /**
+     * Writes the converted values of the record, and the timestamp if configured, into the row.
+     */
+    void fill(ColumnRow row, Record record, Object timestamp) {
+        final Object[] values = row.valueArray();
+        for (int i = 0; i < fieldNames.length; i++) {
+            values[i] = converters[i].convert(record.getValue(fieldNames[i]));
+        }
+        if (timestampIndex >= 0) {
+            values[timestampIndex] = timestamp;
+        }
+    }
+
+    /**
+     * Writes the converted values of the Avro record, which must have the schema of the plan, and the timestamp
+     * if configured, into the row.
+     */
+    void fill(ColumnRow row, GenericRecord record, Object timestamp) {
+        final Object[] values = row.valueArray();
+        for (int i = 0; i < fieldPositions.length; i++) {
+            values[i] = converters[i].convert(record.get(fieldPositions[i]));
+        }
+        if (timestampIndex >= 0) {
+            values[timestampIndex] = timestamp;
+        }
+    }
+
+    int getWidth() {
+        return columnNames.length;
+    }
+
+    String getColumnName(int index) {
+        return columnNames[index];
+    }
+
+    int indexOf(Object columnName) {
+        final Integer index = columnIndices.get(columnName);
+        return index == null ? -1 : index;
+    }
+
+    Set<String> getColumnNames() {
+        return Collections.unmodifiableSet(columnIndices.keySet());
+    }
+
+    /**
+     * Returns the Snowflake data types of the fields without a column in the target table, by quoted column name.
+     */
+    Map<String, String> getUnknownColumns() {
+        return Collections.unmodifiableMap(unknownColumns);
+    }
+
+    /**
+     * Returns the Snowflake data type a column for values of the given type is created with.
+     */
+    static String snowflakeTypeOf(DataType dataType) {
+        switch (dataType.getFieldType()) {
+            case BOOLEAN:
+                return "BOOLEAN";
+            case BYTE:
+            case SHORT:
+            case INT:
+            case LONG:
+            case BIGINT:
+                return "NUMBER(38, 0)";
+            case DECIMAL:
+                final DecimalDataType decimal = (DecimalDataType) dataType;
+                return "NUMBER(" + decimal.getPrecision() + ", " + decimal.getScale() + ")";
+            case FLOAT:
+            case DOUBLE:
+                return "FLOAT";
+            case DATE:
+                return "DATE";
+            case TIME:
+                return "TIME";
+            case TIMESTAMP:
+                return "TIMESTAMP_NTZ";
+            case ARRAY:
+                return ((ArrayDataType) dataType).getElementType().getFieldType() == RecordFieldType.BYTE ? "BINARY" : "ARRAY";
+            case RECORD:
+            case MAP:
+                return "OBJECT";
+            case CHOICE:
+                return "VARIANT";
+            default:
+                return "VARCHAR";
+        }
+    }
+
+    static String optionallyQuoteColumnName(String columnName) {
+        if (columnName.equals(columnName.toUpperCase())) {
+            return columnName;
+        }
+        // Embedded quotes are doubled, as in SQL, and unescaped again by the SDK
+        return '"' + columnName.replace("\"", "\"\"") + '"';
+    }
+
+    private static final class SourceField {
+        private final String name;
+        private final int position;
+        private final ValueConverter converter;
+        private final String snowflakeType;
+
+        SourceField(String name, int position, ValueConverter converter, String snowflakeType) {
+            this.name = name;
+            this.position = position;
+            this.converter = converter;
+            this.snowflakeType = snowflakeType;
+        }
+    }
+
+    interface ValueConverter {
+        Object convert(Object value);
+    }
+}
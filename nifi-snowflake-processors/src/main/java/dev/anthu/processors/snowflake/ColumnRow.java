@@ -0,0 +1,155 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dev.anthu.processors.snowflake;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Row map backed by a value array laid out according to a {@link ColumnPlan}. Rows are reused across batches,
+ * so filling a row does not allocate anything besides the values themselves. The entry iterator reuses a single
+ * entry, which is only valid until the next call of {@code next()}.
+ */
+final class ColumnRow extends AbstractMap<String, Object> {
+
+    private final ColumnPlan plan;
+    private final Object[] values;
+    private final Set<Entry<String, Object>> entrySet = new EntrySet();
+
+    ColumnRow(ColumnPlan plan) {
+        this.plan = plan;
+        this.values = new Object[plan.getWidth()];
+    }
+
+    /**
+     * Returns the candidate if it is a row of the same plan, or a new row otherwise.
+     */
+    static ColumnRow reuse(Map<String, Object> candidate, ColumnPlan plan) {
+        if (candidate instanceof ColumnRow && ((ColumnRow) candidate).plan == plan) {
+            return (ColumnRow) candidate;
+        }
+        return new ColumnRow(plan);
+    }
+
+    Object[] valueArray() {
+        return values;
+    }
+
+    @Override
+    public int size() {
+        return values.length;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return plan.indexOf(key) >= 0;
+    }
+
+    @Override
+    public Object get(Object key) {
+        final int index = plan.indexOf(key);
+        return index < 0 ? null : values[index];
+    }
+
+    @Override
+    public Set<String> keySet() {
+        return plan.getColumnNames();
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return entrySet;
+    }
+
+    private final class EntrySet extends AbstractSet<Entry<String, Object>> {
+
+        @Override
+        public int size() {
+            return values.length;
+        }
+
+        @Override
+        public Iterator<Entry<String, Object>> iterator() {
+            return new Iterator<Entry<String, Object>>() {
+                private final ColumnEntry entry = new ColumnEntry();
+                private int next;
+
+                @Override
+                public boolean hasNext() {
+                    return next < values.length;
+                }
+
+                @Override
+                public Entry<String, Object> next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    entry.index = next++;
+                    return entry;
+                }
+            };
+        }
+    }
+
+    /**
+     * Entry of the column an iterator is at, moved along instead of allocating an entry per column.
+     */
+    private final class ColumnEntry implements Entry<String, Object> {
+        private int index;
+
+        @Override
+        public String getKey() {
+            return plan.getColumnName(index);
+        }
+
+        @Override
+        public Object getValue() {
+            return values[index];
+        }
+
+        @Override
+        public Object setValue(Object value) {
+            final Object previous = values[index];
+            values[index] = value;
+            return previous;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Entry)) {
+                return false;
+            }
+            final Entry<?, ?> entry = (Entry<?, ?>) other;
+            return Objects.equals(getKey(), entry.getKey()) && Objects.equals(getValue(), entry.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(getKey()) ^ Objects.hashCode(getValue());
+        }
+
+        @Override
+        public String toString() {
+            return getKey() + "=" + getValue();
+        }
+    }
+}
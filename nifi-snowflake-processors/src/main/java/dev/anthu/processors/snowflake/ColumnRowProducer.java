@@ -0,0 +1,155 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dev.anthu.processors.snowflake;
+
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileStream;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.schema.access.SchemaNotFoundException;
+import org.apache.nifi.serialization.MalformedRecordException;
+import org.apache.nifi.serialization.RecordReader;
+import org.apache.nifi.serialization.RecordReaderFactory;
+import org.apache.nifi.serialization.RecordSetWriterFactory;
+import org.apache.nifi.serialization.record.RecordSchema;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.AbstractMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Writes every field of a record into the column of the same name, reading records with a Record Reader or
+ * decoding Avro content directly.
+ */
+final class ColumnRowProducer implements RowProducer {
+
+    private static final int MAX_CACHED_COLUMN_PLANS = 100;
+
+    private final RecordReaderFactory readerFactory;
+    private final RecordSetWriterFactory writerFactory;
+    private final boolean avroContent;
+    private final IngestionTimestamp timestamp;
+    private final String unknownColumnHandling;
+    private final ComponentLog logger;
+    private final Map<PlanKey, ColumnPlan> columnPlans = new ConcurrentHashMap<>();
+    // Plan of the last FlowFile, successive FlowFiles mostly share the schema instance and the table columns
+    private volatile Map.Entry<PlanKey, ColumnPlan> lastPlan;
+
+    /**
+     * @param readerFactory reader of the records, or null for Avro content
+     * @param writerFactory writer of rejected records, or null to route FlowFiles with rejected records to failure
+     */
+    ColumnRowProducer(RecordReaderFactory readerFactory, RecordSetWriterFactory writerFactory, boolean avroContent,
+                      IngestionTimestamp timestamp, String unknownColumnHandling, ComponentLog logger) {
+        this.readerFactory = readerFactory;
+        this.writerFactory = writerFactory;
+        this.avroContent = avroContent;
+        this.timestamp = timestamp;
+        this.unknownColumnHandling = unknownColumnHandling;
+        this.logger = logger;
+    }
+
+    @Override
+    public RowSource open(FlowFile flowFile, InputStream in, Set<String> tableColumns)
+            throws IOException, SchemaNotFoundException, MalformedRecordException {
+        if (avroContent) {
+            final DataFileStream<GenericRecord> stream = new DataFileStream<>(in, new GenericDatumReader<>());
+            return new RowSource.AvroRecords(stream, getColumnPlan(stream.getSchema(), tableColumns));
+        }
+        final RecordReader reader = readerFactory.createRecordReader(flowFile.getAttributes(), in, flowFile.getSize(), logger);
+        return new RowSource.Records(reader, getColumnPlan(reader.getSchema(), tableColumns));
+    }
+
+    @Override
+    public String getUnknownColumnHandling() {
+        return unknownColumnHandling;
+    }
+
+    @Override
+    public FlowFile writeRejected(ProcessSession session, FlowFile flowFile, Map<Long, String> rejected) {
+        return writerFactory == null || readerFactory == null
+                ? null
+                : RejectedRecords.write(session, flowFile, rejected, readerFactory, writerFactory, logger);
+    }
+
+    @Override
+    public FlowFile writeAccepted(ProcessSession session, FlowFile flowFile, Map<Long, String> rejected) {
+        return writerFactory == null || readerFactory == null
+                ? null
+                : RejectedRecords.writeAccepted(session, flowFile, rejected, readerFactory, writerFactory, logger);
+    }
+
+    /**
+     * Returns the plan for a {@link RecordSchema} or an Avro {@link Schema}.
+     */
+    private ColumnPlan getColumnPlan(Object recordSchema, Set<String> tableColumns) {
+        final Map.Entry<PlanKey, ColumnPlan> last = lastPlan;
+        if (last != null && last.getKey().schema == recordSchema && last.getKey().tableColumns == tableColumns) {
+            return last.getValue();
+        }
+
+        final PlanKey key = new PlanKey(recordSchema, tableColumns);
+        ColumnPlan plan = columnPlans.get(key);
+        if (plan == null) {
+            if (columnPlans.size() >= MAX_CACHED_COLUMN_PLANS) {
+                columnPlans.clear();
+            }
+            plan = recordSchema instanceof Schema
+                    ? new ColumnPlan((Schema) recordSchema, timestamp.getColumn(), timestamp.isWritten(), tableColumns)
+                    : new ColumnPlan((RecordSchema) recordSchema, timestamp.getColumn(), timestamp.isWritten(), tableColumns);
+            columnPlans.put(key, plan);
+        }
+        lastPlan = new AbstractMap.SimpleImmutableEntry<>(key, plan);
+        return plan;
+    }
+
+    /**
+     * Key of a plan: the record schema and the version of the table columns. The controller hands out the same set
+     * until it looks up the columns again, so a set is compared by identity instead of hashing all of its columns.
+     */
+    private static final class PlanKey {
+        private final Object schema;
+        private final Set<String> tableColumns;
+        private final int hash;
+
+        PlanKey(Object schema, Set<String> tableColumns) {
+            this.schema = schema;
+            this.tableColumns = tableColumns;
+            this.hash = 31 * schema.hashCode() + System.identityHashCode(tableColumns);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof PlanKey)) {
+                return false;
+            }
+            final PlanKey key = (PlanKey) other;
+            return hash == key.hash && tableColumns == key.tableColumns && (schema == key.schema || schema.equals(key.schema));
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
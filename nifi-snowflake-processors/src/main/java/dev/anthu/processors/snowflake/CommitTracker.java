@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dev.anthu.processors.snowflake;
+
+import dev.anthu.controllers.snowflake.SnowflakeIngestController;
+import net.snowflake.ingest.streaming.SnowflakeStreamingIngestChannel;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.processor.ProcessSession;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Holds sessions whose FlowFiles have been routed but whose rows are not yet committed by Snowflake, and commits
+ * them in bulk once every channel of a session reports a committed offset at or after the last offset the session
+ * inserted into it.
+ */
+class CommitTracker {
+
+    private final Queue<PendingCommit> pending = new ConcurrentLinkedQueue<>();
+    private final IngestMetrics metrics;
+
+    CommitTracker(IngestMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    void hold(ProcessSession session, Map<SnowflakeStreamingIngestChannel, Long> offsets, Collection<String> flowFileUuids) {
+        pending.add(new PendingCommit(session, offsets, flowFileUuids, System.currentTimeMillis()));
+    }
+
+    /**
+     * Commits every held session whose rows have been committed and rolls back the sessions whose rows were lost
+     * with an invalidated channel or that have waited longer than the timeout, so that their FlowFiles are ingested again.
+     */
+    void release(SnowflakeIngestController controller, long timeoutMillis, ComponentLog logger) {
+        final long expired = System.currentTimeMillis() - timeoutMillis;
+        for (PendingCommit commit : pending) {
+            if (commit.isCommitted(controller)) {
+                // remove() succeeds for exactly one thread, which then owns the session
+                if (pending.remove(commit)) {
+                    commit.recordCommit(metrics);
+                    commit.session.commitAsync(() -> controller.releaseProgress(commit.flowFileUuids));
+                }
+            } else if (commit.isLost(controller)) {
+                if (pending.remove(commit)) {
+                    logger.warn("Offsets {} were lost with an invalidated channel, returning FlowFiles to the queue", commit.describeOffsets());
+                    commit.session.rollback();
+                }
+            } else if (commit.heldSince < expired && pending.remove(commit)) {
+                logger.warn("Offsets {} were not committed within {} ms, returning FlowFiles to the queue",
+                        commit.describeOffsets(), timeoutMillis);
+                commit.session.rollback(true);
+            }
+        }
+    }
+
+    /**
+     * Rolls back all held sessions, returning their FlowFiles to the queue.
+     */
+    void rollbackAll() {
+        PendingCommit commit;
+        while ((commit = pending.poll()) != null) {
+            commit.session.rollback();
+        }
+    }
+
+    boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    private static final class PendingCommit {
+        private final ProcessSession session;
+        private final Map<SnowflakeStreamingIngestChannel, Long> offsets;
+        private final Collection<String> flowFileUuids;
+        private final long heldSince;
+
+        PendingCommit(ProcessSession session, Map<SnowflakeStreamingIngestChannel, Long> offsets, Collection<String> flowFileUuids, long heldSince) {
+            this.session = session;
+            this.offsets = offsets;
+            this.flowFileUuids = flowFileUuids;
+            this.heldSince = heldSince;
+        }
+
+        boolean isCommitted(SnowflakeIngestController controller) {
+            for (Map.Entry<SnowflakeStreamingIngestChannel, Long> entry : offsets.entrySet()) {
+                if (!controller.isCommitted(entry.getKey(), entry.getValue())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        boolean isLost(SnowflakeIngestController controller) {
+            for (Map.Entry<SnowflakeStreamingIngestChannel, Long> entry : offsets.entrySet()) {
+                if (controller.isLost(entry.getKey(), entry.getValue())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void recordCommit(IngestMetrics metrics) {
+            final long lag = System.currentTimeMillis() - heldSince;
+            for (SnowflakeStreamingIngestChannel channel : offsets.keySet()) {
+                metrics.forChannel(channel).recordCommit(lag);
+            }
+        }
+
+        String describeOffsets() {
+            final StringBuilder description = new StringBuilder();
+            for (Map.Entry<SnowflakeStreamingIngestChannel, Long> entry : offsets.entrySet()) {
+                if (description.length() > 0) {
+                    description.append(", ");
+                }
+                description.append(entry.getValue()).append(" of ").append(entry.getKey().getFullyQualifiedName());
+            }
+            return description.toString();
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dev.anthu.processors.snowflake;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Streams FlowFile content through a bounded buffer and hands it out as UTF-8 segments, so that the memory
+ * needed does not depend on the size of the content.
+ */
+final class ContentSplitter {
+
+    enum Mode {
+        WHOLE_CONTENT,
+        PER_LINE,
+        PER_DELIMITER,
+        FIXED_SIZE
+    }
+
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int INITIAL_SEGMENT_SIZE = 64 * 1024;
+
+    private final Mode mode;
+    private final byte[] delimiter;
+    private final int maxSegmentBytes;
+    private final int capacity;
+    private final InputStream in;
+
+    private final byte[] readBuffer;
+    private int readPosition;
+    private int readLength;
+    private boolean finished;
+    private byte[] segment;
+    private int length;
+    private long segmentIndex;
+    private String current;
+
+    /**
+     * @param delimiter       segment delimiter, only used in {@link Mode#PER_DELIMITER}
+     * @param maxSegmentBytes size of a segment in {@link Mode#FIXED_SIZE}, upper bound for all other modes
+     * @param contentSize     size of the content, which bounds the buffers allocated
+     */
+    ContentSplitter(Mode mode, String delimiter, int maxSegmentBytes, InputStream in, long contentSize) {
+        this.mode = mode;
+        this.delimiter = mode == Mode.PER_DELIMITER ? delimiter.getBytes(StandardCharsets.UTF_8) : new byte[]{'\n'};
+        this.maxSegmentBytes = maxSegmentBytes;
+        // Leave room for a trailing carriage return and delimiter after a segment of the maximum size
+        this.capacity = mode == Mode.FIXED_SIZE || mode == Mode.WHOLE_CONTENT ? maxSegmentBytes : maxSegmentBytes + this.delimiter.length + 1;
+        this.in = in;
+        if (mode == Mode.WHOLE_CONTENT) {
+            // Read straight into the segment, which holds the whole content anyway
+            this.readBuffer = new byte[0];
+            this.segment = new byte[(int) Math.max(1, Math.min(capacity, contentSize))];
+        } else {
+            this.readBuffer = new byte[(int) Math.max(1, Math.min(READ_BUFFER_SIZE, contentSize))];
+            this.segment = new byte[(int) Math.max(1, Math.min(Math.min(capacity, INITIAL_SEGMENT_SIZE), contentSize))];
+        }
+    }
+
+    /**
+     * Reads the next segment, returns false at the end of the content.
+     */
+    boolean next() throws IOException {
+        if (mode == Mode.WHOLE_CONTENT) {
+            return readWholeContent();
+        }
+        while (!finished) {
+            if (readPosition == readLength) {
+                readLength = in.read(readBuffer);
+                readPosition = 0;
+                if (readLength == -1) {
+                    finished = true;
+                    if (length > 0) {
+                        emit(segment, 0, length);
+                        return true;
+                    }
+                    return false;
+                }
+            } else if (mode == Mode.FIXED_SIZE ? fill() : split()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the segment read last.
+     */
+    String getSegment() {
+        return current;
+    }
+
+    private boolean readWholeContent() throws IOException {
+        if (finished) {
+            return false;
+        }
+        finished = true;
+        while (true) {
+            if (length == segment.length) {
+                if (length == capacity) {
+                    if (in.read() == -1) {
+                        break;
+                    }
+                    throw segmentTooLarge();
+                }
+                grow(length + 1);
+            }
+            final int read = in.read(segment, length, segment.length - length);
+            if (read == -1) {
+                break;
+            }
+            length += read;
+        }
+        emit(segment, 0, length);
+        return true;
+    }
+
+    /**
+     * Copies the read bytes into the segment, returns true if a full segment was emitted.
+     */
+    private boolean fill() {
+        // Emitted only once more content follows, the last segment is emitted as it is
+        if (length == capacity) {
+            emitFixedSize();
+            return true;
+        }
+        final int count = Math.min(readLength - readPosition, capacity - length);
+        grow(length + count);
+        System.arraycopy(readBuffer, readPosition, segment, length, count);
+        length += count;
+        readPosition += count;
+        return false;
+    }
+
+    /**
+     * Looks for the next delimiter in the read bytes, returns true if a segment was emitted.
+     */
+    private boolean split() throws IOException {
+        if (length == 0) {
+            // Segments within the read buffer are emitted without copying them
+            final int match = indexOfDelimiter(readBuffer, readPosition, readLength);
+            if (match >= 0) {
+                final int start = readPosition;
+                readPosition = match + delimiter.length;
+                if (readPosition - start > capacity) {
+                    throw segmentTooLarge();
+                }
+                return emitUntilDelimiter(readBuffer, start, match);
+            }
+        }
+
+        // The segment continues in the next read, possibly with a delimiter spanning both
+        if (length == capacity) {
+            throw segmentTooLarge();
+        }
+        final int searchFrom = Math.max(0, length - delimiter.length + 1);
+        final int count = Math.min(readLength - readPosition, capacity - length);
+        grow(length + count);
+        System.arraycopy(readBuffer, readPosition, segment, length, count);
+        length += count;
+        readPosition += count;
+
+        final int match = indexOfDelimiter(segment, searchFrom, length);
+        if (match < 0) {
+            return false;
+        }
+        // Bytes copied after the delimiter are taken from the read buffer again
+        readPosition -= length - (match + delimiter.length);
+        length = 0;
+        return emitUntilDelimiter(segment, 0, match);
+    }
+
+    /**
+     * Returns the index of the first delimiter within the range, or -1 if there is none.
+     */
+    private int indexOfDelimiter(byte[] bytes, int from, int to) {
+        final byte first = delimiter[0];
+        final int last = to - delimiter.length;
+        for (int i = from; i <= last; i++) {
+            if (bytes[i] != first) {
+                continue;
+            }
+            int j = 1;
+            while (j < delimiter.length && bytes[i + j] == delimiter[j]) {
+                j++;
+            }
+            if (j == delimiter.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean emitUntilDelimiter(byte[] bytes, int start, int end) {
+        if (mode == Mode.PER_LINE && end > start && bytes[end - 1] == '\r') {
+            end--;
+        }
+        if (end == start) {
+            // Empty segments are skipped
+            return false;
+        }
+        emit(bytes, start, end);
+        return true;
+    }
+
+    private void grow(int size) {
+        if (size > segment.length) {
+            segment = Arrays.copyOf(segment, (int) Math.min(Math.max((long) segment.length * 2, size), capacity));
+        }
+    }
+
+    private IOException segmentTooLarge() {
+        return new IOException("Segment " + segmentIndex + " exceeds the maximum segment size of " + maxSegmentBytes + " bytes");
+    }
+
+    /**
+     * Emits a full buffer, cutting before a trailing partial UTF-8 sequence and keeping it for the next segment.
+     */
+    private void emitFixedSize() {
+        int start = length - 1;
+        while (start > 0 && length - start < 4 && (segment[start] & 0xC0) == 0x80) {
+            start--;
+        }
+        int cut = length;
+        final int lead = segment[start] & 0xFF;
+        final int expected = lead >= 0xF0 ? 4 : lead >= 0xE0 ? 3 : lead >= 0xC0 ? 2 : 1;
+        if (start > 0 && length - start < expected) {
+            cut = start;
+        }
+
+        emit(segment, 0, cut);
+        System.arraycopy(segment, cut, segment, 0, length - cut);
+        length -= cut;
+    }
+
+    private void emit(byte[] bytes, int start, int end) {
+        segmentIndex++;
+        current = new String(bytes, start, end - start, StandardCharsets.UTF_8);
+    }
+}
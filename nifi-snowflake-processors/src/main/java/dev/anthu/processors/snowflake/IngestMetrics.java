@@ -0,0 +1,166 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dev.anthu.processors.snowflake;
+
+import net.snowflake.ingest.streaming.SnowflakeStreamingIngestChannel;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessSessionFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects ingest statistics of a processor in striped counters, which the processor and insert threads update
+ * per insert call or FlowFile without contending, and reports them as NiFi counters in total and per channel.
+ * Insert latency, batch size and commit lag are also reported as histograms with power-of-two buckets.
+ */
+class IngestMetrics {
+
+    private final Map<String, ChannelMetrics> channels = new ConcurrentHashMap<>();
+    private final Histogram insertLatency = new Histogram("Insert Latency", "ms");
+    private final Histogram batchSizes = new Histogram("Batch Size", "rows");
+    private final Histogram commitLag = new Histogram("Commit Lag", "ms");
+    private volatile boolean pending;
+
+    ChannelMetrics forChannel(SnowflakeStreamingIngestChannel channel) {
+        return channels.computeIfAbsent(String.valueOf(channel.getFullyQualifiedName()), ChannelMetrics::new);
+    }
+
+    /**
+     * Adds the statistics collected since the previous report to the counters of the processor, in a session of its
+     * own so that they are not lost with a session that is rolled back.
+     */
+    void report(ProcessSessionFactory sessionFactory) {
+        if (!pending) {
+            return;
+        }
+        pending = false;
+        final ProcessSession session = sessionFactory.createSession();
+        for (ChannelMetrics channel : channels.values()) {
+            channel.report(session);
+        }
+        insertLatency.report(session);
+        batchSizes.report(session);
+        commitLag.report(session);
+        session.commitAsync();
+    }
+
+    final class ChannelMetrics {
+        private final String channelName;
+        private final LongAdder rowsInserted = new LongAdder();
+        private final LongAdder rowsRejected = new LongAdder();
+        private final LongAdder insertCalls = new LongAdder();
+        private final LongAdder insertMillis = new LongAdder();
+        private final LongAdder bytesIngested = new LongAdder();
+        private final LongAdder commits = new LongAdder();
+        private final LongAdder commitLagMillis = new LongAdder();
+
+        private ChannelMetrics(String channelName) {
+            this.channelName = channelName;
+        }
+
+        /**
+         * Records an insertRows call, where rejected rows includes all rows of a call that failed.
+         */
+        void recordInsert(int rows, int rejected, long nanos) {
+            final long millis = nanos / 1_000_000;
+            rowsInserted.add(rows - rejected);
+            rowsRejected.add(rejected);
+            insertCalls.increment();
+            insertMillis.add(millis);
+            insertLatency.record(millis);
+            batchSizes.record(rows);
+            pending = true;
+        }
+
+        /**
+         * Records the content size of a FlowFile whose records were inserted.
+         */
+        void recordIngested(long bytes) {
+            bytesIngested.add(bytes);
+            pending = true;
+        }
+
+        /**
+         * Records the time from holding a session after its last insert until its offsets were found committed.
+         */
+        void recordCommit(long lagMillis) {
+            commits.increment();
+            commitLagMillis.add(lagMillis);
+            commitLag.record(lagMillis);
+            pending = true;
+        }
+
+        private void report(ProcessSession session) {
+            adjust(session, "Rows Inserted", rowsInserted);
+            adjust(session, "Rows Rejected", rowsRejected);
+            adjust(session, "Insert Calls", insertCalls);
+            adjust(session, "Insert Time (ms)", insertMillis);
+            adjust(session, "Bytes Ingested", bytesIngested);
+            adjust(session, "Commits", commits);
+            adjust(session, "Commit Lag (ms)", commitLagMillis);
+        }
+
+        private void adjust(ProcessSession session, String counter, LongAdder adder) {
+            final long delta = adder.sumThenReset();
+            if (delta != 0) {
+                session.adjustCounter(counter, delta, false);
+                session.adjustCounter(counter + " " + channelName, delta, false);
+            }
+        }
+    }
+
+    /**
+     * Counts values in buckets up to 1, 2, 4 and so on, with the last bucket holding everything above.
+     */
+    static final class Histogram {
+        private static final int BUCKETS = 24;
+
+        private final String name;
+        private final String unit;
+        private final LongAdder[] counts = new LongAdder[BUCKETS];
+
+        Histogram(String name, String unit) {
+            this.name = name;
+            this.unit = unit;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        void record(long value) {
+            final int bucket = value <= 1 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value - 1));
+            counts[bucket].increment();
+        }
+
+        void report(ProcessSession session) {
+            for (int i = 0; i < BUCKETS; i++) {
+                final long delta = counts[i].sumThenReset();
+                if (delta != 0) {
+                    session.adjustCounter(getBucketName(i), delta, false);
+                }
+            }
+        }
+
+        String getBucketName(int bucket) {
+            return bucket == BUCKETS - 1
+                    ? name + " > " + (1L << (BUCKETS - 2)) + " " + unit
+                    : name + " <= " + (1L << bucket) + " " + unit;
+        }
+    }
+}
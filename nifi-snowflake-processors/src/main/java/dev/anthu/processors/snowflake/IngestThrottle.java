@@ -0,0 +1,56 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dev.anthu.processors.snowflake;
+
+import dev.anthu.controllers.snowflake.SnowflakeIngestController;
+import org.apache.nifi.logging.ComponentLog;
+
+/**
+ * Decides whether a processor should stop pulling FlowFiles because Snowflake falls behind committing the rows of
+ * a controller service. Throttling starts once a high water mark is reached and ends only after both the
+ * uncommitted rows and the commit lag dropped to their low water marks.
+ */
+class IngestThrottle {
+
+    private final long highRows;
+    private final long lowRows;
+    private final long highLagMillis;
+    private final long lowLagMillis;
+    private volatile boolean throttled;
+
+    IngestThrottle(long highRows, long lowRows, long highLagMillis, long lowLagMillis) {
+        this.highRows = highRows;
+        this.lowRows = lowRows;
+        this.highLagMillis = highLagMillis;
+        this.lowLagMillis = lowLagMillis;
+    }
+
+    boolean isThrottled(SnowflakeIngestController controller, ComponentLog logger) {
+        final long rows = controller.getUncommittedRows();
+        final long lag = controller.getCommitLag();
+        if (throttled) {
+            if (rows <= lowRows && lag <= lowLagMillis) {
+                throttled = false;
+                logger.info("Resuming ingest with {} uncommitted rows and a commit lag of {} ms", rows, lag);
+            }
+        } else if (rows >= highRows || lag >= highLagMillis) {
+            throttled = true;
+            logger.warn("Pausing ingest with {} uncommitted rows and a commit lag of {} ms", rows, lag);
+        }
+        return throttled;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dev.anthu.processors.snowflake;
+
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * Ingestion timestamp written to every row: the column, how often the clock is read and the type of the value.
+ */
+final class IngestionTimestamp {
+
+    enum Granularity {
+        ROW, BATCH, FLOWFILE, SERVER_DEFAULT
+    }
+
+    enum Type {
+        TIMESTAMP_NTZ, TIMESTAMP_LTZ, TIMESTAMP_TZ
+    }
+
+    /**
+     * No ingestion timestamp column at all.
+     */
+    static final IngestionTimestamp NONE = new IngestionTimestamp(null, Granularity.SERVER_DEFAULT, Type.TIMESTAMP_NTZ);
+
+    private final String column;
+    private final Granularity granularity;
+    private final Type type;
+
+    /**
+     * @param column quoted column name, or null if there is no column
+     */
+    IngestionTimestamp(String column, Granularity granularity, Type type) {
+        this.column = column;
+        this.granularity = granularity;
+        this.type = type;
+    }
+
+    /**
+     * Returns the quoted column name, or null if there is no column.
+     */
+    String getColumn() {
+        return column;
+    }
+
+    /**
+     * Returns false if the column is left out of the rows for the column default to fill it.
+     */
+    boolean isWritten() {
+        return granularity != Granularity.SERVER_DEFAULT;
+    }
+
+    /**
+     * Returns the timestamp shared by the rows of a FlowFile about to be read, or null if it is not per FlowFile.
+     */
+    Object forFlowFile() {
+        return granularity == Granularity.FLOWFILE ? now() : null;
+    }
+
+    /**
+     * Returns the timestamp of the next row added to the batch.
+     *
+     * @param flowFileTimestamp timestamp returned by {@link #forFlowFile()} for the FlowFile of the row
+     */
+    Object forRow(RowBatch batch, Object flowFileTimestamp) {
+        switch (granularity) {
+            case ROW:
+                return now();
+            case BATCH:
+                return batch.timestamp(this);
+            case FLOWFILE:
+                return flowFileTimestamp;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Reads the clock into a value of the type of the column, as accepted by the Snowflake ingest SDK.
+     */
+    Object now() {
+        switch (type) {
+            case TIMESTAMP_LTZ:
+                return OffsetDateTime.now(ZoneOffset.UTC);
+            case TIMESTAMP_TZ:
+                return OffsetDateTime.now();
+            default:
+                return LocalDateTime.now(ZoneOffset.UTC);
+        }
+    }
+}
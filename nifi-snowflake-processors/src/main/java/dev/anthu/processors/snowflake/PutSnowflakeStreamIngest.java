@@ -16,87 +16,66 @@
  */
 package dev.anthu.processors.snowflake;
 
-import java.sql.Date;
-import dev.anthu.controllers.snowflake.SnowflakeIngestController;
-import net.snowflake.ingest.streaming.InsertValidationResponse;
-import net.snowflake.ingest.streaming.SnowflakeStreamingIngestChannel;
-import net.snowflake.ingest.utils.SFException;
 import org.apache.nifi.annotation.behavior.ReadsAttribute;
 import org.apache.nifi.annotation.behavior.ReadsAttributes;
+import org.apache.nifi.annotation.behavior.TriggerWhenEmpty;
 import org.apache.nifi.annotation.behavior.WritesAttribute;
 import org.apache.nifi.annotation.behavior.WritesAttributes;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
-import org.apache.nifi.annotation.lifecycle.OnScheduled;
-import org.apache.nifi.annotation.lifecycle.OnShutdown;
 import org.apache.nifi.components.PropertyDescriptor;
-import org.apache.nifi.flowfile.FlowFile;
-import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
 import org.apache.nifi.processor.ProcessContext;
-import org.apache.nifi.processor.ProcessSession;
-import org.apache.nifi.processor.Relationship;
-import org.apache.nifi.schema.access.SchemaNotFoundException;
-import org.apache.nifi.serialization.MalformedRecordException;
-import org.apache.nifi.serialization.RecordReader;
 import org.apache.nifi.serialization.RecordReaderFactory;
-import org.apache.nifi.serialization.record.Record;
-import org.apache.nifi.serialization.record.RecordField;
-import org.apache.nifi.serialization.record.RecordSchema;
+import org.apache.nifi.serialization.RecordSetWriterFactory;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.time.LocalDateTime;
-import java.time.ZoneOffset;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Collection;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
 
+@TriggerWhenEmpty
 @Tags({"snowflake", "stream"})
 @CapabilityDescription("Write Record Wise to Snowflake stream")
 @ReadsAttributes({@ReadsAttribute(attribute = "")})
-@WritesAttributes({@WritesAttribute(attribute = "")})
-public class PutSnowflakeStreamIngest extends AbstractProcessor {
+@WritesAttributes({
+        @WritesAttribute(attribute = RejectedRecords.ERROR_COUNT, description = "Number of rejected records, on FlowFiles of rejected records routed to failure"),
+        @WritesAttribute(attribute = RejectedRecords.ERROR_RECORD_INDEX, description = "Index of the first rejected record in the original FlowFile"),
+        @WritesAttribute(attribute = RejectedRecords.ERROR_MESSAGE, description = "Error message of the first rejected record"),
+        @WritesAttribute(attribute = "record.count", description = "Number of records in a FlowFile of rejected or accepted records"),
+        @WritesAttribute(attribute = "mime.type", description = "MIME type of the Record Writer, on FlowFiles of rejected or accepted records")})
+public class PutSnowflakeStreamIngest extends AbstractPutSnowflakeStreamIngest {
 
-    public static final Relationship REL_SUCCESS = new Relationship.Builder()
-            .name("success")
-            .description("A FlowFile is routed to this relationship when everything goes well here")
-            .build();
-
-    public static final Relationship REL_FAILURE = new Relationship.Builder()
-            .name("failure")
-            .description("A FlowFile is routed to this relationship it can not be parsed or a problem happens")
-            .build();
-
-    private RecordReaderFactory readerFactory;
-    private SnowflakeIngestController snowflakeController;
-
-    private String database;
-    private String schema;
-    private String table;
-    private String channelName;
-    private boolean writeTimestamp;
-    private String timestampTargetColumn;
+    @Override
+    RowProducer createRowProducer(final ProcessContext context, final IngestionTimestamp timestamp) {
+        final boolean avroContent = SnowflakeDefaultProperties.CONTENT_FORMAT_AVRO.getValue()
+                .equals(context.getProperty(SnowflakeDefaultProperties.SNOWFLAKE_CONTENT_FORMAT).getValue());
+        return new ColumnRowProducer(
+                context.getProperty(SnowflakeDefaultProperties.RECORD_READER).asControllerService(RecordReaderFactory.class),
+                context.getProperty(SnowflakeDefaultProperties.RECORD_WRITER).asControllerService(RecordSetWriterFactory.class),
+                avroContent,
+                timestamp,
+                context.getProperty(SnowflakeDefaultProperties.SNOWFLAKE_UNKNOWN_COLUMN_HANDLING).getValue(),
+                getLogger());
+    }
 
-    @OnScheduled
-    public void onScheduled(final ProcessContext context) {
-        snowflakeController = context.getProperty(SnowflakeDefaultProperties.SNOWFLAKE_SERVICE).asControllerService(SnowflakeIngestController.class);
-        readerFactory = context.getProperty(SnowflakeDefaultProperties.RECORD_READER).asControllerService(RecordReaderFactory.class);
-        database = context.getProperty(SnowflakeDefaultProperties.SNOWFLAKE_DATABASE).getValue();
-        schema = context.getProperty(SnowflakeDefaultProperties.SNOWFLAKE_SCHEMA).getValue();
-        table = context.getProperty(SnowflakeDefaultProperties.SNOWFLAKE_TABLE).getValue();
-        channelName = context.getProperty(SnowflakeDefaultProperties.SNOWFLAKE_STREAMING_CHANNEL).getValue();
-        writeTimestamp = Boolean.parseBoolean(context.getProperty(SnowflakeDefaultProperties.SNOWFLAKE_ADD_INGESTION_TIMESTAMP).getValue());
-        // Quote column if not all-uppercase
-        timestampTargetColumn = optionallyQuoteColumnName(context.getProperty(SnowflakeDefaultProperties.SNOWFLAKE_INGESTION_TIMESTAMP_COLUMN).getValue());
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext validationContext) {
+        final List<ValidationResult> results = new ArrayList<>(super.customValidate(validationContext));
+        if (!SnowflakeDefaultProperties.CONTENT_FORMAT_AVRO.getValue()
+                .equals(validationContext.getProperty(SnowflakeDefaultProperties.SNOWFLAKE_CONTENT_FORMAT).getValue())) {
+            results.addAll(SnowflakeDefaultProperties.validateRecordReader(validationContext,
+                    "is required unless the " + SnowflakeDefaultProperties.SNOWFLAKE_CONTENT_FORMAT.getDisplayName() + " is Avro"));
+        }
+        return results;
     }
 
     @Override
     protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
         final List<PropertyDescriptor> properties = new ArrayList<>();
         properties.add(SnowflakeDefaultProperties.RECORD_READER);
+        properties.add(SnowflakeDefaultProperties.RECORD_WRITER);
+        properties.add(SnowflakeDefaultProperties.SNOWFLAKE_CONTENT_FORMAT);
         properties.add(SnowflakeDefaultProperties.SNOWFLAKE_SERVICE);
         properties.add(SnowflakeDefaultProperties.SNOWFLAKE_DATABASE);
         properties.add(SnowflakeDefaultProperties.SNOWFLAKE_SCHEMA);
@@ -104,83 +83,19 @@ public class PutSnowflakeStreamIngest extends AbstractProcessor {
         properties.add(SnowflakeDefaultProperties.SNOWFLAKE_STREAMING_CHANNEL);
         properties.add(SnowflakeDefaultProperties.SNOWFLAKE_ADD_INGESTION_TIMESTAMP);
         properties.add(SnowflakeDefaultProperties.SNOWFLAKE_INGESTION_TIMESTAMP_COLUMN);
+        properties.add(SnowflakeDefaultProperties.SNOWFLAKE_INGESTION_TIMESTAMP_GRANULARITY);
+        properties.add(SnowflakeDefaultProperties.SNOWFLAKE_INGESTION_TIMESTAMP_TYPE);
+        properties.add(SnowflakeDefaultProperties.SNOWFLAKE_UNKNOWN_COLUMN_HANDLING);
+        properties.add(SnowflakeDefaultProperties.SNOWFLAKE_BATCH_SIZE);
+        properties.add(SnowflakeDefaultProperties.SNOWFLAKE_INSERT_THREADS);
+        properties.add(SnowflakeDefaultProperties.SNOWFLAKE_MAX_FLOWFILES);
+        properties.add(SnowflakeDefaultProperties.SNOWFLAKE_MAX_BATCH_BYTES);
+        properties.add(SnowflakeDefaultProperties.SNOWFLAKE_DELIVERY_GUARANTEE);
+        properties.add(SnowflakeDefaultProperties.SNOWFLAKE_COMMIT_TIMEOUT);
+        properties.add(SnowflakeDefaultProperties.SNOWFLAKE_UNCOMMITTED_ROWS_HIGH_WATER_MARK);
+        properties.add(SnowflakeDefaultProperties.SNOWFLAKE_UNCOMMITTED_ROWS_LOW_WATER_MARK);
+        properties.add(SnowflakeDefaultProperties.SNOWFLAKE_COMMIT_LAG_HIGH_WATER_MARK);
+        properties.add(SnowflakeDefaultProperties.SNOWFLAKE_COMMIT_LAG_LOW_WATER_MARK);
         return properties;
     }
-
-    @Override
-    public Set<Relationship> getRelationships() {
-        final Set<Relationship> relationships = new HashSet<>();
-        relationships.add(REL_SUCCESS);
-        relationships.add(REL_FAILURE);
-        return relationships;
-    }
-
-    @Override
-    public void onTrigger(final ProcessContext context, final ProcessSession session) {
-        FlowFile flowFile = session.get();
-        if (flowFile == null) {
-            return;
-        }
-
-        final Map<String, String> originalAttributes = flowFile.getAttributes();
-
-        try (final InputStream in = session.read(flowFile);
-             final RecordReader reader = readerFactory.createRecordReader(originalAttributes, in, flowFile.getSize(), getLogger())
-        ) {
-            SnowflakeStreamingIngestChannel channel1 = snowflakeController.getChannel(database, schema, table, channelName);
-
-            final RecordSchema recordSchema = reader.getSchema();
-            Record record;
-            while ((record = reader.nextRecord()) != null) {
-                Map<String, Object> row = new HashMap<>();
-                for (RecordField field : recordSchema.getFields()) {
-                    String fieldName = field.getFieldName();
-                    Object recordValue = record.getValue(fieldName);
-
-                    // Stream Ingest rejects Date records -> casting to LocalDate
-                    if (recordValue instanceof Date) {
-                        recordValue = ((Date)recordValue).toLocalDate();
-                    }
-
-                    row.put(optionallyQuoteColumnName(fieldName), recordValue);
-                }
-
-                if(writeTimestamp) {
-                    row.put(timestampTargetColumn, LocalDateTime.now(ZoneOffset.UTC));
-                }
-
-                InsertValidationResponse response = channel1.insertRow(row, null);
-                if (response.hasErrors()) {
-                    throw (response.getInsertErrors().get(0)).getException();
-                }
-            }
-            getLogger().info("All records done.");
-        } catch (SchemaNotFoundException e) {
-            getLogger().error("Failed to deserialize {}", flowFile, e);
-            session.transfer(flowFile, REL_FAILURE);
-            return;
-        } catch (SFException e) {
-            getLogger().error("Failed to insert Row.", e);
-            session.transfer(flowFile, REL_FAILURE);
-            return;
-        } catch (IOException | MalformedRecordException e) {
-            getLogger().error("Failed write record {}", flowFile, e);
-            session.transfer(flowFile, REL_FAILURE);
-            return;
-        }
-
-        session.transfer(flowFile, REL_SUCCESS);
-    }
-
-    private static String optionallyQuoteColumnName(String columnName) {
-        if (columnName.equals(columnName.toUpperCase())) {
-            return columnName;
-        }
-        return '"' + columnName + '"';
-    }
-
-    @OnShutdown
-    public void cleanup() {
-        snowflakeController.closeChannel(database, schema, table, channelName);
-    }
 }
@@ -16,48 +16,29 @@
  */
 package dev.anthu.processors.snowflake;
 
-import dev.anthu.controllers.snowflake.SnowflakeIngestController;
-import net.snowflake.ingest.streaming.InsertValidationResponse;
-import net.snowflake.ingest.streaming.SnowflakeStreamingIngestChannel;
-import net.snowflake.ingest.utils.SFException;
 import org.apache.nifi.annotation.behavior.ReadsAttribute;
 import org.apache.nifi.annotation.behavior.ReadsAttributes;
+import org.apache.nifi.annotation.behavior.TriggerWhenEmpty;
 import org.apache.nifi.annotation.behavior.WritesAttribute;
 import org.apache.nifi.annotation.behavior.WritesAttributes;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
-import org.apache.nifi.annotation.lifecycle.OnScheduled;
-import org.apache.nifi.annotation.lifecycle.OnShutdown;
+import org.apache.nifi.components.AllowableValue;
 import org.apache.nifi.components.PropertyDescriptor;
-import org.apache.nifi.flowfile.FlowFile;
-import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.DataUnit;
 import org.apache.nifi.processor.ProcessContext;
-import org.apache.nifi.processor.ProcessSession;
-import org.apache.nifi.processor.Relationship;
 import org.apache.nifi.processor.util.StandardValidators;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.nio.charset.StandardCharsets;
-import java.time.LocalDateTime;
-import java.time.ZoneOffset;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
-import java.util.stream.Collectors;
 
+@TriggerWhenEmpty
 @Tags({"snowflake", "stream"})
-@CapabilityDescription("Write Raw FlowFile to Snowflake stream")
+@CapabilityDescription("Write Raw FlowFile to Snowflake stream, either as a whole or split into one row per line, delimiter or fixed size segment. "
+        + "Binary content is written as a whole into a BINARY column.")
 @ReadsAttributes({@ReadsAttribute(attribute = "")})
 @WritesAttributes({@WritesAttribute(attribute = "")})
-public class PutSnowflakeStreamIngestAsRaw extends AbstractProcessor {
-
-
+public class PutSnowflakeStreamIngestAsRaw extends AbstractPutSnowflakeStreamIngest {
 
     public static final PropertyDescriptor SNOWFLAKE_TARGET_COLUMN = new PropertyDescriptor.Builder()
             .name("Snowflake Target Column")
@@ -67,36 +48,78 @@ public class PutSnowflakeStreamIngestAsRaw extends AbstractProcessor {
             .defaultValue("col1")
             .build();
 
-    public static final Relationship REL_SUCCESS = new Relationship.Builder()
-            .name("success")
-            .description("A FlowFile is routed to this relationship when everything goes well here")
+    static final AllowableValue COLUMN_TYPE_TEXT = new AllowableValue("text", "Text",
+            "The content is decoded as UTF-8 text");
+    static final AllowableValue COLUMN_TYPE_BINARY = new AllowableValue("binary", "Binary",
+            "The content is written as it is, as a whole, into a BINARY column");
+
+    public static final PropertyDescriptor TARGET_COLUMN_TYPE = new PropertyDescriptor.Builder()
+            .name("snowflake-target-column-type")
+            .displayName("Target Column Type")
+            .description("Whether the content is text or binary data such as images or compressed files")
+            .required(true)
+            .allowableValues(COLUMN_TYPE_TEXT, COLUMN_TYPE_BINARY)
+            .defaultValue(COLUMN_TYPE_TEXT.getValue())
             .build();
 
-    public static final Relationship REL_FAILURE = new Relationship.Builder()
-            .name("failure")
-            .description("A FlowFile is routed to this relationship it can not be parsed or a problem happens")
+    static final AllowableValue SPLIT_WHOLE_CONTENT = new AllowableValue("whole-content", "Whole Content",
+            "The entire FlowFile content is written to a single row");
+    static final AllowableValue SPLIT_PER_LINE = new AllowableValue("per-line", "Per Line",
+            "Every line is written to its own row. Line endings are removed and empty lines are skipped.");
+    static final AllowableValue SPLIT_PER_DELIMITER = new AllowableValue("per-delimiter", "Per Delimiter",
+            "The content is split on the configured delimiter and every segment is written to its own row. Empty segments are skipped.");
+    static final AllowableValue SPLIT_FIXED_SIZE = new AllowableValue("fixed-size", "Fixed Size",
+            "The content is split into segments of Max Segment Size bytes without breaking multi-byte characters");
+
+    public static final PropertyDescriptor SPLIT_MODE = new PropertyDescriptor.Builder()
+            .name("snowflake-split-mode")
+            .displayName("Split Mode")
+            .description("How the FlowFile content is split into rows. The content is streamed, so memory usage does not depend on the FlowFile size.")
+            .dependsOn(TARGET_COLUMN_TYPE, COLUMN_TYPE_TEXT)
+            .required(true)
+            .allowableValues(SPLIT_WHOLE_CONTENT, SPLIT_PER_LINE, SPLIT_PER_DELIMITER, SPLIT_FIXED_SIZE)
+            .defaultValue(SPLIT_WHOLE_CONTENT.getValue())
             .build();
 
-    private SnowflakeIngestController snowflakeController;
+    public static final PropertyDescriptor SPLIT_DELIMITER = new PropertyDescriptor.Builder()
+            .name("snowflake-split-delimiter")
+            .displayName("Delimiter")
+            .description("Delimiter the content is split on")
+            .dependsOn(SPLIT_MODE, SPLIT_PER_DELIMITER)
+            .required(true)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
 
-    private String database;
-    private String schema;
-    private String table;
-    private String channelName;
-    private String targetColumn;
-    private boolean writeTimestamp;
-    private String timestampTargetColumn;
+    public static final PropertyDescriptor MAX_SEGMENT_SIZE = new PropertyDescriptor.Builder()
+            .name("snowflake-max-segment-size")
+            .displayName("Max Segment Size")
+            .description("Size of every segment in Fixed Size mode and the largest segment accepted by all other modes, "
+                    + "or the largest binary content accepted. FlowFiles containing a larger segment are routed to failure.")
+            .required(true)
+            .defaultValue("16 MB")
+            .addValidator(StandardValidators.createDataSizeBoundsValidator(4, Integer.MAX_VALUE - 64))
+            .build();
+
+    @Override
+    RowProducer createRowProducer(final ProcessContext context, final IngestionTimestamp timestamp) {
+        return new RawRowProducer(
+                COLUMN_TYPE_BINARY.getValue().equals(context.getProperty(TARGET_COLUMN_TYPE).getValue()),
+                getSplitMode(context.getProperty(SPLIT_MODE).getValue()),
+                context.getProperty(SPLIT_DELIMITER).getValue(),
+                context.getProperty(MAX_SEGMENT_SIZE).asDataSize(DataUnit.B).intValue(),
+                context.getProperty(SNOWFLAKE_TARGET_COLUMN).getValue(),
+                timestamp);
+    }
 
-    @OnScheduled
-    public void onScheduled(final ProcessContext context) {
-        snowflakeController = context.getProperty(SnowflakeDefaultProperties.SNOWFLAKE_SERVICE).asControllerService(SnowflakeIngestController.class);
-        database = context.getProperty(SnowflakeDefaultProperties.SNOWFLAKE_DATABASE).getValue();
-        schema = context.getProperty(SnowflakeDefaultProperties.SNOWFLAKE_SCHEMA).getValue();
-        table = context.getProperty(SnowflakeDefaultProperties.SNOWFLAKE_TABLE).getValue();
-        channelName = context.getProperty(SnowflakeDefaultProperties.SNOWFLAKE_STREAMING_CHANNEL).getValue();
-        targetColumn = context.getProperty(SNOWFLAKE_TARGET_COLUMN).getValue();
-        writeTimestamp = Boolean.parseBoolean(context.getProperty(SnowflakeDefaultProperties.SNOWFLAKE_ADD_INGESTION_TIMESTAMP).getValue());
-        timestampTargetColumn = optionallyQuoteColumnName(context.getProperty(SnowflakeDefaultProperties.SNOWFLAKE_INGESTION_TIMESTAMP_COLUMN).getValue());
+    private static ContentSplitter.Mode getSplitMode(String value) {
+        if (SPLIT_PER_LINE.getValue().equals(value)) {
+            return ContentSplitter.Mode.PER_LINE;
+        } else if (SPLIT_PER_DELIMITER.getValue().equals(value)) {
+            return ContentSplitter.Mode.PER_DELIMITER;
+        } else if (SPLIT_FIXED_SIZE.getValue().equals(value)) {
+            return ContentSplitter.Mode.FIXED_SIZE;
+        }
+        return ContentSplitter.Mode.WHOLE_CONTENT;
     }
 
     @Override
@@ -108,68 +131,24 @@ public class PutSnowflakeStreamIngestAsRaw extends AbstractProcessor {
         properties.add(SnowflakeDefaultProperties.SNOWFLAKE_TABLE);
         properties.add(SnowflakeDefaultProperties.SNOWFLAKE_STREAMING_CHANNEL);
         properties.add(SNOWFLAKE_TARGET_COLUMN);
+        properties.add(TARGET_COLUMN_TYPE);
+        properties.add(SPLIT_MODE);
+        properties.add(SPLIT_DELIMITER);
+        properties.add(MAX_SEGMENT_SIZE);
         properties.add(SnowflakeDefaultProperties.SNOWFLAKE_ADD_INGESTION_TIMESTAMP);
         properties.add(SnowflakeDefaultProperties.SNOWFLAKE_INGESTION_TIMESTAMP_COLUMN);
+        properties.add(SnowflakeDefaultProperties.SNOWFLAKE_INGESTION_TIMESTAMP_GRANULARITY);
+        properties.add(SnowflakeDefaultProperties.SNOWFLAKE_INGESTION_TIMESTAMP_TYPE);
+        properties.add(SnowflakeDefaultProperties.SNOWFLAKE_BATCH_SIZE);
+        properties.add(SnowflakeDefaultProperties.SNOWFLAKE_INSERT_THREADS);
+        properties.add(SnowflakeDefaultProperties.SNOWFLAKE_MAX_FLOWFILES);
+        properties.add(SnowflakeDefaultProperties.SNOWFLAKE_MAX_BATCH_BYTES);
+        properties.add(SnowflakeDefaultProperties.SNOWFLAKE_DELIVERY_GUARANTEE);
+        properties.add(SnowflakeDefaultProperties.SNOWFLAKE_COMMIT_TIMEOUT);
+        properties.add(SnowflakeDefaultProperties.SNOWFLAKE_UNCOMMITTED_ROWS_HIGH_WATER_MARK);
+        properties.add(SnowflakeDefaultProperties.SNOWFLAKE_UNCOMMITTED_ROWS_LOW_WATER_MARK);
+        properties.add(SnowflakeDefaultProperties.SNOWFLAKE_COMMIT_LAG_HIGH_WATER_MARK);
+        properties.add(SnowflakeDefaultProperties.SNOWFLAKE_COMMIT_LAG_LOW_WATER_MARK);
         return properties;
     }
-
-    @Override
-    public Set<Relationship> getRelationships() {
-        final Set<Relationship> relationships = new HashSet<>();
-        relationships.add(REL_SUCCESS);
-        relationships.add(REL_FAILURE);
-        return relationships;
-    }
-
-    @Override
-    public void onTrigger(final ProcessContext context, final ProcessSession session) {
-        FlowFile flowFile = session.get();
-        if (flowFile == null) {
-            return;
-        }
-
-        try (final InputStream in = session.read(flowFile)) {
-            SnowflakeStreamingIngestChannel channel1 = snowflakeController.getChannel(database, schema, table, channelName);
-
-            Map<String, Object> row = new HashMap<>();
-            String text = new BufferedReader(
-                    new InputStreamReader(in, StandardCharsets.UTF_8))
-                    .lines()
-                    .collect(Collectors.joining("\n"));
-
-            row.put(targetColumn, text);
-
-            if(writeTimestamp) {
-                row.put(timestampTargetColumn, LocalDateTime.now(ZoneOffset.UTC));
-            }
-
-            InsertValidationResponse response = channel1.insertRow(row, null);
-
-            if (response.hasErrors()) {
-                throw (response.getInsertErrors().get(0)).getException();
-            }
-        } catch (SFException e) {
-            getLogger().error("Failed to insert Row.", e);
-            session.transfer(flowFile, REL_FAILURE);
-            return;
-        } catch (IOException e) {
-            getLogger().error("Failed write record {}", flowFile, e);
-            session.transfer(flowFile, REL_FAILURE);
-            return;
-        }
-
-        session.transfer(flowFile, REL_SUCCESS);
-    }
-
-    private static String optionallyQuoteColumnName(String columnName) {
-        if (columnName.equals(columnName.toUpperCase())) {
-            return columnName;
-        }
-        return '"' + columnName + '"';
-    }
-
-    @OnShutdown
-    public void cleanup() {
-        snowflakeController.closeChannel(database, schema, table, channelName);
-    }
 }
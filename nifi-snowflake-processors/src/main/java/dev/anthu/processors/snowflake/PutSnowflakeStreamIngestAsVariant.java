@@ -16,53 +16,43 @@
  */
 package dev.anthu.processors.snowflake;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ObjectNode;
-import dev.anthu.controllers.snowflake.SnowflakeIngestController;
-import net.snowflake.ingest.streaming.InsertValidationResponse;
-import net.snowflake.ingest.streaming.SnowflakeStreamingIngestChannel;
-import net.snowflake.ingest.utils.SFException;
+import org.apache.nifi.annotation.behavior.DynamicProperty;
 import org.apache.nifi.annotation.behavior.ReadsAttribute;
 import org.apache.nifi.annotation.behavior.ReadsAttributes;
+import org.apache.nifi.annotation.behavior.TriggerWhenEmpty;
 import org.apache.nifi.annotation.behavior.WritesAttribute;
 import org.apache.nifi.annotation.behavior.WritesAttributes;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
-import org.apache.nifi.annotation.lifecycle.OnScheduled;
-import org.apache.nifi.annotation.lifecycle.OnShutdown;
+import org.apache.nifi.components.AllowableValue;
 import org.apache.nifi.components.PropertyDescriptor;
-import org.apache.nifi.flowfile.FlowFile;
-import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
 import org.apache.nifi.processor.ProcessContext;
-import org.apache.nifi.processor.ProcessSession;
-import org.apache.nifi.processor.Relationship;
 import org.apache.nifi.processor.util.StandardValidators;
-import org.apache.nifi.schema.access.SchemaNotFoundException;
-import org.apache.nifi.serialization.MalformedRecordException;
-import org.apache.nifi.serialization.RecordReader;
 import org.apache.nifi.serialization.RecordReaderFactory;
-import org.apache.nifi.serialization.record.Record;
-import org.apache.nifi.serialization.record.RecordField;
-import org.apache.nifi.serialization.record.RecordSchema;
+import org.apache.nifi.serialization.RecordSetWriterFactory;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.time.LocalDateTime;
-import java.time.ZoneOffset;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.TreeMap;
 
+@TriggerWhenEmpty
 @Tags({"snowflake", "stream"})
 @CapabilityDescription("Write Record Wise to Snowflake stream")
 @ReadsAttributes({@ReadsAttribute(attribute = "")})
-@WritesAttributes({@WritesAttribute(attribute = "")})
-public class PutSnowflakeStreamIngestAsVariant extends AbstractProcessor {
-
-
+@WritesAttributes({
+        @WritesAttribute(attribute = RejectedRecords.ERROR_COUNT, description = "Number of rejected records, on FlowFiles of rejected records routed to failure"),
+        @WritesAttribute(attribute = RejectedRecords.ERROR_RECORD_INDEX, description = "Index of the first rejected record in the original FlowFile"),
+        @WritesAttribute(attribute = RejectedRecords.ERROR_MESSAGE, description = "Error message of the first rejected record"),
+        @WritesAttribute(attribute = "record.count", description = "Number of records in a FlowFile of rejected or accepted records"),
+        @WritesAttribute(attribute = "mime.type", description = "MIME type of the Record Writer, on FlowFiles of rejected or accepted records")})
+@DynamicProperty(name = "Name of a VARIANT column", value = "Comma-separated record field names",
+        description = "Writes the listed fields into a VARIANT column of their own instead of the Snowflake Target Column")
+public class PutSnowflakeStreamIngestAsVariant extends AbstractPutSnowflakeStreamIngest {
 
     public static final PropertyDescriptor SNOWFLAKE_TARGET_COLUMN = new PropertyDescriptor.Builder()
             .name("Snowflake Target Column")
@@ -72,128 +62,105 @@ public class PutSnowflakeStreamIngestAsVariant extends AbstractProcessor {
             .defaultValue("col1")
             .build();
 
-    public static final Relationship REL_SUCCESS = new Relationship.Builder()
-            .name("success")
-            .description("A FlowFile is routed to this relationship when everything goes well here")
-            .build();
+    static final AllowableValue VARIANT_FORMAT_JSON = new AllowableValue("json", "JSON",
+            "Every column gets a JSON document, which the Snowflake ingest SDK parses again");
+    static final AllowableValue VARIANT_FORMAT_STRUCTURED = new AllowableValue("structured", "Structured",
+            "Every column gets maps and lists built from the record, which the Snowflake ingest SDK takes without parsing");
 
-    public static final Relationship REL_FAILURE = new Relationship.Builder()
-            .name("failure")
-            .description("A FlowFile is routed to this relationship it can not be parsed or a problem happens")
+    public static final PropertyDescriptor VARIANT_FORMAT = new PropertyDescriptor.Builder()
+            .name("snowflake-variant-format")
+            .displayName("Variant Format")
+            .description("How records are handed to the Snowflake ingest SDK")
+            .required(true)
+            .allowableValues(VARIANT_FORMAT_JSON, VARIANT_FORMAT_STRUCTURED)
+            .defaultValue(VARIANT_FORMAT_JSON.getValue())
             .build();
 
-    private RecordReaderFactory readerFactory;
-    private SnowflakeIngestController snowflakeController;
+    @Override
+    RowProducer createRowProducer(final ProcessContext context, final IngestionTimestamp timestamp) {
+        final Map<String, List<String>> fieldsByColumn = new TreeMap<>();
+        for (Map.Entry<PropertyDescriptor, String> property : context.getProperties().entrySet()) {
+            if (property.getKey().isDynamic()) {
+                fieldsByColumn.put(property.getKey().getName(), VariantColumns.parseFieldNames(property.getValue()));
+            }
+        }
+        return new VariantRowProducer(
+                context.getProperty(SnowflakeDefaultProperties.RECORD_READER).asControllerService(RecordReaderFactory.class),
+                context.getProperty(SnowflakeDefaultProperties.RECORD_WRITER).asControllerService(RecordSetWriterFactory.class),
+                new VariantColumns(context.getProperty(SNOWFLAKE_TARGET_COLUMN).getValue(), fieldsByColumn),
+                VARIANT_FORMAT_STRUCTURED.getValue().equals(context.getProperty(VARIANT_FORMAT).getValue()),
+                timestamp,
+                getLogger());
+    }
 
-    private String database;
-    private String schema;
-    private String table;
-    private String channelName;
-    private String targetColumn;
-    private boolean writeTimestamp;
-    private String timestampTargetColumn;
+    @Override
+    protected PropertyDescriptor getSupportedDynamicPropertyDescriptor(final String propertyDescriptorName) {
+        return new PropertyDescriptor.Builder()
+                .name(propertyDescriptorName)
+                .description("Record fields written into the VARIANT column " + propertyDescriptorName)
+                .dynamic(true)
+                .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+                .build();
+    }
 
-    @OnScheduled
-    public void onScheduled(final ProcessContext context) {
-        snowflakeController = context.getProperty(SnowflakeDefaultProperties.SNOWFLAKE_SERVICE).asControllerService(SnowflakeIngestController.class);
-        readerFactory = context.getProperty(SnowflakeDefaultProperties.RECORD_READER).asControllerService(RecordReaderFactory.class);
-        database = context.getProperty(SnowflakeDefaultProperties.SNOWFLAKE_DATABASE).getValue();
-        schema = context.getProperty(SnowflakeDefaultProperties.SNOWFLAKE_SCHEMA).getValue();
-        table = context.getProperty(SnowflakeDefaultProperties.SNOWFLAKE_TABLE).getValue();
-        channelName = context.getProperty(SnowflakeDefaultProperties.SNOWFLAKE_STREAMING_CHANNEL).getValue();
-        targetColumn = context.getProperty(SNOWFLAKE_TARGET_COLUMN).getValue();
-        writeTimestamp = Boolean.parseBoolean(context.getProperty(SnowflakeDefaultProperties.SNOWFLAKE_ADD_INGESTION_TIMESTAMP).getValue());
-        timestampTargetColumn = optionallyQuoteColumnName(context.getProperty(SnowflakeDefaultProperties.SNOWFLAKE_INGESTION_TIMESTAMP_COLUMN).getValue());
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext validationContext) {
+        final List<ValidationResult> results = new ArrayList<>(super.customValidate(validationContext));
+        results.addAll(SnowflakeDefaultProperties.validateRecordReader(validationContext, "is required"));
+        final String targetColumn = validationContext.getProperty(SNOWFLAKE_TARGET_COLUMN).getValue();
+        final Map<String, String> columnOfField = new HashMap<>();
+        for (Map.Entry<PropertyDescriptor, String> property : validationContext.getProperties().entrySet()) {
+            if (!property.getKey().isDynamic() || property.getValue() == null) {
+                continue;
+            }
+            final String column = property.getKey().getName();
+            if (column.equals(targetColumn)) {
+                results.add(new ValidationResult.Builder()
+                        .subject(column)
+                        .valid(false)
+                        .explanation("must not be the " + SNOWFLAKE_TARGET_COLUMN.getDisplayName())
+                        .build());
+            }
+            for (String fieldName : VariantColumns.parseFieldNames(property.getValue())) {
+                final String other = columnOfField.putIfAbsent(fieldName, column);
+                if (other != null) {
+                    results.add(new ValidationResult.Builder()
+                            .subject(column)
+                            .valid(false)
+                            .explanation("field " + fieldName + " is already written into " + other)
+                            .build());
+                }
+            }
+        }
+        return results;
     }
 
     @Override
     protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
         final List<PropertyDescriptor> properties = new ArrayList<>();
         properties.add(SnowflakeDefaultProperties.RECORD_READER);
+        properties.add(SnowflakeDefaultProperties.RECORD_WRITER);
         properties.add(SnowflakeDefaultProperties.SNOWFLAKE_SERVICE);
         properties.add(SnowflakeDefaultProperties.SNOWFLAKE_DATABASE);
         properties.add(SnowflakeDefaultProperties.SNOWFLAKE_SCHEMA);
         properties.add(SnowflakeDefaultProperties.SNOWFLAKE_TABLE);
         properties.add(SnowflakeDefaultProperties.SNOWFLAKE_STREAMING_CHANNEL);
         properties.add(SNOWFLAKE_TARGET_COLUMN);
+        properties.add(VARIANT_FORMAT);
         properties.add(SnowflakeDefaultProperties.SNOWFLAKE_ADD_INGESTION_TIMESTAMP);
         properties.add(SnowflakeDefaultProperties.SNOWFLAKE_INGESTION_TIMESTAMP_COLUMN);
+        properties.add(SnowflakeDefaultProperties.SNOWFLAKE_INGESTION_TIMESTAMP_GRANULARITY);
+        properties.add(SnowflakeDefaultProperties.SNOWFLAKE_INGESTION_TIMESTAMP_TYPE);
+        properties.add(SnowflakeDefaultProperties.SNOWFLAKE_BATCH_SIZE);
+        properties.add(SnowflakeDefaultProperties.SNOWFLAKE_INSERT_THREADS);
+        properties.add(SnowflakeDefaultProperties.SNOWFLAKE_MAX_FLOWFILES);
+        properties.add(SnowflakeDefaultProperties.SNOWFLAKE_MAX_BATCH_BYTES);
+        properties.add(SnowflakeDefaultProperties.SNOWFLAKE_DELIVERY_GUARANTEE);
+        properties.add(SnowflakeDefaultProperties.SNOWFLAKE_COMMIT_TIMEOUT);
+        properties.add(SnowflakeDefaultProperties.SNOWFLAKE_UNCOMMITTED_ROWS_HIGH_WATER_MARK);
+        properties.add(SnowflakeDefaultProperties.SNOWFLAKE_UNCOMMITTED_ROWS_LOW_WATER_MARK);
+        properties.add(SnowflakeDefaultProperties.SNOWFLAKE_COMMIT_LAG_HIGH_WATER_MARK);
+        properties.add(SnowflakeDefaultProperties.SNOWFLAKE_COMMIT_LAG_LOW_WATER_MARK);
         return properties;
     }
-
-    @Override
-    public Set<Relationship> getRelationships() {
-        final Set<Relationship> relationships = new HashSet<>();
-        relationships.add(REL_SUCCESS);
-        relationships.add(REL_FAILURE);
-        return relationships;
-    }
-
-    @Override
-    public void onTrigger(final ProcessContext context, final ProcessSession session) {
-        FlowFile flowFile = session.get();
-        if (flowFile == null) {
-            return;
-        }
-
-        final Map<String, String> originalAttributes = flowFile.getAttributes();
-
-        final ObjectMapper mapper = new ObjectMapper();
-        try (final InputStream in = session.read(flowFile);
-             final RecordReader reader = readerFactory.createRecordReader(originalAttributes, in, flowFile.getSize(), getLogger())
-        ) {
-            SnowflakeStreamingIngestChannel channel1 = snowflakeController.getChannel(database, schema, table, channelName);
-
-            final RecordSchema recordSchema = reader.getSchema();
-            Record record;
-
-            while ((record = reader.nextRecord()) != null) {
-                ObjectNode variantObject = mapper.createObjectNode();
-                for (RecordField field : recordSchema.getFields()) {
-                    String recordValue = record.getAsString(field.getFieldName());
-                    variantObject.put(field.getFieldName(), recordValue);
-                    getLogger().debug("Adding {} as {}", field.getFieldName(), recordValue);
-                }
-
-                Map<String, Object> row = new HashMap<>();
-                String res = mapper.writer().writeValueAsString(variantObject);
-                row.put(targetColumn, res);
-
-                if(writeTimestamp) {
-                    row.put(timestampTargetColumn, LocalDateTime.now(ZoneOffset.UTC));
-                }
-
-                InsertValidationResponse response = channel1.insertRow(row, null);
-                if (response.hasErrors()) {
-                    throw (response.getInsertErrors().get(0)).getException();
-                }
-            }
-        } catch (SchemaNotFoundException e) {
-            getLogger().error("Failed to deserialize {}", flowFile, e);
-            session.transfer(flowFile, REL_FAILURE);
-            return;
-        } catch (SFException e) {
-            getLogger().error("Failed to insert Row.", e);
-            session.transfer(flowFile, REL_FAILURE);
-            return;
-        } catch (IOException | MalformedRecordException e) {
-            getLogger().error("Failed write record {}", flowFile, e);
-            session.transfer(flowFile, REL_FAILURE);
-            return;
-        }
-
-        session.transfer(flowFile, REL_SUCCESS);
-    }
-
-    private static String optionallyQuoteColumnName(String columnName) {
-        if (columnName.equals(columnName.toUpperCase())) {
-            return columnName;
-        }
-        return '"' + columnName + '"';
-    }
-
-    @OnShutdown
-    public void cleanup() {
-        snowflakeController.closeChannel(database, schema, table, channelName);
-    }
 }
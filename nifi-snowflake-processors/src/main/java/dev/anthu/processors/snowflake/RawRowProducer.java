@@ -0,0 +1,58 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dev.anthu.processors.snowflake;
+
+import org.apache.nifi.flowfile.FlowFile;
+
+import java.io.InputStream;
+import java.util.Set;
+
+/**
+ * Writes the content as a whole or split into segments, one row per segment, into a single column. Binary content
+ * is written as a whole without decoding it.
+ */
+final class RawRowProducer implements RowProducer {
+
+    private final boolean binary;
+    private final ContentSplitter.Mode splitMode;
+    private final String splitDelimiter;
+    private final int maxSegmentSize;
+    private final String column;
+    private final IngestionTimestamp timestamp;
+
+    /**
+     * @param binary         true to write the content as bytes, ignoring the split mode
+     * @param maxSegmentSize size of a segment in fixed size mode, upper bound of all other segments and binary content
+     */
+    RawRowProducer(boolean binary, ContentSplitter.Mode splitMode, String splitDelimiter, int maxSegmentSize, String column, IngestionTimestamp timestamp) {
+        this.binary = binary;
+        this.splitMode = splitMode;
+        this.splitDelimiter = splitDelimiter;
+        this.maxSegmentSize = maxSegmentSize;
+        this.column = column;
+        this.timestamp = timestamp;
+    }
+
+    @Override
+    public RowSource open(FlowFile flowFile, InputStream in, Set<String> tableColumns) {
+        if (binary) {
+            return new RowSource.BinaryContent(in, flowFile.getSize(), maxSegmentSize, column, timestamp.getColumn());
+        }
+        final ContentSplitter splitter = new ContentSplitter(splitMode, splitDelimiter, maxSegmentSize, in, flowFile.getSize());
+        return new RowSource.Segments(splitter, column, timestamp.getColumn());
+    }
+}
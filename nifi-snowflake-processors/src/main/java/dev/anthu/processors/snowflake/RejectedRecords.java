@@ -0,0 +1,125 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dev.anthu.processors.snowflake;
+
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.schema.access.SchemaNotFoundException;
+import org.apache.nifi.serialization.MalformedRecordException;
+import org.apache.nifi.serialization.RecordReader;
+import org.apache.nifi.serialization.RecordReaderFactory;
+import org.apache.nifi.serialization.RecordSetWriter;
+import org.apache.nifi.serialization.RecordSetWriterFactory;
+import org.apache.nifi.serialization.WriteResult;
+import org.apache.nifi.serialization.record.Record;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Splits the records of a FlowFile Snowflake rejected from the ones it accepted into new FlowFiles, so that only
+ * the rejected records are routed to failure and retried, and only the accepted ones to success.
+ */
+class RejectedRecords {
+
+    static final String ERROR_COUNT = "snowflake.error.count";
+    static final String ERROR_RECORD_INDEX = "snowflake.error.record.index";
+    static final String ERROR_MESSAGE = "snowflake.error.message";
+
+    private RejectedRecords() {
+    }
+
+    /**
+     * Reads the FlowFile again and writes the rejected records to a child FlowFile, with the number of rejected
+     * records, the index of the first one and its message as attributes.
+     *
+     * @param rejected the messages of the rejected records by record index, in ascending order
+     * @return the child FlowFile, or null if it could not be written
+     */
+    static FlowFile write(final ProcessSession session, final FlowFile flowFile, final Map<Long, String> rejected,
+                          final RecordReaderFactory readerFactory, final RecordSetWriterFactory writerFactory, final ComponentLog logger) {
+        final FlowFile failed = writeRecords(session, flowFile, rejected, true, readerFactory, writerFactory, logger);
+        if (failed == null) {
+            return null;
+        }
+        final Map.Entry<Long, String> first = rejected.entrySet().iterator().next();
+        final Map<String, String> attributes = new HashMap<>();
+        attributes.put(ERROR_COUNT, String.valueOf(rejected.size()));
+        attributes.put(ERROR_RECORD_INDEX, String.valueOf(first.getKey()));
+        attributes.put(ERROR_MESSAGE, first.getValue());
+        return session.putAllAttributes(failed, attributes);
+    }
+
+    /**
+     * Reads the FlowFile again and writes the records Snowflake accepted, all but the rejected ones, to a child
+     * FlowFile.
+     *
+     * @param rejected the messages of the rejected records by record index
+     * @return the child FlowFile, or null if it could not be written
+     */
+    static FlowFile writeAccepted(final ProcessSession session, final FlowFile flowFile, final Map<Long, String> rejected,
+                                  final RecordReaderFactory readerFactory, final RecordSetWriterFactory writerFactory, final ComponentLog logger) {
+        return writeRecords(session, flowFile, rejected, false, readerFactory, writerFactory, logger);
+    }
+
+    private static FlowFile writeRecords(final ProcessSession session, final FlowFile flowFile, final Map<Long, String> rejected,
+                                         final boolean writeRejected, final RecordReaderFactory readerFactory,
+                                         final RecordSetWriterFactory writerFactory, final ComponentLog logger) {
+        final Map<String, String> attributes = new HashMap<>();
+        FlowFile child = session.create(flowFile);
+        try {
+            child = session.write(child, out -> {
+                try (final InputStream in = session.read(flowFile);
+                     final RecordReader reader = readerFactory.createRecordReader(flowFile.getAttributes(), in, flowFile.getSize(), logger);
+                     final RecordSetWriter writer = writerFactory.createWriter(logger,
+                             writerFactory.getSchema(flowFile.getAttributes(), reader.getSchema()), out, flowFile.getAttributes())
+                ) {
+                    writer.beginRecordSet();
+                    long recordIndex = 0;
+                    int rejectedRead = 0;
+                    Record record;
+                    // Rejected records are the only ones written, so reading stops after the last of them
+                    while ((!writeRejected || rejectedRead < rejected.size()) && (record = reader.nextRecord()) != null) {
+                        final boolean isRejected = rejected.containsKey(recordIndex++);
+                        if (isRejected) {
+                            rejectedRead++;
+                        }
+                        if (isRejected == writeRejected) {
+                            writer.write(record);
+                        }
+                    }
+                    final WriteResult result = writer.finishRecordSet();
+                    attributes.putAll(result.getAttributes());
+                    attributes.put("record.count", String.valueOf(result.getRecordCount()));
+                    attributes.put(CoreAttributes.MIME_TYPE.key(), writer.getMimeType());
+                } catch (SchemaNotFoundException | MalformedRecordException e) {
+                    throw new IOException(e);
+                }
+            });
+        } catch (ProcessException e) {
+            logger.error("Failed to write the {} records of {}", writeRejected ? "rejected" : "accepted", flowFile, e);
+            session.remove(child);
+            return null;
+        }
+        return session.putAllAttributes(child, attributes);
+    }
+}
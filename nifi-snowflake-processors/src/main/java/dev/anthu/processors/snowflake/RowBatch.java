@@ -0,0 +1,314 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dev.anthu.processors.snowflake;
+
+import dev.anthu.controllers.snowflake.SnowflakeIngestController;
+import net.snowflake.ingest.streaming.InsertValidationResponse;
+import net.snowflake.ingest.streaming.SnowflakeStreamingIngestChannel;
+import net.snowflake.ingest.utils.SFException;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.processor.exception.ProcessException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Buffers the rows of one or more FlowFiles and submits them to a channel with a single insertRows call
+ * once the batch size is reached. Rejected rows are mapped back to the FlowFile and record they came from.
+ * With an insert lane, the calls run on the lane in submission order while the caller builds the next rows.
+ */
+class RowBatch {
+
+    // Rows handed to the lane but not yet inserted, per batch
+    private static final int MAX_IN_FLIGHT = 2;
+
+    private final SnowflakeIngestController controller;
+    private final SnowflakeStreamingIngestChannel channel;
+    private final int batchSize;
+    private final ComponentLog logger;
+    private final IngestMetrics.ChannelMetrics metrics;
+    private final Executor lane;
+    private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+    private volatile RuntimeException laneFailure;
+
+    private final List<Map<String, Object>> rows;
+    private final FlowFile[] owners;
+    private final Object[] submittedRows;
+    private final long[] recordIndices;
+    private final Map<FlowFile, SFException> failures = new HashMap<>();
+    private final Map<FlowFile, Map<Long, String>> rejectedRecords = new HashMap<>();
+    private final Set<FlowFile> failedInserts = new HashSet<>();
+    private final Map<FlowFile, StringBuilder> progress = new ConcurrentHashMap<>();
+    private volatile long lastOffset = -1;
+    private Object timestamp;
+
+    /**
+     * @param lane executor running one task at a time that inserts the rows, or null to insert them on flush
+     */
+    RowBatch(SnowflakeIngestController controller, SnowflakeStreamingIngestChannel channel, int batchSize, ComponentLog logger,
+             IngestMetrics.ChannelMetrics metrics, Executor lane) {
+        this.controller = controller;
+        this.channel = channel;
+        this.batchSize = batchSize;
+        this.logger = logger;
+        this.metrics = metrics;
+        this.lane = lane;
+        this.rows = new ArrayList<>(batchSize);
+        this.owners = new FlowFile[batchSize];
+        this.submittedRows = new Object[batchSize];
+        this.recordIndices = new long[batchSize];
+    }
+
+    /**
+     * Returns the row submitted at the next position by an earlier flush, so that callers can refill it
+     * instead of allocating a new one, or null if there is none.
+     */
+    @SuppressWarnings("unchecked")
+    Map<String, Object> reusableRow() {
+        // Rows handed to the lane may still be in use
+        return lane == null ? (Map<String, Object>) submittedRows[rows.size()] : null;
+    }
+
+    /**
+     * Returns the ingestion timestamp shared by the buffered rows, read from the clock for the first of them.
+     */
+    Object timestamp(IngestionTimestamp clock) {
+        if (rows.isEmpty()) {
+            timestamp = clock.now();
+        }
+        return timestamp;
+    }
+
+    /**
+     * Records the offsets the rows of the FlowFile are inserted with, starting from the index of its last record
+     * that was committed by an earlier attempt, or -1.
+     */
+    void track(FlowFile owner, long committedRecordIndex) {
+        progress.put(owner, new StringBuilder().append(committedRecordIndex).append('|'));
+    }
+
+    void add(FlowFile owner, long recordIndex, Map<String, Object> row) {
+        owners[rows.size()] = owner;
+        recordIndices[rows.size()] = recordIndex;
+        submittedRows[rows.size()] = row;
+        rows.add(row);
+        if (rows.size() >= batchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Drops the buffered rows of the FlowFile, which are the last ones added, so that a FlowFile that fails to be read
+     * partway through is not inserted in part. Rows of it flushed earlier are inserted already.
+     */
+    void discard(FlowFile owner) {
+        final int count = rows.size();
+        int kept = count;
+        while (kept > 0 && owners[kept - 1] == owner) {
+            kept--;
+        }
+        rows.subList(kept, count).clear();
+        Arrays.fill(owners, kept, count, null);
+    }
+
+    /**
+     * Submits the buffered rows and clears the buffer for reuse. With a lane, this waits while the lane is
+     * behind by more than {@value #MAX_IN_FLIGHT} batches and throws if an earlier insert on the lane failed.
+     */
+    void flush() {
+        if (rows.isEmpty()) {
+            return;
+        }
+
+        final int count = rows.size();
+        if (lane == null) {
+            try {
+                insert(rows, owners, recordIndices);
+            } finally {
+                rows.clear();
+                Arrays.fill(owners, 0, count, null);
+            }
+            return;
+        }
+
+        throwLaneFailure();
+        final List<Map<String, Object>> laneRows = new ArrayList<>(rows);
+        final FlowFile[] laneOwners = Arrays.copyOf(owners, count);
+        final long[] laneRecordIndices = Arrays.copyOf(recordIndices, count);
+        rows.clear();
+        Arrays.fill(owners, 0, count, null);
+
+        inFlight.acquireUninterruptibly();
+        try {
+            lane.execute(() -> {
+                try {
+                    insert(laneRows, laneOwners, laneRecordIndices);
+                } catch (RuntimeException e) {
+                    if (laneFailure == null) {
+                        laneFailure = e;
+                    }
+                } finally {
+                    inFlight.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.release();
+            throw new ProcessException("Insert lane of channel " + channel.getFullyQualifiedName() + " is shut down", e);
+        }
+    }
+
+    /**
+     * Waits until the lane inserted all rows handed to it and throws the first failure of an insert.
+     */
+    void await() {
+        drain();
+        throwLaneFailure();
+    }
+
+    /**
+     * Waits until the lane inserted all rows handed to it, ignoring failures.
+     */
+    void drain() {
+        if (lane != null) {
+            inFlight.acquireUninterruptibly(MAX_IN_FLIGHT);
+            inFlight.release(MAX_IN_FLIGHT);
+        }
+    }
+
+    private void throwLaneFailure() {
+        final RuntimeException failure = laneFailure;
+        if (failure != null) {
+            throw failure instanceof ProcessException
+                    ? (ProcessException) failure
+                    : new ProcessException("Failed to insert rows into channel " + channel.getFullyQualifiedName(), failure);
+        }
+    }
+
+    /**
+     * Inserts the rows with a single insertRows call. The offset token starts with the next offset of the channel,
+     * followed by the FlowFile and the index of the last record in the batch.
+     */
+    private void insert(List<Map<String, Object>> batchRows, FlowFile[] batchOwners, long[] batchRecordIndices) {
+        final int last = batchRows.size() - 1;
+        final long started = System.nanoTime();
+        try {
+            final InsertValidationResponse response;
+            final long offset;
+            // Offsets must reach the channel in the order they were issued
+            synchronized (channel) {
+                offset = controller.nextOffset(channel, batchRows.size());
+                response = channel.insertRows(batchRows, offset + ":" + batchOwners[last].getAttribute(CoreAttributes.UUID.key()) + ":" + batchRecordIndices[last]);
+            }
+            metrics.recordInsert(batchRows.size(), response.hasErrors() ? response.getInsertErrors().size() : 0, System.nanoTime() - started);
+            lastOffset = offset;
+            for (int i = 0; i <= last; i++) {
+                final StringBuilder offsets = progress.get(batchOwners[i]);
+                if (offsets != null && (i == last || batchOwners[i + 1] != batchOwners[i])) {
+                    if (offsets.charAt(offsets.length() - 1) != '|') {
+                        offsets.append(',');
+                    }
+                    offsets.append(offset).append(':').append(batchRecordIndices[i]);
+                }
+            }
+            if (response.hasErrors()) {
+                final List<InsertValidationResponse.InsertError> errors = response.getInsertErrors();
+                for (InsertValidationResponse.InsertError error : errors) {
+                    final int row = (int) error.getRowIndex();
+                    logger.debug("Rejected record {} of {}: {}", batchRecordIndices[row], batchOwners[row], error.getException().getMessage());
+                    failures.putIfAbsent(batchOwners[row], error.getException());
+                    rejectedRecords.computeIfAbsent(batchOwners[row], k -> new TreeMap<>())
+                            .put(batchRecordIndices[row], error.getException().getMessage());
+                }
+                logger.error("{} of {} rows rejected, first at record {} of {}",
+                        errors.size(), batchRows.size(), batchRecordIndices[(int) errors.get(0).getRowIndex()], batchOwners[(int) errors.get(0).getRowIndex()]);
+            }
+        } catch (SFException e) {
+            if (!channel.isValid() || channel.isClosed()) {
+                // Not the fault of the rows, the FlowFiles go back to the queue and the channel is reopened
+                throw new ProcessException("Channel " + channel.getFullyQualifiedName() + " was invalidated", e);
+            }
+            metrics.recordInsert(batchRows.size(), batchRows.size(), System.nanoTime() - started);
+            logger.error("Failed to insert {} rows", batchRows.size(), e);
+            for (int i = 0; i <= last; i++) {
+                failures.putIfAbsent(batchOwners[i], e);
+                failedInserts.add(batchOwners[i]);
+            }
+        }
+    }
+
+    IngestMetrics.ChannelMetrics getMetrics() {
+        return metrics;
+    }
+
+    SnowflakeStreamingIngestChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Returns the offset of the last batch submitted to the channel, or -1 if nothing was submitted.
+     */
+    long getLastOffset() {
+        return lastOffset;
+    }
+
+    /**
+     * Returns the progress of the tracked FlowFiles by UUID, as expected by
+     * {@link SnowflakeIngestController#saveProgress}. Rejected rows are not committed, so FlowFiles with rejected
+     * rows keep only the progress of earlier attempts.
+     */
+    Map<String, String> getProgress() {
+        final Map<String, String> result = new HashMap<>();
+        for (Map.Entry<FlowFile, StringBuilder> entry : progress.entrySet()) {
+            final String value = entry.getValue().toString();
+            result.put(entry.getKey().getAttribute(CoreAttributes.UUID.key()),
+                    failures.containsKey(entry.getKey()) ? value.substring(0, value.indexOf('|') + 1) : value);
+        }
+        return result;
+    }
+
+    boolean isFailed(FlowFile flowFile) {
+        return failures.containsKey(flowFile);
+    }
+
+    SFException getFailure(FlowFile flowFile) {
+        return failures.get(flowFile);
+    }
+
+    /**
+     * Returns the messages of the records of the FlowFile Snowflake rejected, by record index in ascending order.
+     * Empty if some of its rows could not be inserted at all, as the records affected are not known then.
+     */
+    Map<Long, String> getRejectedRecords(FlowFile flowFile) {
+        if (failedInserts.contains(flowFile)) {
+            return Collections.emptyMap();
+        }
+        return rejectedRecords.getOrDefault(flowFile, Collections.emptyMap());
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dev.anthu.processors.snowflake;
+
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.schema.access.SchemaNotFoundException;
+import org.apache.nifi.serialization.MalformedRecordException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Turns the content of FlowFiles into rows for one mode of ingestion, such as columns, JSON documents or raw
+ * segments. A producer is shared by the concurrent tasks of a processor.
+ */
+interface RowProducer {
+
+    /**
+     * Opens the rows of the FlowFile. The content stream is closed by the caller.
+     *
+     * @param tableColumns column names of the target table as stored by Snowflake, or null if unknown
+     */
+    RowSource open(FlowFile flowFile, InputStream in, Set<String> tableColumns)
+            throws IOException, SchemaNotFoundException, MalformedRecordException;
+
+    /**
+     * Returns how fields without a column in the target table are handled, as a value of Unknown Column Handling.
+     */
+    default String getUnknownColumnHandling() {
+        return SnowflakeDefaultProperties.UNKNOWN_COLUMNS_PASS_THROUGH.getValue();
+    }
+
+    /**
+     * Writes the records Snowflake rejected to a child of the FlowFile, or returns null if they cannot be written
+     * on their own, in which case the whole FlowFile is routed to failure.
+     */
+    default FlowFile writeRejected(ProcessSession session, FlowFile flowFile, Map<Long, String> rejected) {
+        return null;
+    }
+
+    /**
+     * Writes the records Snowflake accepted, all but the rejected ones, to a child of the FlowFile that is routed to
+     * success in its place, or returns null if they cannot be written on their own.
+     */
+    default FlowFile writeAccepted(ProcessSession session, FlowFile flowFile, Map<Long, String> rejected) {
+        return null;
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dev.anthu.processors.snowflake;
+
+import org.apache.avro.AvroRuntimeException;
+import org.apache.avro.file.DataFileStream;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.nifi.serialization.MalformedRecordException;
+import org.apache.nifi.serialization.RecordReader;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordSchema;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads the records of a FlowFile one at a time and writes them into rows.
+ */
+abstract class RowSource implements Closeable {
+
+    /**
+     * Reads the next record, returns false at the end of the content.
+     */
+    abstract boolean next() throws IOException, MalformedRecordException;
+
+    /**
+     * Returns the record read last as a row, refilling the given row of an earlier batch if it is not null.
+     *
+     * @param timestamp ingestion timestamp, or null if none is written
+     */
+    abstract Map<String, Object> row(Map<String, Object> reusable, Object timestamp);
+
+    /**
+     * Returns the Snowflake data types of the fields without a column in the target table, by quoted column name.
+     */
+    Map<String, String> getUnknownColumns() {
+        return Collections.emptyMap();
+    }
+
+    /**
+     * Records whose fields are written into the columns of a {@link ColumnPlan}.
+     */
+    abstract static class Columns extends RowSource {
+        private final ColumnPlan plan;
+
+        Columns(ColumnPlan plan) {
+            this.plan = plan;
+        }
+
+        ColumnPlan getPlan() {
+            return plan;
+        }
+
+        @Override
+        Map<String, String> getUnknownColumns() {
+            return plan.getUnknownColumns();
+        }
+
+        @Override
+        Map<String, Object> row(Map<String, Object> reusable, Object timestamp) {
+            final ColumnRow row = ColumnRow.reuse(reusable, plan);
+            fill(row, timestamp);
+            return row;
+        }
+
+        /**
+         * Writes the record read last into the row.
+         */
+        abstract void fill(ColumnRow row, Object timestamp);
+    }
+
+    /**
+     * Records of a {@link RecordReader}.
+     */
+    static final class Records extends Columns {
+        private final RecordReader reader;
+        private Record record;
+
+        Records(RecordReader reader, ColumnPlan plan) {
+            super(plan);
+            this.reader = reader;
+        }
+
+        @Override
+        boolean next() throws IOException, MalformedRecordException {
+            record = reader.nextRecord();
+            return record != null;
+        }
+
+        @Override
+        void fill(ColumnRow row, Object timestamp) {
+            getPlan().fill(row, record, timestamp);
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+
+    /**
+     * Records of an Avro data file, decoded into a single reused generic record without creating NiFi records.
+     */
+    static final class AvroRecords extends Columns {
+        private final DataFileStream<GenericRecord> stream;
+        private GenericRecord record;
+
+        AvroRecords(DataFileStream<GenericRecord> stream, ColumnPlan plan) {
+            super(plan);
+            this.stream = stream;
+        }
+
+        @Override
+        boolean next() throws IOException, MalformedRecordException {
+            try {
+                if (!stream.hasNext()) {
+                    return false;
+                }
+                record = stream.next(record);
+                return true;
+            } catch (AvroRuntimeException e) {
+                throw new MalformedRecordException("Failed to decode Avro record", e);
+            }
+        }
+
+        @Override
+        void fill(ColumnRow row, Object timestamp) {
+            getPlan().fill(row, record, timestamp);
+        }
+
+        @Override
+        public void close() throws IOException {
+            stream.close();
+        }
+    }
+
+    /**
+     * Records written into a single column, next to the ingestion timestamp.
+     */
+    abstract static class SingleColumn extends RowSource {
+        private final String column;
+        private final String timestampColumn;
+
+        SingleColumn(String column, String timestampColumn) {
+            this.column = column;
+            this.timestampColumn = timestampColumn;
+        }
+
+        @Override
+        Map<String, Object> row(Map<String, Object> reusable, Object timestamp) {
+            // Rows of a processor all have the same columns, so every key is overwritten
+            final Map<String, Object> row = reusable == null ? new HashMap<>(4) : reusable;
+            row.put(column, value());
+            if (timestamp != null) {
+                row.put(timestampColumn, timestamp);
+            }
+            return row;
+        }
+
+        /**
+         * Returns the value of the record read last.
+         */
+        abstract Object value();
+    }
+
+    /**
+     * Records of a {@link RecordReader} written into one or more VARIANT columns.
+     */
+    static final class VariantRecords extends RowSource {
+        private final RecordReader reader;
+        private final VariantWriter writer;
+        private final VariantColumns columns;
+        private final String timestampColumn;
+        private final Object[] values;
+        private RecordSchema schema;
+        private int[] columnOfField;
+
+        VariantRecords(RecordReader reader, VariantWriter writer, VariantColumns columns, String timestampColumn) {
+            this.reader = reader;
+            this.writer = writer;
+            this.columns = columns;
+            this.timestampColumn = timestampColumn;
+            this.values = new Object[columns.getColumns().length];
+        }
+
+        @Override
+        boolean next() throws IOException, MalformedRecordException {
+            final Record record = reader.nextRecord();
+            if (record == null) {
+                return false;
+            }
+            if (record.getSchema() != schema) {
+                schema = record.getSchema();
+                columnOfField = columns.map(schema);
+            }
+            writer.write(record, columnOfField, values);
+            return true;
+        }
+
+        @Override
+        Map<String, Object> row(Map<String, Object> reusable, Object timestamp) {
+            // Rows of a processor all have the same columns, so every key is overwritten
+            final Map<String, Object> row = reusable == null ? new HashMap<>(values.length * 2 + 2) : reusable;
+            final String[] names = columns.getColumns();
+            for (int i = 0; i < names.length; i++) {
+                row.put(names[i], values[i]);
+            }
+            if (timestamp != null) {
+                row.put(timestampColumn, timestamp);
+            }
+            return row;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+
+    /**
+     * The whole content as bytes, read into a single array of the size of the content.
+     */
+    static final class BinaryContent extends SingleColumn {
+        private final InputStream in;
+        private final long size;
+        private final int maxSize;
+        private byte[] content;
+
+        BinaryContent(InputStream in, long size, int maxSize, String column, String timestampColumn) {
+            super(column, timestampColumn);
+            this.in = in;
+            this.size = size;
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        boolean next() throws IOException {
+            if (content != null) {
+                return false;
+            }
+            if (size > maxSize) {
+                throw new IOException("Content of " + size + " bytes exceeds the maximum size of " + maxSize + " bytes");
+            }
+            content = new byte[(int) size];
+            int length = 0;
+            while (length < content.length) {
+                final int read = in.read(content, length, content.length - length);
+                if (read == -1) {
+                    throw new IOException("Content ended after " + length + " of " + size + " bytes");
+                }
+                length += read;
+            }
+            return true;
+        }
+
+        @Override
+        Object value() {
+            return content;
+        }
+
+        @Override
+        public void close() {
+            // The content stream is closed by the caller
+        }
+    }
+
+    /**
+     * Segments of the content as split by a {@link ContentSplitter}.
+     */
+    static final class Segments extends SingleColumn {
+        private final ContentSplitter splitter;
+
+        Segments(ContentSplitter splitter, String column, String timestampColumn) {
+            super(column, timestampColumn);
+            this.splitter = splitter;
+        }
+
+        @Override
+        boolean next() throws IOException {
+            return splitter.next();
+        }
+
+        @Override
+        Object value() {
+            return splitter.getSegment();
+        }
+
+        @Override
+        public void close() {
+            // The content stream is closed by the caller
+        }
+    }
+}
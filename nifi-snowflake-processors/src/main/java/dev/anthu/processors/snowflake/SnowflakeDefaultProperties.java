@@ -1,18 +1,39 @@
 package dev.anthu.processors.snowflake;
 
 import dev.anthu.controllers.snowflake.SnowflakeIngestController;
+import org.apache.nifi.components.AllowableValue;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.expression.ExpressionLanguageScope;
 import org.apache.nifi.processor.util.StandardValidators;
 import org.apache.nifi.serialization.RecordReaderFactory;
+import org.apache.nifi.serialization.RecordSetWriterFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 public class SnowflakeDefaultProperties {
 
     static final PropertyDescriptor RECORD_READER = new PropertyDescriptor.Builder()
             .name("record-reader")
             .displayName("Record Reader")
-            .description("Specifies the Controller Service to use for reading incoming data")
+            .description("Specifies the Controller Service to use for reading incoming data. Only optional if the Content Format is Avro.")
             .identifiesControllerService(RecordReaderFactory.class)
-            .required(true)
+            .required(false)
+            .build();
+
+    static final PropertyDescriptor RECORD_WRITER = new PropertyDescriptor.Builder()
+            .name("record-writer")
+            .displayName("Record Writer")
+            .description("Specifies the Controller Service to use for splitting FlowFiles with records Snowflake rejected. If set, the rejected "
+                    + "records are routed to failure and the accepted records to success, each in a new FlowFile, and the original FlowFile "
+                    + "is dropped. Otherwise, or with Avro content and no Record Reader, a FlowFile with rejected records is routed to "
+                    + "failure as a whole.")
+            .identifiesControllerService(RecordSetWriterFactory.class)
+            .required(false)
             .build();
 
     static final PropertyDescriptor SNOWFLAKE_SERVICE = new PropertyDescriptor
@@ -33,22 +54,28 @@ public class SnowflakeDefaultProperties {
     static final PropertyDescriptor SNOWFLAKE_DATABASE = new PropertyDescriptor.Builder()
             .name("snowflake-database")
             .displayName("Snowflake database")
+            .description("Database to ingest into, evaluated for every FlowFile. FlowFiles are grouped by target table.")
             .required(true)
-            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
+            .addValidator(StandardValidators.NON_EMPTY_EL_VALIDATOR)
             .build();
 
     static final PropertyDescriptor SNOWFLAKE_SCHEMA = new PropertyDescriptor.Builder()
             .name("snowflake-schema")
             .displayName("Snowflake schema")
+            .description("Schema to ingest into, evaluated for every FlowFile. FlowFiles are grouped by target table.")
             .required(true)
-            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
+            .addValidator(StandardValidators.NON_EMPTY_EL_VALIDATOR)
             .build();
 
     static final PropertyDescriptor SNOWFLAKE_TABLE = new PropertyDescriptor.Builder()
             .name("snowflake-table")
             .displayName("Snowflake table")
+            .description("Table to ingest into, evaluated for every FlowFile. FlowFiles are grouped by target table.")
             .required(true)
-            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
+            .addValidator(StandardValidators.NON_EMPTY_EL_VALIDATOR)
             .build();
 
     static final PropertyDescriptor SNOWFLAKE_ADD_INGESTION_TIMESTAMP = new PropertyDescriptor.Builder()
@@ -70,4 +97,215 @@ public class SnowflakeDefaultProperties {
             .defaultValue("INGESTED_AT")
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
             .build();
+
+    static final AllowableValue TIMESTAMP_PER_ROW = new AllowableValue("per-row", "Per Row",
+            "Every row gets the time it was read at");
+    static final AllowableValue TIMESTAMP_PER_BATCH = new AllowableValue("per-batch", "Per Batch",
+            "The rows submitted with one insertRows call share the time the first of them was read at");
+    static final AllowableValue TIMESTAMP_PER_FLOWFILE = new AllowableValue("per-flowfile", "Per FlowFile",
+            "The rows of a FlowFile share the time the FlowFile was read at");
+    static final AllowableValue TIMESTAMP_SERVER_DEFAULT = new AllowableValue("server-default", "Server Default",
+            "The column is left out of the rows, including fields of the same name, so that the column default of the table fills it");
+
+    static final PropertyDescriptor SNOWFLAKE_INGESTION_TIMESTAMP_GRANULARITY = new PropertyDescriptor.Builder()
+            .name("snowflake-ingestion-timestamp-granularity")
+            .displayName("Ingestion Timestamp Granularity")
+            .description("How often the ingestion timestamp is taken. Coarser granularities avoid reading the clock and creating a timestamp for every row.")
+            .dependsOn(SNOWFLAKE_ADD_INGESTION_TIMESTAMP, "true")
+            .required(true)
+            .allowableValues(TIMESTAMP_PER_ROW, TIMESTAMP_PER_BATCH, TIMESTAMP_PER_FLOWFILE, TIMESTAMP_SERVER_DEFAULT)
+            .defaultValue(TIMESTAMP_PER_ROW.getValue())
+            .build();
+
+    static final AllowableValue TIMESTAMP_NTZ = new AllowableValue("TIMESTAMP_NTZ", "TIMESTAMP_NTZ",
+            "Wall clock time in UTC without a time zone");
+    static final AllowableValue TIMESTAMP_LTZ = new AllowableValue("TIMESTAMP_LTZ", "TIMESTAMP_LTZ",
+            "Instant in time, shown in the session time zone by Snowflake");
+    static final AllowableValue TIMESTAMP_TZ = new AllowableValue("TIMESTAMP_TZ", "TIMESTAMP_TZ",
+            "Wall clock time with the offset of the time zone of NiFi");
+
+    static final PropertyDescriptor SNOWFLAKE_INGESTION_TIMESTAMP_TYPE = new PropertyDescriptor.Builder()
+            .name("snowflake-ingestion-timestamp-type")
+            .displayName("Ingestion Timestamp Type")
+            .description("Snowflake data type of the ingestion timestamp column, which decides the value written")
+            .dependsOn(SNOWFLAKE_INGESTION_TIMESTAMP_GRANULARITY, TIMESTAMP_PER_ROW, TIMESTAMP_PER_BATCH, TIMESTAMP_PER_FLOWFILE)
+            .required(true)
+            .allowableValues(TIMESTAMP_NTZ, TIMESTAMP_LTZ, TIMESTAMP_TZ)
+            .defaultValue(TIMESTAMP_NTZ.getValue())
+            .build();
+
+    static final PropertyDescriptor SNOWFLAKE_BATCH_SIZE = new PropertyDescriptor.Builder()
+            .name("snowflake-batch-size")
+            .displayName("Batch Size")
+            .description("Maximum number of rows submitted to the channel in a single insertRows call. A value of 1 submits every record on its own.")
+            .required(true)
+            .defaultValue("1000")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    static final PropertyDescriptor SNOWFLAKE_INSERT_THREADS = new PropertyDescriptor.Builder()
+            .name("snowflake-insert-threads")
+            .displayName("Insert Threads")
+            .description("Number of threads of every concurrent task submitting batches to the channels while the task keeps reading records, "
+                    + "so that a large FlowFile is decoded and inserted at the same time. The threads insert into channels named after the "
+                    + "Channel Name with the number of the thread appended from the second thread on, which the concurrent tasks share. All "
+                    + "records of a FlowFile are inserted by the same thread, FlowFiles are spread over the threads of their task in turn. "
+                    + "With 0, batches are submitted by the processor thread.")
+            .required(true)
+            .defaultValue("0")
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .build();
+
+    static final PropertyDescriptor SNOWFLAKE_MAX_FLOWFILES = new PropertyDescriptor.Builder()
+            .name("snowflake-max-flowfiles-per-batch")
+            .displayName("Max FlowFiles per Batch")
+            .description("Maximum number of FlowFiles pulled from the queue and ingested together in a single execution. Every FlowFile is still routed to success or failure on its own.")
+            .required(true)
+            .defaultValue("100")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    static final PropertyDescriptor SNOWFLAKE_MAX_BATCH_BYTES = new PropertyDescriptor.Builder()
+            .name("snowflake-max-batch-bytes")
+            .displayName("Max Batch Bytes")
+            .description("Maximum combined content size of the FlowFiles ingested together in a single execution. The first FlowFile is always accepted, even if it is larger.")
+            .required(true)
+            .defaultValue("10 MB")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+
+    static final AllowableValue CONTENT_FORMAT_RECORD_READER = new AllowableValue("record-reader", "Record Reader",
+            "Content is read with the Record Reader");
+    static final AllowableValue CONTENT_FORMAT_AVRO = new AllowableValue("avro", "Avro",
+            "Content is an Avro data file with embedded schema, decoded directly into rows without creating NiFi records. "
+                    + "The Record Reader is only used to split FlowFiles with rejected records, without it such FlowFiles are routed "
+                    + "to failure as a whole.");
+
+    static final PropertyDescriptor SNOWFLAKE_CONTENT_FORMAT = new PropertyDescriptor.Builder()
+            .name("snowflake-content-format")
+            .displayName("Content Format")
+            .description("How the content of FlowFiles is decoded into rows")
+            .required(true)
+            .allowableValues(CONTENT_FORMAT_RECORD_READER, CONTENT_FORMAT_AVRO)
+            .defaultValue(CONTENT_FORMAT_RECORD_READER.getValue())
+            .build();
+
+    static final AllowableValue UNKNOWN_COLUMNS_PASS_THROUGH = new AllowableValue("pass-through", "Pass Through",
+            "Every field is mapped to a column without checking the table. Snowflake rejects the rows if a column does not exist.");
+    static final AllowableValue UNKNOWN_COLUMNS_IGNORE = new AllowableValue("ignore", "Ignore",
+            "Fields without a column are left out of the rows");
+    static final AllowableValue UNKNOWN_COLUMNS_FAIL = new AllowableValue("route-to-failure", "Route to Failure",
+            "FlowFiles with fields without a column are routed to failure without inserting any of their rows");
+    static final AllowableValue UNKNOWN_COLUMNS_ADD = new AllowableValue("add-columns", "Add Columns",
+            "A column is added to the table for every field without one, with a type derived from the field type, and the FlowFile "
+                    + "is returned to the queue until the channels of the table are reopened");
+
+    static final PropertyDescriptor SNOWFLAKE_UNKNOWN_COLUMN_HANDLING = new PropertyDescriptor.Builder()
+            .name("snowflake-unknown-column-handling")
+            .displayName("Unknown Column Handling")
+            .description("How record fields without a matching column in the target table are handled. The columns are looked up through the "
+                    + "Table Metadata Connection Pool of the Snowflake Connection Service and cached, fields are passed through without it.")
+            .required(true)
+            .allowableValues(UNKNOWN_COLUMNS_PASS_THROUGH, UNKNOWN_COLUMNS_IGNORE, UNKNOWN_COLUMNS_FAIL, UNKNOWN_COLUMNS_ADD)
+            .defaultValue(UNKNOWN_COLUMNS_PASS_THROUGH.getValue())
+            .build();
+
+    static final AllowableValue DELIVERY_BEST_EFFORT = new AllowableValue("best-effort", "Best Effort",
+            "FlowFiles are routed as soon as their rows are accepted by the channel, before Snowflake has committed them");
+    static final AllowableValue DELIVERY_AT_LEAST_ONCE = new AllowableValue("at-least-once", "At Least Once",
+            "FlowFiles are held until Snowflake has committed their rows. FlowFiles that are not committed within the Commit Timeout "
+                    + "are returned to the queue and ingested again.");
+
+    static final PropertyDescriptor SNOWFLAKE_DELIVERY_GUARANTEE = new PropertyDescriptor.Builder()
+            .name("snowflake-delivery-guarantee")
+            .displayName("Delivery Guarantee")
+            .description("When FlowFiles are routed to success or failure")
+            .required(true)
+            .allowableValues(DELIVERY_BEST_EFFORT, DELIVERY_AT_LEAST_ONCE)
+            .defaultValue(DELIVERY_BEST_EFFORT.getValue())
+            .build();
+
+    static final PropertyDescriptor SNOWFLAKE_COMMIT_TIMEOUT = new PropertyDescriptor.Builder()
+            .name("snowflake-commit-timeout")
+            .displayName("Commit Timeout")
+            .description("How long FlowFiles are held waiting for Snowflake to commit their rows before they are returned to the queue")
+            .dependsOn(SNOWFLAKE_DELIVERY_GUARANTEE, DELIVERY_AT_LEAST_ONCE)
+            .required(true)
+            .defaultValue("5 min")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    static final PropertyDescriptor SNOWFLAKE_UNCOMMITTED_ROWS_HIGH_WATER_MARK = new PropertyDescriptor.Builder()
+            .name("snowflake-uncommitted-rows-high-water-mark")
+            .displayName("Uncommitted Rows High Water Mark")
+            .description("The processor stops pulling FlowFiles and yields once the channels of the Snowflake Connection Service hold "
+                    + "this many rows Snowflake has not committed yet, instead of blocking its task threads inside the SDK.")
+            .required(true)
+            .defaultValue("1000000")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    static final PropertyDescriptor SNOWFLAKE_UNCOMMITTED_ROWS_LOW_WATER_MARK = new PropertyDescriptor.Builder()
+            .name("snowflake-uncommitted-rows-low-water-mark")
+            .displayName("Uncommitted Rows Low Water Mark")
+            .description("After reaching a high water mark, the processor resumes once the uncommitted rows dropped to this value.")
+            .required(true)
+            .defaultValue("500000")
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .build();
+
+    static final PropertyDescriptor SNOWFLAKE_COMMIT_LAG_HIGH_WATER_MARK = new PropertyDescriptor.Builder()
+            .name("snowflake-commit-lag-high-water-mark")
+            .displayName("Commit Lag High Water Mark")
+            .description("The processor stops pulling FlowFiles and yields once the oldest uncommitted rows of the Snowflake Connection Service "
+                    + "have been waiting this long for a commit.")
+            .required(true)
+            .defaultValue("1 min")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    static final PropertyDescriptor SNOWFLAKE_COMMIT_LAG_LOW_WATER_MARK = new PropertyDescriptor.Builder()
+            .name("snowflake-commit-lag-low-water-mark")
+            .displayName("Commit Lag Low Water Mark")
+            .description("After reaching a high water mark, the processor resumes once the commit lag dropped to this value.")
+            .required(true)
+            .defaultValue("10 sec")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    /**
+     * Returns a result if the Record Reader is not set, for content that can only be read with it.
+     */
+    static Collection<ValidationResult> validateRecordReader(ValidationContext context, String explanation) {
+        final List<ValidationResult> results = new ArrayList<>();
+        if (!context.getProperty(RECORD_READER).isSet()) {
+            results.add(new ValidationResult.Builder()
+                    .subject(RECORD_READER.getDisplayName())
+                    .valid(false)
+                    .explanation(explanation)
+                    .build());
+        }
+        return results;
+    }
+
+    static Collection<ValidationResult> validateWaterMarks(ValidationContext context) {
+        final List<ValidationResult> results = new ArrayList<>();
+        if (context.getProperty(SNOWFLAKE_UNCOMMITTED_ROWS_LOW_WATER_MARK).asLong()
+                > context.getProperty(SNOWFLAKE_UNCOMMITTED_ROWS_HIGH_WATER_MARK).asLong()) {
+            results.add(new ValidationResult.Builder()
+                    .subject(SNOWFLAKE_UNCOMMITTED_ROWS_LOW_WATER_MARK.getDisplayName())
+                    .valid(false)
+                    .explanation("must not be greater than " + SNOWFLAKE_UNCOMMITTED_ROWS_HIGH_WATER_MARK.getDisplayName())
+                    .build());
+        }
+        if (context.getProperty(SNOWFLAKE_COMMIT_LAG_LOW_WATER_MARK).asTimePeriod(TimeUnit.MILLISECONDS)
+                > context.getProperty(SNOWFLAKE_COMMIT_LAG_HIGH_WATER_MARK).asTimePeriod(TimeUnit.MILLISECONDS)) {
+            results.add(new ValidationResult.Builder()
+                    .subject(SNOWFLAKE_COMMIT_LAG_LOW_WATER_MARK.getDisplayName())
+                    .valid(false)
+                    .explanation("must not be greater than " + SNOWFLAKE_COMMIT_LAG_HIGH_WATER_MARK.getDisplayName())
+                    .build());
+        }
+        return results;
+    }
 }
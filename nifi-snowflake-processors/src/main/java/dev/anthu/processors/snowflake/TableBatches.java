@@ -0,0 +1,153 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dev.anthu.processors.snowflake;
+
+import dev.anthu.controllers.snowflake.SnowflakeIngestController;
+import net.snowflake.ingest.streaming.SnowflakeStreamingIngestChannel;
+import org.apache.nifi.logging.ComponentLog;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Groups the rows of one execution by target table, with a {@link RowBatch} on a channel of every table.
+ * With insert lanes, the FlowFiles are spread over the lanes, each inserting into channels of its own.
+ */
+class TableBatches {
+
+    private final SnowflakeIngestController controller;
+    private final String channelName;
+    private final int batchSize;
+    private final ComponentLog logger;
+    private final IngestMetrics metrics;
+    private final Executor[] lanes;
+    private final AtomicInteger nextLane;
+    private final Map<List<String>, RowBatch> batches = new LinkedHashMap<>();
+
+    TableBatches(SnowflakeIngestController controller, String channelName, int batchSize, ComponentLog logger, IngestMetrics metrics) {
+        this(controller, channelName, batchSize, logger, metrics, new Executor[0], new AtomicInteger());
+    }
+
+    /**
+     * @param lanes executors running one task at a time, or none to insert on the calling thread
+     * @param nextLane round-robin counter of the lanes, shared by the executions of a processor so that FlowFiles
+     *                 keep being spread over all lanes when every execution ingests only a few
+     */
+    TableBatches(SnowflakeIngestController controller, String channelName, int batchSize, ComponentLog logger, IngestMetrics metrics,
+                 Executor[] lanes, AtomicInteger nextLane) {
+        this.controller = controller;
+        this.channelName = channelName;
+        this.batchSize = batchSize;
+        this.logger = logger;
+        this.metrics = metrics;
+        this.lanes = lanes;
+        this.nextLane = nextLane;
+    }
+
+    /**
+     * Returns the batch for the rows of the next FlowFile. All rows of a FlowFile must go to the same batch,
+     * so that its progress is tracked on a single channel.
+     */
+    RowBatch get(String database, String schema, String table) {
+        final int lane = lanes.length == 0 ? 0 : Math.floorMod(nextLane.getAndIncrement(), lanes.length);
+        final String laneChannelName = getChannelName(channelName, lane);
+        final List<String> target = Arrays.asList(database, schema, table, laneChannelName);
+        RowBatch batch = batches.get(target);
+        if (batch == null) {
+            final SnowflakeStreamingIngestChannel channel = controller.getChannel(database, schema, table, laneChannelName);
+            batch = new RowBatch(controller, channel, batchSize, logger, metrics.forChannel(channel), lanes.length == 0 ? null : lanes[lane]);
+            batches.put(target, batch);
+        }
+        return batch;
+    }
+
+    /**
+     * Returns the name of the channels of an insert lane. The first lane uses the configured name.
+     */
+    static String getChannelName(String channelName, int lane) {
+        return lane == 0 ? channelName : channelName + "_" + lane;
+    }
+
+    /**
+     * Submits the buffered rows of all batches and waits until they are inserted.
+     */
+    void flush() {
+        for (RowBatch batch : batches.values()) {
+            batch.flush();
+        }
+        for (RowBatch batch : batches.values()) {
+            batch.await();
+        }
+    }
+
+    /**
+     * Waits until the rows handed to the insert lanes are inserted, ignoring failures.
+     */
+    void drain() {
+        for (RowBatch batch : batches.values()) {
+            batch.drain();
+        }
+    }
+
+    /**
+     * Hands the channels of all batches back to the controller, which may evict them from now on.
+     */
+    void returnChannels() {
+        for (RowBatch batch : batches.values()) {
+            controller.returnChannel(batch.getChannel());
+        }
+    }
+
+    /**
+     * Returns the last offset of every channel something was inserted into.
+     */
+    Map<SnowflakeStreamingIngestChannel, Long> getLastOffsets() {
+        final Map<SnowflakeStreamingIngestChannel, Long> offsets = new HashMap<>();
+        for (RowBatch batch : batches.values()) {
+            if (batch.getLastOffset() >= 0) {
+                offsets.put(batch.getChannel(), batch.getLastOffset());
+            }
+        }
+        return offsets;
+    }
+
+    /**
+     * Returns the UUIDs of the FlowFiles tracked in any batch.
+     */
+    Set<String> getTrackedFlowFiles() {
+        final Set<String> flowFileUuids = new HashSet<>();
+        for (RowBatch batch : batches.values()) {
+            flowFileUuids.addAll(batch.getProgress().keySet());
+        }
+        return flowFileUuids;
+    }
+
+    Map<SnowflakeStreamingIngestChannel, Map<String, String>> getProgress() {
+        final Map<SnowflakeStreamingIngestChannel, Map<String, String>> progress = new HashMap<>();
+        for (RowBatch batch : batches.values()) {
+            progress.put(batch.getChannel(), batch.getProgress());
+        }
+        return progress;
+    }
+}
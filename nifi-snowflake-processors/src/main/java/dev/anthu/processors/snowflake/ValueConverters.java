@@ -0,0 +1,194 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dev.anthu.processors.snowflake;
+
+import org.apache.nifi.serialization.record.DataType;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.apache.nifi.serialization.record.type.ArrayDataType;
+import org.apache.nifi.serialization.record.type.MapDataType;
+import org.apache.nifi.serialization.record.type.RecordDataType;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Date;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Converters from the values of NiFi records to types the Snowflake Ingest SDK accepts, chosen once per field from
+ * its data type. Nested records, maps and arrays become maps and lists for OBJECT, ARRAY and VARIANT columns, their
+ * temporal values ISO-8601 strings, as the SDK serializes them to JSON.
+ */
+final class ValueConverters {
+
+    static final ColumnPlan.ValueConverter IDENTITY = value -> value;
+
+    private ValueConverters() {
+    }
+
+    /**
+     * Returns the converter for the values of a column of the given type.
+     */
+    static ColumnPlan.ValueConverter forType(DataType dataType) {
+        return forType(dataType, false);
+    }
+
+    private static ColumnPlan.ValueConverter forType(DataType dataType, boolean nested) {
+        switch (dataType.getFieldType()) {
+            case DATE:
+                return nested
+                        ? value -> value instanceof Date ? ((Date) value).toLocalDate().toString() : value
+                        : value -> value instanceof Date ? ((Date) value).toLocalDate() : value;
+            case TIME:
+                return nested
+                        ? value -> value instanceof Time ? ((Time) value).toLocalTime().toString() : value
+                        : value -> value instanceof Time ? ((Time) value).toLocalTime() : value;
+            case TIMESTAMP:
+                return nested
+                        ? value -> value instanceof Timestamp ? ((Timestamp) value).toLocalDateTime().toString() : value
+                        : value -> value instanceof Timestamp ? ((Timestamp) value).toLocalDateTime() : value;
+            case BIGINT:
+                return value -> value instanceof BigInteger ? new BigDecimal((BigInteger) value) : value;
+            case CHAR:
+            case UUID:
+            case ENUM:
+                return value -> value == null ? null : value.toString();
+            case ARRAY:
+                return forArray(((ArrayDataType) dataType).getElementType(), nested);
+            case MAP:
+                return forMap(((MapDataType) dataType).getValueType());
+            case RECORD:
+                return forRecord(((RecordDataType) dataType).getChildSchema());
+            case CHOICE:
+                return nested ? value -> convert(value, true) : value -> convert(value, false);
+            default:
+                return IDENTITY;
+        }
+    }
+
+    private static ColumnPlan.ValueConverter forArray(DataType elementType, boolean nested) {
+        if (!nested && elementType.getFieldType() == RecordFieldType.BYTE) {
+            // BINARY column
+            return value -> value instanceof Object[] ? toBytes((Object[]) value) : value;
+        }
+        final ColumnPlan.ValueConverter elementConverter = forType(elementType, true);
+        return value -> {
+            if (!(value instanceof Object[])) {
+                return value;
+            }
+            final Object[] elements = (Object[]) value;
+            final List<Object> list = new ArrayList<>(elements.length);
+            for (Object element : elements) {
+                list.add(elementConverter.convert(element));
+            }
+            return list;
+        };
+    }
+
+    private static ColumnPlan.ValueConverter forMap(DataType valueType) {
+        final ColumnPlan.ValueConverter valueConverter = forType(valueType, true);
+        return value -> {
+            if (!(value instanceof Map)) {
+                return value;
+            }
+            final Map<?, ?> entries = (Map<?, ?>) value;
+            final Map<String, Object> map = new LinkedHashMap<>(entries.size() * 2);
+            for (Map.Entry<?, ?> entry : entries.entrySet()) {
+                map.put(String.valueOf(entry.getKey()), valueConverter.convert(entry.getValue()));
+            }
+            return map;
+        };
+    }
+
+    private static ColumnPlan.ValueConverter forRecord(RecordSchema childSchema) {
+        if (childSchema == null) {
+            return value -> convert(value, true);
+        }
+        final int fieldCount = childSchema.getFieldCount();
+        final String[] fieldNames = new String[fieldCount];
+        final ColumnPlan.ValueConverter[] fieldConverters = new ColumnPlan.ValueConverter[fieldCount];
+        for (int i = 0; i < fieldCount; i++) {
+            final RecordField field = childSchema.getField(i);
+            fieldNames[i] = field.getFieldName();
+            fieldConverters[i] = forType(field.getDataType(), true);
+        }
+        return value -> {
+            if (!(value instanceof Record)) {
+                return value;
+            }
+            final Record record = (Record) value;
+            final Map<String, Object> map = new LinkedHashMap<>(fieldCount * 2);
+            for (int i = 0; i < fieldCount; i++) {
+                map.put(fieldNames[i], fieldConverters[i].convert(record.getValue(fieldNames[i])));
+            }
+            return map;
+        };
+    }
+
+    /**
+     * Converts a value by its runtime type, for fields that may hold values of several types.
+     */
+    static Object convert(Object value, boolean nested) {
+        if (value instanceof Date) {
+            return nested ? ((Date) value).toLocalDate().toString() : ((Date) value).toLocalDate();
+        } else if (value instanceof Time) {
+            return nested ? ((Time) value).toLocalTime().toString() : ((Time) value).toLocalTime();
+        } else if (value instanceof Timestamp) {
+            return nested ? ((Timestamp) value).toLocalDateTime().toString() : ((Timestamp) value).toLocalDateTime();
+        } else if (value instanceof BigInteger) {
+            return new BigDecimal((BigInteger) value);
+        } else if (value instanceof UUID || value instanceof Character || value instanceof Enum) {
+            return value.toString();
+        } else if (value instanceof Record) {
+            final Map<String, Object> map = new LinkedHashMap<>();
+            for (Map.Entry<String, Object> entry : ((Record) value).toMap().entrySet()) {
+                map.put(entry.getKey(), convert(entry.getValue(), true));
+            }
+            return map;
+        } else if (value instanceof Map) {
+            final Map<String, Object> map = new LinkedHashMap<>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                map.put(String.valueOf(entry.getKey()), convert(entry.getValue(), true));
+            }
+            return map;
+        } else if (value instanceof Object[]) {
+            final Object[] elements = (Object[]) value;
+            final List<Object> list = new ArrayList<>(elements.length);
+            for (Object element : elements) {
+                list.add(convert(element, true));
+            }
+            return list;
+        }
+        return value;
+    }
+
+    private static byte[] toBytes(Object[] elements) {
+        final byte[] bytes = new byte[elements.length];
+        for (int i = 0; i < elements.length; i++) {
+            bytes[i] = elements[i] == null ? 0 : ((Number) elements[i]).byteValue();
+        }
+        return bytes;
+    }
+}
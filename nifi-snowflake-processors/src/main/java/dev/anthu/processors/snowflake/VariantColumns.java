@@ -0,0 +1,83 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dev.anthu.processors.snowflake;
+
+import org.apache.nifi.serialization.record.RecordSchema;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assigns the fields of records to VARIANT columns. Fields listed for a column of their own are written there,
+ * all others to the target column.
+ */
+final class VariantColumns {
+
+    private final String[] columns;
+    private final Map<String, Integer> columnOfFieldName = new HashMap<>();
+
+    /**
+     * @param fieldsByColumn names of the fields of every further column
+     */
+    VariantColumns(String targetColumn, Map<String, List<String>> fieldsByColumn) {
+        columns = new String[fieldsByColumn.size() + 1];
+        columns[0] = targetColumn;
+        int column = 1;
+        for (Map.Entry<String, List<String>> entry : fieldsByColumn.entrySet()) {
+            columns[column] = entry.getKey();
+            for (String fieldName : entry.getValue()) {
+                columnOfFieldName.putIfAbsent(fieldName, column);
+            }
+            column++;
+        }
+    }
+
+    VariantColumns(String targetColumn) {
+        this(targetColumn, Collections.emptyMap());
+    }
+
+    /**
+     * Parses a comma-separated list of field names.
+     */
+    static List<String> parseFieldNames(String value) {
+        final List<String> fieldNames = new ArrayList<>();
+        for (String fieldName : value.split(",")) {
+            if (!fieldName.trim().isEmpty()) {
+                fieldNames.add(fieldName.trim());
+            }
+        }
+        return fieldNames;
+    }
+
+    String[] getColumns() {
+        return columns;
+    }
+
+    /**
+     * Returns the index of the column of every field of the schema.
+     */
+    int[] map(RecordSchema schema) {
+        final int[] columnOfField = new int[schema.getFieldCount()];
+        for (int i = 0; i < columnOfField.length; i++) {
+            columnOfField[i] = columnOfFieldName.getOrDefault(schema.getField(i).getFieldName(), 0);
+        }
+        return columnOfField;
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dev.anthu.processors.snowflake;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes records as JSON objects straight into a reusable buffer with a streaming generator, keeping numbers,
+ * booleans, nested records and arrays in their native JSON types. The buffers and generators are reused for
+ * every record, so a writer must only be used by one thread at a time.
+ */
+final class VariantJsonWriter implements VariantWriter {
+
+    private final JsonFactory factory;
+    private final StringWriter[] buffers;
+    private final JsonGenerator[] generators;
+
+    VariantJsonWriter(JsonFactory factory) {
+        this(factory, 1);
+    }
+
+    /**
+     * @param columns number of columns written by {@link #write(Record, int[], Object[])}
+     */
+    VariantJsonWriter(JsonFactory factory, int columns) {
+        this.factory = factory;
+        this.buffers = new StringWriter[columns];
+        this.generators = new JsonGenerator[columns];
+        for (int i = 0; i < columns; i++) {
+            buffers[i] = new StringWriter(256);
+        }
+    }
+
+    String write(Record record) throws IOException {
+        try {
+            final JsonGenerator generator = generator(0);
+            writeRecord(generator, record);
+            generator.flush();
+            return buffers[0].toString();
+        } catch (IOException | RuntimeException e) {
+            reset();
+            throw e;
+        }
+    }
+
+    @Override
+    public void write(Record record, int[] columnOfField, Object[] values) throws IOException {
+        try {
+            for (int i = 0; i < values.length; i++) {
+                generator(i).writeStartObject();
+            }
+            final List<RecordField> fields = record.getSchema().getFields();
+            for (int i = 0; i < fields.size(); i++) {
+                if (columnOfField[i] >= 0) {
+                    writeField(generators[columnOfField[i]], record, fields.get(i));
+                }
+            }
+            for (int i = 0; i < values.length; i++) {
+                generators[i].writeEndObject();
+                generators[i].flush();
+                values[i] = buffers[i].toString();
+            }
+        } catch (IOException | RuntimeException e) {
+            reset();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the generator of the column with an emptied buffer, created on first use.
+     */
+    private JsonGenerator generator(int column) throws IOException {
+        buffers[column].getBuffer().setLength(0);
+        if (generators[column] == null) {
+            generators[column] = factory.createGenerator(buffers[column]);
+            // Every record is a root value of its own, written without a separator from the one before
+            generators[column].setRootValueSeparator(null);
+        }
+        return generators[column];
+    }
+
+    /**
+     * Drops the generators after a failed record, which may have left them within an object.
+     */
+    private void reset() {
+        Arrays.fill(generators, null);
+    }
+
+    private static void writeRecord(JsonGenerator generator, Record record) throws IOException {
+        generator.writeStartObject();
+        for (RecordField field : record.getSchema().getFields()) {
+            writeField(generator, record, field);
+        }
+        generator.writeEndObject();
+    }
+
+    private static void writeField(JsonGenerator generator, Record record, RecordField field) throws IOException {
+        generator.writeFieldName(field.getFieldName());
+        final Object value = record.getValue(field);
+        if (value instanceof Date) {
+            // Keep the date format configured in the record schema
+            generator.writeString(record.getAsString(field.getFieldName()));
+        } else {
+            writeValue(generator, value);
+        }
+    }
+
+    private static void writeValue(JsonGenerator generator, Object value) throws IOException {
+        if (value == null) {
+            generator.writeNull();
+        } else if (value instanceof String) {
+            generator.writeString((String) value);
+        } else if (value instanceof Boolean) {
+            generator.writeBoolean((Boolean) value);
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            generator.writeNumber(((Number) value).intValue());
+        } else if (value instanceof Long) {
+            generator.writeNumber((Long) value);
+        } else if (value instanceof Double) {
+            generator.writeNumber((Double) value);
+        } else if (value instanceof Float) {
+            generator.writeNumber((Float) value);
+        } else if (value instanceof BigDecimal) {
+            generator.writeNumber((BigDecimal) value);
+        } else if (value instanceof BigInteger) {
+            generator.writeNumber((BigInteger) value);
+        } else if (value instanceof Record) {
+            writeRecord(generator, (Record) value);
+        } else if (value instanceof Object[]) {
+            generator.writeStartArray();
+            for (Object element : (Object[]) value) {
+                writeValue(generator, element);
+            }
+            generator.writeEndArray();
+        } else if (value instanceof Collection) {
+            generator.writeStartArray();
+            for (Object element : (Collection<?>) value) {
+                writeValue(generator, element);
+            }
+            generator.writeEndArray();
+        } else if (value instanceof Map) {
+            generator.writeStartObject();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                generator.writeFieldName(String.valueOf(entry.getKey()));
+                writeValue(generator, entry.getValue());
+            }
+            generator.writeEndObject();
+        } else if (value instanceof byte[]) {
+            generator.writeBinary((byte[]) value);
+        } else {
+            generator.writeString(value.toString());
+        }
+    }
+}
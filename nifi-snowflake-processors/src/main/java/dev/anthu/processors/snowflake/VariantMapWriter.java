@@ -0,0 +1,96 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dev.anthu.processors.snowflake;
+
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes records as maps and lists, which the Snowflake ingest SDK takes as VARIANT values without parsing a
+ * JSON document. Numbers, booleans, strings and binary values are passed as they are.
+ */
+final class VariantMapWriter implements VariantWriter {
+
+    @Override
+    public void write(Record record, int[] columnOfField, Object[] values) {
+        // Rows may still be queued for insertion, so their maps are never reused
+        for (int i = 0; i < values.length; i++) {
+            values[i] = new LinkedHashMap<String, Object>();
+        }
+        final List<RecordField> fields = record.getSchema().getFields();
+        for (int i = 0; i < fields.size(); i++) {
+            if (columnOfField[i] >= 0) {
+                putField(asMap(values[columnOfField[i]]), record, fields.get(i));
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> asMap(Object value) {
+        return (Map<String, Object>) value;
+    }
+
+    private static Map<String, Object> toMap(Record record) {
+        final List<RecordField> fields = record.getSchema().getFields();
+        final Map<String, Object> map = new LinkedHashMap<>(fields.size() * 2);
+        for (RecordField field : fields) {
+            putField(map, record, field);
+        }
+        return map;
+    }
+
+    private static void putField(Map<String, Object> map, Record record, RecordField field) {
+        final Object value = record.getValue(field);
+        // Keep the date format configured in the record schema
+        map.put(field.getFieldName(), value instanceof Date ? record.getAsString(field.getFieldName()) : toVariant(value));
+    }
+
+    private static Object toVariant(Object value) {
+        if (value == null || value instanceof String || value instanceof Boolean || value instanceof Number || value instanceof byte[]) {
+            return value;
+        } else if (value instanceof Record) {
+            return toMap((Record) value);
+        } else if (value instanceof Object[]) {
+            final Object[] elements = (Object[]) value;
+            final List<Object> list = new ArrayList<>(elements.length);
+            for (Object element : elements) {
+                list.add(toVariant(element));
+            }
+            return list;
+        } else if (value instanceof Collection) {
+            final List<Object> list = new ArrayList<>(((Collection<?>) value).size());
+            for (Object element : (Collection<?>) value) {
+                list.add(toVariant(element));
+            }
+            return list;
+        } else if (value instanceof Map) {
+            final Map<String, Object> map = new LinkedHashMap<>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                map.put(String.valueOf(entry.getKey()), toVariant(entry.getValue()));
+            }
+            return map;
+        }
+        return value.toString();
+    }
+}
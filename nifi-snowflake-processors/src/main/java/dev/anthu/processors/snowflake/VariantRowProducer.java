@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dev.anthu.processors.snowflake;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.schema.access.SchemaNotFoundException;
+import org.apache.nifi.serialization.MalformedRecordException;
+import org.apache.nifi.serialization.RecordReader;
+import org.apache.nifi.serialization.RecordReaderFactory;
+import org.apache.nifi.serialization.RecordSetWriterFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes the fields of every record into one or more VARIANT columns, as JSON documents or as maps and lists.
+ */
+final class VariantRowProducer implements RowProducer {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+    private final RecordReaderFactory readerFactory;
+    private final RecordSetWriterFactory writerFactory;
+    private final VariantColumns columns;
+    private final IngestionTimestamp timestamp;
+    private final ComponentLog logger;
+    // Writers keep their buffers across FlowFiles, one per thread as FlowFiles are read by several threads at once
+    private final ThreadLocal<VariantWriter> writers;
+
+    /**
+     * @param writerFactory writer of rejected records, or null to route FlowFiles with rejected records to failure
+     * @param structured    true to write maps and lists, false to write JSON documents
+     */
+    VariantRowProducer(RecordReaderFactory readerFactory, RecordSetWriterFactory writerFactory, VariantColumns columns,
+                       boolean structured, IngestionTimestamp timestamp, ComponentLog logger) {
+        this.readerFactory = readerFactory;
+        this.writerFactory = writerFactory;
+        this.columns = columns;
+        this.timestamp = timestamp;
+        this.logger = logger;
+        this.writers = ThreadLocal.withInitial(() -> structured
+                ? new VariantMapWriter()
+                : new VariantJsonWriter(JSON_FACTORY, columns.getColumns().length));
+    }
+
+    @Override
+    public RowSource open(FlowFile flowFile, InputStream in, Set<String> tableColumns)
+            throws IOException, SchemaNotFoundException, MalformedRecordException {
+        final RecordReader reader = readerFactory.createRecordReader(flowFile.getAttributes(), in, flowFile.getSize(), logger);
+        return new RowSource.VariantRecords(reader, writers.get(), columns, timestamp.getColumn());
+    }
+
+    @Override
+    public FlowFile writeRejected(ProcessSession session, FlowFile flowFile, Map<Long, String> rejected) {
+        return writerFactory == null ? null : RejectedRecords.write(session, flowFile, rejected, readerFactory, writerFactory, logger);
+    }
+
+    @Override
+    public FlowFile writeAccepted(ProcessSession session, FlowFile flowFile, Map<Long, String> rejected) {
+        return writerFactory == null ? null : RejectedRecords.writeAccepted(session, flowFile, rejected, readerFactory, writerFactory, logger);
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dev.anthu.processors.snowflake;
+
+import org.apache.nifi.serialization.record.Record;
+
+import java.io.IOException;
+
+/**
+ * Writes the fields of records into the values of one or more VARIANT columns.
+ */
+interface VariantWriter {
+
+    /**
+     * Writes the fields of the record into one object per column, in a single pass over the fields.
+     *
+     * @param columnOfField index of the column of every field of the record schema, or -1 for fields left out
+     * @param values        receives the value of every column
+     */
+    void write(Record record, int[] columnOfField, Object[] values) throws IOException;
+}
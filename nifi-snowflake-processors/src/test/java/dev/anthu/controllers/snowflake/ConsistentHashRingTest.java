@@ -0,0 +1,54 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dev.anthu.controllers.snowflake;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ConsistentHashRingTest {
+
+    @Test
+    public void testKeysSpreadAcrossNodes() {
+        final ConsistentHashRing<String> ring = new ConsistentHashRing<>(Arrays.asList("a", "b", "c", "d"));
+        final Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 4000; i++) {
+            counts.merge(ring.get("DB.PUBLIC.TABLE_" + i + ":channel_0"), 1, Integer::sum);
+        }
+
+        assertEquals(4, counts.size());
+        for (int count : counts.values()) {
+            assertTrue(count > 500, "Uneven distribution " + counts);
+        }
+    }
+
+    @Test
+    public void testAddingNodeOnlyMovesKeysToIt() {
+        final ConsistentHashRing<String> three = new ConsistentHashRing<>(Arrays.asList("a", "b", "c"));
+        final ConsistentHashRing<String> four = new ConsistentHashRing<>(Arrays.asList("a", "b", "c", "d"));
+        for (int i = 0; i < 1000; i++) {
+            final String key = "DB.PUBLIC.TABLE_" + i + ":channel_0";
+            final String node = four.get(key);
+            assertTrue(node.equals("d") || node.equals(three.get(key)));
+        }
+    }
+}
@@ -0,0 +1,443 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dev.anthu.controllers.snowflake;
+
+import net.snowflake.ingest.streaming.OpenChannelRequest;
+import net.snowflake.ingest.streaming.SnowflakeStreamingIngestChannel;
+import net.snowflake.ingest.streaming.SnowflakeStreamingIngestClient;
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.dbcp.DBCPService;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.util.NoOpProcessor;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SnowflakeIngestControllerServiceTest {
+
+    private static final String CHANNEL_KEY = "DB.PUBLIC.SINK:channel_node1_0";
+    private static final String CHANNEL_NAME = "DB.PUBLIC.SINK.channel_node1_0";
+
+    private TestRunner testRunner;
+    private SnowflakeIngestControllerService service;
+    private SnowflakeStreamingIngestClient client;
+    private Properties clientProperties;
+    private final Map<String, String> committedTokens = new HashMap<>();
+
+    @BeforeEach
+    public void init() throws InitializationException {
+        client = mock(SnowflakeStreamingIngestClient.class);
+        when(client.openChannel(any())).thenAnswer(invocation -> openChannel(invocation.getArgument(0)));
+
+        testRunner = TestRunners.newTestRunner(NoOpProcessor.class);
+        service = new SnowflakeIngestControllerService() {
+            @Override
+            SnowflakeStreamingIngestClient createClient(String name, Properties properties) {
+                clientProperties = properties;
+                return client;
+            }
+        };
+        testRunner.addControllerService("snowflake", service);
+        testRunner.setProperty(service, SnowflakeIngestControllerService.SNOWFLAKE_URL, "https://account.snowflakecomputing.com");
+        testRunner.setProperty(service, SnowflakeIngestControllerService.SNOWFLAKE_USER, "NIFI");
+        testRunner.setProperty(service, SnowflakeIngestControllerService.SNOWFLAKE_PRIVATE_KEY, "key");
+        testRunner.setProperty(service, SnowflakeIngestControllerService.NODE_IDENTIFIER, "node1");
+        // Keeps the commit poller out of the way, tests fetch committed offsets themselves
+        testRunner.setProperty(service, SnowflakeIngestControllerService.COMMIT_POLL_INTERVAL, "1 hour");
+    }
+
+    @AfterEach
+    public void shutdown() {
+        if (testRunner.isControllerServiceEnabled(service)) {
+            testRunner.disableControllerService(service);
+        }
+    }
+
+    private SnowflakeStreamingIngestChannel openChannel(OpenChannelRequest request) {
+        final String name = request.getDBName() + "." + request.getSchemaName() + "." + request.getTableName() + "." + request.getChannelName();
+        final SnowflakeStreamingIngestChannel channel = mock(SnowflakeStreamingIngestChannel.class);
+        when(channel.getFullyQualifiedName()).thenReturn(name);
+        when(channel.isValid()).thenReturn(true);
+        when(channel.close()).thenReturn(CompletableFuture.completedFuture(null));
+        when(channel.getLatestCommittedOffsetToken()).thenAnswer(invocation -> committedTokens.get(name));
+        return channel;
+    }
+
+    private void restoreState(Map<String, String> state) throws IOException {
+        testRunner.getStateManager(service).setState(state, Scope.CLUSTER);
+    }
+
+    @Test
+    public void testRecoveredProgressSkipsCommittedRecords() throws IOException {
+        restoreState(Collections.singletonMap("A", CHANNEL_KEY + "|-1|6:9,7:19"));
+        committedTokens.put(CHANNEL_NAME, "6:A:9");
+        testRunner.enableControllerService(service);
+
+        assertEquals(Collections.singletonMap("A", 9L), service.getCommittedRecordIndexes(Arrays.asList("A", "B")));
+    }
+
+    @Test
+    public void testOffsetsOfRecoveredProgressAreNotReusedAfterRestart() throws IOException {
+        // The previous run inserted the rows of FlowFile A with offsets 6 and 7, Snowflake committed neither
+        restoreState(Collections.singletonMap("A", CHANNEL_KEY + "|-1|6:9,7:19"));
+        committedTokens.put(CHANNEL_NAME, "5:C:99");
+        testRunner.enableControllerService(service);
+
+        final SnowflakeStreamingIngestChannel channel = service.getChannel("DB", "PUBLIC", "SINK", "channel");
+        final long offset = service.nextOffset(channel, 10);
+        assertTrue(offset > 7);
+
+        // Snowflake commits the rows of another FlowFile, which must not count for the lost offsets of A
+        committedTokens.put(CHANNEL_NAME, offset + ":B:9");
+        service.pollCommittedOffsets();
+        assertEquals(Collections.singletonMap("A", -1L), service.getCommittedRecordIndexes(Collections.singletonList("A")));
+        assertTrue(service.isCommitted(channel, offset));
+        assertFalse(service.isCommitted(channel, 6));
+        assertTrue(service.isLost(channel, 7));
+    }
+
+    @Test
+    public void testCommittedOffsetIsFetchedOncePerChannelAndLookup() {
+        testRunner.enableControllerService(service);
+        final SnowflakeStreamingIngestChannel channel = service.getChannel("DB", "PUBLIC", "SINK", "channel");
+        final Map<String, String> progress = new HashMap<>();
+        progress.put("A", "-1|" + service.nextOffset(channel, 10) + ":9");
+        progress.put("B", "-1|" + service.nextOffset(channel, 10) + ":9");
+        service.saveProgress(Collections.singletonMap(channel, progress));
+        committedTokens.put(CHANNEL_NAME, "1:A:9");
+
+        final Map<String, Long> expected = new HashMap<>();
+        expected.put("A", 9L);
+        expected.put("B", -1L);
+        assertEquals(expected, service.getCommittedRecordIndexes(Arrays.asList("A", "B")));
+        // Once when the channel was opened, once for the lookup
+        verify(channel, times(2)).getLatestCommittedOffsetToken();
+
+        // Known to be committed by the offsets polled in the background
+        service.getCommittedRecordIndexes(Collections.singletonList("A"));
+        verify(channel, times(2)).getLatestCommittedOffsetToken();
+    }
+
+    @Test
+    public void testChannelKeysKeepQuotedIdentifiersApart() throws IOException {
+        final String channelKey = SnowflakeIngestControllerService.getChannelKey("DB", "\"A.B\"", "\"C:D|%\"", "channel_node1_0");
+        assertEquals("DB.\"A%2EB\".\"C%3AD%7C%25\":channel_node1_0", channelKey);
+        assertArrayEquals(new String[]{"DB", "\"A.B\"", "\"C:D|%\"", "channel_node1_0"}, SnowflakeIngestControllerService.parseChannelKey(channelKey));
+        assertEquals(CHANNEL_KEY, SnowflakeIngestControllerService.getChannelKey("DB", "PUBLIC", "SINK", "channel_node1_0"));
+
+        restoreState(Collections.singletonMap("A", channelKey + "|-1|6:9"));
+        committedTokens.put("DB.\"A.B\".\"C:D|%\".channel_node1_0", "6:A:9");
+        testRunner.enableControllerService(service);
+
+        assertEquals(Collections.singletonMap("A", 9L), service.getCommittedRecordIndexes(Collections.singletonList("A")));
+    }
+
+    @Test
+    public void testProgressIsStoredByTheCommitPollerWithItsLastOffsets() throws IOException {
+        testRunner.enableControllerService(service);
+        final SnowflakeStreamingIngestChannel channel = service.getChannel("DB", "PUBLIC", "SINK", "channel");
+        final StringBuilder progress = new StringBuilder("-1|");
+        final StringBuilder expected = new StringBuilder(CHANNEL_KEY + "|39|");
+        for (int i = 0; i < 20; i++) {
+            final long offset = service.nextOffset(channel, 10);
+            progress.append(i == 0 ? "" : ",").append(offset).append(':').append(i * 10 + 9);
+            if (i >= 12) {
+                expected.append(i == 12 ? "" : ",").append(offset).append(':').append(i * 10 + 9);
+            }
+        }
+        committedTokens.put(CHANNEL_NAME, "4:A:39");
+        service.pollCommittedOffsets();
+
+        service.saveProgress(Collections.singletonMap(channel, Collections.singletonMap("A", progress.toString())));
+        assertNull(testRunner.getStateManager(service).getState(Scope.CLUSTER).get("A"));
+
+        service.pollCommittedOffsets();
+        assertEquals(expected.toString(), testRunner.getStateManager(service).getState(Scope.CLUSTER).get("A"));
+    }
+
+    @Test
+    public void testStoredProgressIsLimited() throws IOException {
+        testRunner.enableControllerService(service);
+        final SnowflakeStreamingIngestChannel channel = service.getChannel("DB", "PUBLIC", "SINK", "channel");
+        final Map<String, String> progress = new HashMap<>();
+        for (int i = 0; i < 600; i++) {
+            progress.put("FlowFile" + i, "-1|" + service.nextOffset(channel, 1) + ":0");
+        }
+        service.saveProgress(Collections.singletonMap(channel, progress));
+        service.pollCommittedOffsets();
+
+        final Map<String, String> state = testRunner.getStateManager(service).getState(Scope.CLUSTER).toMap();
+        assertEquals(500, state.keySet().stream().filter(key -> key.startsWith("FlowFile")).count());
+    }
+
+    @Test
+    public void testLeasedChannelsAreNotEvicted() {
+        testRunner.setProperty(service, SnowflakeIngestControllerService.CHANNEL_IDLE_TIMEOUT, "0 sec");
+        testRunner.enableControllerService(service);
+        final SnowflakeStreamingIngestChannel channel = service.getChannel("DB", "PUBLIC", "SINK", "channel");
+
+        service.evictChannels();
+        verify(channel, never()).close();
+
+        service.returnChannel(channel);
+        service.evictChannels();
+        verify(channel).close();
+        assertNotSame(channel, service.getChannel("DB", "PUBLIC", "SINK", "channel"));
+    }
+
+    @Test
+    public void testProgressOfChannelsOwnedByAnotherNodeIsNotRecovered() throws IOException {
+        final Map<String, String> state = new HashMap<>();
+        state.put("A", CHANNEL_KEY + "|-1|6:9");
+        state.put("owner:" + CHANNEL_KEY, "node2");
+        restoreState(state);
+        committedTokens.put(CHANNEL_NAME, "6:A:9");
+        testRunner.enableControllerService(service);
+
+        assertTrue(service.getCommittedRecordIndexes(Collections.singletonList("A")).isEmpty());
+    }
+
+    @Test
+    public void testChannelOffsetsAreCommittedInOrder() {
+        final SnowflakeIngestControllerService.ChannelOffsets offsets = new SnowflakeIngestControllerService.ChannelOffsets(5);
+        assertEquals(6, offsets.next(10));
+        assertEquals(7, offsets.next(20));
+        assertEquals(30, offsets.getUncommittedRows());
+
+        offsets.commit(6);
+        assertTrue(offsets.isCommitted(6));
+        assertFalse(offsets.isCommitted(7));
+        assertFalse(offsets.isLost(7));
+        assertEquals(20, offsets.getUncommittedRows());
+    }
+
+    @Test
+    public void testOffsetsOfAnInvalidatedChannelAreLost() {
+        final SnowflakeIngestControllerService.ChannelOffsets offsets = new SnowflakeIngestControllerService.ChannelOffsets(5);
+        offsets.next(10);
+        offsets.next(10);
+        offsets.commit(6);
+
+        offsets.invalidate();
+        assertTrue(offsets.isLost(7));
+        assertFalse(offsets.isLost(6));
+        assertFalse(offsets.hasUncommitted());
+
+        // The reopened channel continues after the lost offset, which stays lost once later offsets are committed
+        offsets.open(6, 0);
+        final long offset = offsets.next(10);
+        assertEquals(8, offset);
+        offsets.commit(offset);
+        assertTrue(offsets.isCommitted(offset));
+        assertFalse(offsets.isCommitted(7));
+        assertTrue(offsets.isLost(7));
+    }
+
+    @Test
+    public void testOpenBackoffDoublesUpToTheMaximumDelay() {
+        final long now = System.currentTimeMillis();
+        assertBackoff(SnowflakeIngestControllerService.OpenBackoff.INITIAL_DELAY, now, new SnowflakeIngestControllerService.OpenBackoff(1));
+        assertBackoff(4 * SnowflakeIngestControllerService.OpenBackoff.INITIAL_DELAY, now, new SnowflakeIngestControllerService.OpenBackoff(3));
+        assertBackoff(SnowflakeIngestControllerService.OpenBackoff.MAX_DELAY, now, new SnowflakeIngestControllerService.OpenBackoff(30));
+    }
+
+    private static void assertBackoff(long delay, long before, SnowflakeIngestControllerService.OpenBackoff backoff) {
+        assertTrue(backoff.retryAt >= before + delay);
+        assertTrue(backoff.retryAt <= System.currentTimeMillis() + delay);
+    }
+
+    @Test
+    public void testFailedOpenIsNotRetriedDuringBackoff() {
+        testRunner.enableControllerService(service);
+        doThrow(new RuntimeException("unavailable")).when(client).openChannel(any());
+
+        assertThrows(ProcessException.class, () -> service.getChannel("DB", "PUBLIC", "SINK", "channel"));
+        assertThrows(ProcessException.class, () -> service.getChannel("DB", "PUBLIC", "SINK", "channel"));
+        verify(client, times(1)).openChannel(any());
+    }
+
+    @Test
+    public void testInvalidChannelIsReopenedAndItsOffsetsAreLost() {
+        testRunner.enableControllerService(service);
+        final SnowflakeStreamingIngestChannel channel = service.getChannel("DB", "PUBLIC", "SINK", "channel");
+        final long offset = service.nextOffset(channel, 10);
+        service.returnChannel(channel);
+
+        when(channel.isValid()).thenReturn(false);
+        final SnowflakeStreamingIngestChannel reopened = service.getChannel("DB", "PUBLIC", "SINK", "channel");
+
+        assertNotSame(channel, reopened);
+        verify(channel).close();
+        assertTrue(service.isLost(reopened, offset));
+        assertTrue(service.nextOffset(reopened, 10) > offset);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedChannelsAreEvictedAboveTheMaximum() throws InterruptedException {
+        testRunner.setProperty(service, SnowflakeIngestControllerService.MAX_OPEN_CHANNELS, "1");
+        testRunner.setProperty(service, SnowflakeIngestControllerService.CHANNEL_IDLE_TIMEOUT, "1 day");
+        testRunner.enableControllerService(service);
+        final SnowflakeStreamingIngestChannel first = service.getChannel("DB", "PUBLIC", "FIRST", "channel");
+        service.returnChannel(first);
+        Thread.sleep(5);
+        final SnowflakeStreamingIngestChannel second = service.getChannel("DB", "PUBLIC", "SECOND", "channel");
+        service.returnChannel(second);
+
+        // Both channels have been idle for longer than the Commit Poll Interval
+        service.evictChannels(System.currentTimeMillis() + TimeUnit.HOURS.toMillis(2));
+
+        verify(first).close();
+        verify(second, never()).close();
+        assertSame(second, service.getChannel("DB", "PUBLIC", "SECOND", "channel"));
+    }
+
+    @Test
+    public void testAddingColumnsClosesLeasedChannelsOnceReturned() throws InitializationException, SQLException {
+        final DBCPService pool = mock(DBCPService.class);
+        final Connection connection = mock(Connection.class);
+        final Statement statement = mock(Statement.class);
+        when(pool.getConnection()).thenReturn(connection);
+        when(connection.createStatement()).thenReturn(statement);
+        when(statement.executeQuery(any())).thenReturn(mock(ResultSet.class));
+        testRunner.addControllerService("metadata", pool);
+        testRunner.enableControllerService(pool);
+        testRunner.setProperty(service, SnowflakeIngestControllerService.METADATA_CONNECTION_POOL, "metadata");
+        testRunner.enableControllerService(service);
+
+        final SnowflakeStreamingIngestChannel leased = service.getChannel("DB", "PUBLIC", "SINK", "channel");
+        final SnowflakeStreamingIngestChannel idle = service.getChannel("DB", "PUBLIC", "SINK", "other");
+        service.returnChannel(idle);
+
+        service.addColumns("DB", "PUBLIC", "SINK", Collections.singletonMap("NAME", "VARCHAR"));
+        verify(idle).close();
+        verify(leased, never()).close();
+
+        service.returnChannel(leased);
+        verify(leased).close();
+        assertNotSame(leased, service.getChannel("DB", "PUBLIC", "SINK", "channel"));
+    }
+
+    @Test
+    public void testShutdownClosesChannelsAndClients() throws Exception {
+        testRunner.enableControllerService(service);
+        final SnowflakeStreamingIngestChannel channel = service.getChannel("DB", "PUBLIC", "SINK", "channel");
+        service.returnChannel(channel);
+
+        service.onShutdown();
+        verify(channel).close();
+        verify(client).close();
+    }
+
+    @Test
+    public void testRowsOfClosedChannelsAreNotUncommitted() {
+        testRunner.enableControllerService(service);
+        final SnowflakeStreamingIngestChannel channel = service.getChannel("DB", "PUBLIC", "SINK", "channel");
+        service.nextOffset(channel, 10);
+        service.returnChannel(channel);
+        assertEquals(10, service.getUncommittedRows());
+
+        service.closeChannel("DB", "PUBLIC", "SINK", "channel");
+        assertEquals(0, service.getUncommittedRows());
+        assertEquals(0, service.getCommitLag());
+    }
+
+    @Test
+    public void testRowsInFlightWhenDisabledDoNotThrottleAfterEnabling() {
+        testRunner.enableControllerService(service);
+        final SnowflakeStreamingIngestChannel channel = service.getChannel("DB", "PUBLIC", "SINK", "channel");
+        service.nextOffset(channel, 10);
+        service.returnChannel(channel);
+
+        testRunner.disableControllerService(service);
+        testRunner.enableControllerService(service);
+
+        assertEquals(0, service.getUncommittedRows());
+        assertEquals(0, service.getCommitLag());
+    }
+
+    @Test
+    public void testSdkDefaultsSetNoClientParameters() {
+        testRunner.enableControllerService(service);
+
+        assertFalse(clientProperties.containsKey(SnowflakeIngestControllerService.PARAMETER_BUFFER_FLUSH_INTERVAL));
+        assertFalse(clientProperties.containsKey(SnowflakeIngestControllerService.PARAMETER_MAX_MEMORY_LIMIT));
+    }
+
+    @Test
+    public void testClientProfileSetsClientParameters() {
+        testRunner.setProperty(service, SnowflakeIngestControllerService.CLIENT_PROFILE, SnowflakeIngestControllerService.PROFILE_LOW_LATENCY.getValue());
+        testRunner.enableControllerService(service);
+
+        assertEquals("200", clientProperties.get(SnowflakeIngestControllerService.PARAMETER_BUFFER_FLUSH_INTERVAL));
+        assertEquals("20", clientProperties.get(SnowflakeIngestControllerService.PARAMETER_BUFFER_FLUSH_CHECK_INTERVAL));
+    }
+
+    @Test
+    public void testCustomProfileSetsConfiguredClientParameters() {
+        testRunner.setProperty(service, SnowflakeIngestControllerService.CLIENT_PROFILE, SnowflakeIngestControllerService.PROFILE_CUSTOM.getValue());
+        testRunner.setProperty(service, SnowflakeIngestControllerService.BUFFER_FLUSH_INTERVAL, "2 sec");
+        testRunner.setProperty(service, SnowflakeIngestControllerService.MAX_MEMORY_LIMIT, "1 GB");
+        testRunner.enableControllerService(service);
+
+        assertEquals("2000", clientProperties.get(SnowflakeIngestControllerService.PARAMETER_BUFFER_FLUSH_INTERVAL));
+        assertEquals(String.valueOf(1024L * 1024 * 1024), clientProperties.get(SnowflakeIngestControllerService.PARAMETER_MAX_MEMORY_LIMIT));
+        assertFalse(clientProperties.containsKey(SnowflakeIngestControllerService.PARAMETER_MAX_CHUNK_SIZE));
+    }
+
+    @Test
+    public void testIdentifiersAreQuotedAndEscaped() {
+        assertEquals("\"MY_TABLE\"", SnowflakeIngestControllerService.quoteIdentifier("my_table"));
+        assertEquals("\"name\"", SnowflakeIngestControllerService.quoteIdentifier("\"name\""));
+        assertEquals("\"a\"\"b\"", SnowflakeIngestControllerService.quoteIdentifier("\"a\"\"b\""));
+        assertEquals("\"X\"\" INT); DROP TABLE T; --\"",
+                SnowflakeIngestControllerService.quoteIdentifier("x\" int); drop table t; --"));
+        assertThrows(ProcessException.class, () -> SnowflakeIngestControllerService.quoteIdentifier("\"\""));
+        assertThrows(ProcessException.class, () -> SnowflakeIngestControllerService.quoteIdentifier("a\nb"));
+    }
+}
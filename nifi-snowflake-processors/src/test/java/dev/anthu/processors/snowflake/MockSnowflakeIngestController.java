@@ -0,0 +1,187 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dev.anthu.processors.snowflake;
+
+import dev.anthu.controllers.snowflake.SnowflakeIngestController;
+import net.snowflake.ingest.streaming.SnowflakeStreamingIngestChannel;
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.processor.exception.ProcessException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class MockSnowflakeIngestController extends AbstractControllerService implements SnowflakeIngestController {
+
+    private final SnowflakeStreamingIngestChannel channel;
+    private final AtomicLong offset = new AtomicLong();
+    private volatile boolean committed = true;
+    private volatile long uncommittedRows;
+    private final Map<String, String> progress = new ConcurrentHashMap<>();
+    private final List<String> requestedTables = new ArrayList<>();
+    private final Set<String> requestedChannels = new LinkedHashSet<>();
+    private final AtomicInteger leasedChannels = new AtomicInteger();
+    private volatile Set<String> columns;
+    private volatile String unavailableTable;
+    private final Map<String, String> addedColumns = new LinkedHashMap<>();
+
+    public MockSnowflakeIngestController(SnowflakeStreamingIngestChannel channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public SnowflakeStreamingIngestChannel getChannel(String database, String schema, String table, String channelName) {
+        if (table.equals(unavailableTable)) {
+            throw new ProcessException("Unable to establish Snowflake channel " + channelName);
+        }
+        requestedTables.add(table);
+        requestedChannels.add(channelName);
+        leasedChannels.incrementAndGet();
+        return channel;
+    }
+
+    @Override
+    public void returnChannel(SnowflakeStreamingIngestChannel channel) {
+        leasedChannels.decrementAndGet();
+    }
+
+    @Override
+    public void closeChannel(String database, String schema, String table, String channelName) {
+    }
+
+    @Override
+    public long nextOffset(SnowflakeStreamingIngestChannel channel, int rows) {
+        return offset.incrementAndGet();
+    }
+
+    @Override
+    public boolean isCommitted(SnowflakeStreamingIngestChannel channel, long offset) {
+        return committed;
+    }
+
+    @Override
+    public boolean isLost(SnowflakeStreamingIngestChannel channel, long offset) {
+        return false;
+    }
+
+    @Override
+    public long getUncommittedRows() {
+        return uncommittedRows;
+    }
+
+    @Override
+    public long getCommitLag() {
+        return 0;
+    }
+
+    public void setUncommittedRows(long uncommittedRows) {
+        this.uncommittedRows = uncommittedRows;
+    }
+
+    @Override
+    public void saveProgress(Map<SnowflakeStreamingIngestChannel, Map<String, String>> channelProgress) {
+        for (Map<String, String> flowFileProgress : channelProgress.values()) {
+            progress.putAll(flowFileProgress);
+        }
+    }
+
+    @Override
+    public Map<String, Long> getCommittedRecordIndexes(Collection<String> flowFileUuids) {
+        final Map<String, Long> committedRecordIndexes = new HashMap<>();
+        for (String flowFileUuid : flowFileUuids) {
+            final String value = progress.get(flowFileUuid);
+            if (value == null) {
+                continue;
+            }
+            long committedRecordIndex = Long.parseLong(value.substring(0, value.indexOf('|')));
+            final String pairs = value.substring(value.indexOf('|') + 1);
+            if (committed && !pairs.isEmpty()) {
+                for (String pair : pairs.split(",")) {
+                    committedRecordIndex = Math.max(committedRecordIndex, Long.parseLong(pair.substring(pair.indexOf(':') + 1)));
+                }
+            }
+            committedRecordIndexes.put(flowFileUuid, committedRecordIndex);
+        }
+        return committedRecordIndexes;
+    }
+
+    @Override
+    public void releaseProgress(Collection<String> flowFileUuids) {
+        progress.keySet().removeAll(flowFileUuids);
+    }
+
+    public Map<String, String> getProgress() {
+        return progress;
+    }
+
+    public List<String> getRequestedTables() {
+        return requestedTables;
+    }
+
+    public Set<String> getRequestedChannels() {
+        return requestedChannels;
+    }
+
+    public int getLeasedChannels() {
+        return leasedChannels.get();
+    }
+
+    public void setUnavailableTable(String unavailableTable) {
+        this.unavailableTable = unavailableTable;
+    }
+
+    public void setCommitted(boolean committed) {
+        this.committed = committed;
+    }
+
+    @Override
+    public Set<String> getColumns(String database, String schema, String table) {
+        return columns;
+    }
+
+    @Override
+    public Set<String> refreshColumns(String database, String schema, String table) {
+        return columns;
+    }
+
+    @Override
+    public void addColumns(String database, String schema, String table, Map<String, String> newColumns) {
+        addedColumns.putAll(newColumns);
+        final Set<String> names = new HashSet<>(columns);
+        for (String column : newColumns.keySet()) {
+            names.add(column.startsWith("\"") ? column.substring(1, column.length() - 1) : column);
+        }
+        columns = names;
+    }
+
+    public void setColumns(Set<String> columns) {
+        this.columns = columns;
+    }
+
+    public Map<String, String> getAddedColumns() {
+        return addedColumns;
+    }
+}
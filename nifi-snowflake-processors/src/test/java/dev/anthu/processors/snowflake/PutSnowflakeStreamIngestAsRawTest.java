@@ -0,0 +1,184 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dev.anthu.processors.snowflake;
+
+import net.snowflake.ingest.streaming.InsertValidationResponse;
+import net.snowflake.ingest.streaming.SnowflakeStreamingIngestChannel;
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class PutSnowflakeStreamIngestAsRawTest {
+
+    private TestRunner testRunner;
+
+    private final List<Object> insertedValues = new ArrayList<>();
+    private final List<Integer> batchSizes = new ArrayList<>();
+
+    @BeforeEach
+    public void init() throws InitializationException {
+        testRunner = TestRunners.newTestRunner(PutSnowflakeStreamIngestAsRaw.class);
+
+        final SnowflakeStreamingIngestChannel channel = mock(SnowflakeStreamingIngestChannel.class);
+        final InsertValidationResponse response = mock(InsertValidationResponse.class);
+        when(channel.insertRows(any(), any())).thenAnswer(invocation -> {
+            final Iterable<Map<String, Object>> rows = invocation.getArgument(0);
+            int count = 0;
+            for (Map<String, Object> row : rows) {
+                insertedValues.add(row.get("V"));
+                count++;
+            }
+            batchSizes.add(count);
+            return response;
+        });
+
+        final MockSnowflakeIngestController controller = new MockSnowflakeIngestController(channel);
+        testRunner.addControllerService("snowflake", controller);
+        testRunner.enableControllerService(controller);
+
+        testRunner.setProperty(SnowflakeDefaultProperties.SNOWFLAKE_SERVICE, "snowflake");
+        testRunner.setProperty(SnowflakeDefaultProperties.SNOWFLAKE_DATABASE, "DB");
+        testRunner.setProperty(SnowflakeDefaultProperties.SNOWFLAKE_SCHEMA, "PUBLIC");
+        testRunner.setProperty(SnowflakeDefaultProperties.SNOWFLAKE_TABLE, "SINK");
+        testRunner.setProperty(PutSnowflakeStreamIngestAsRaw.SNOWFLAKE_TARGET_COLUMN, "V");
+    }
+
+    @Test
+    public void testWholeContentKeepsLineEndings() {
+        testRunner.enqueue("first\r\nsecond\n");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSnowflakeStreamIngestAsRaw.REL_SUCCESS, 1);
+        assertEquals(Collections.singletonList("first\r\nsecond\n"), insertedValues);
+    }
+
+    @Test
+    public void testPerLineInBatches() {
+        testRunner.setProperty(PutSnowflakeStreamIngestAsRaw.SPLIT_MODE, PutSnowflakeStreamIngestAsRaw.SPLIT_PER_LINE.getValue());
+        testRunner.setProperty(SnowflakeDefaultProperties.SNOWFLAKE_BATCH_SIZE, "2");
+
+        testRunner.enqueue("a\r\nb\n\nc\nd");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSnowflakeStreamIngestAsRaw.REL_SUCCESS, 1);
+        assertEquals(Arrays.asList("a", "b", "c", "d"), insertedValues);
+        assertEquals(Arrays.asList(2, 2), batchSizes);
+    }
+
+    @Test
+    public void testPerLineOnInsertThread() {
+        testRunner.setProperty(PutSnowflakeStreamIngestAsRaw.SPLIT_MODE, PutSnowflakeStreamIngestAsRaw.SPLIT_PER_LINE.getValue());
+        testRunner.setProperty(SnowflakeDefaultProperties.SNOWFLAKE_BATCH_SIZE, "2");
+        testRunner.setProperty(SnowflakeDefaultProperties.SNOWFLAKE_INSERT_THREADS, "1");
+
+        testRunner.enqueue("a\nb\nc\nd\ne");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSnowflakeStreamIngestAsRaw.REL_SUCCESS, 1);
+        assertEquals(Arrays.asList("a", "b", "c", "d", "e"), insertedValues);
+        assertEquals(Arrays.asList(2, 2, 1), batchSizes);
+    }
+
+    @Test
+    public void testPerDelimiter() {
+        testRunner.setProperty(PutSnowflakeStreamIngestAsRaw.SPLIT_MODE, PutSnowflakeStreamIngestAsRaw.SPLIT_PER_DELIMITER.getValue());
+        testRunner.setProperty(PutSnowflakeStreamIngestAsRaw.SPLIT_DELIMITER, "||");
+
+        testRunner.enqueue("a||b|c||||d");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSnowflakeStreamIngestAsRaw.REL_SUCCESS, 1);
+        assertEquals(Arrays.asList("a", "b|c", "d"), insertedValues);
+    }
+
+    @Test
+    public void testDelimiterSpanningReads() {
+        testRunner.setProperty(PutSnowflakeStreamIngestAsRaw.SPLIT_MODE, PutSnowflakeStreamIngestAsRaw.SPLIT_PER_DELIMITER.getValue());
+        testRunner.setProperty(PutSnowflakeStreamIngestAsRaw.SPLIT_DELIMITER, "||");
+        final char[] first = new char[8191];
+        Arrays.fill(first, 'a');
+
+        // Content is read 8 KB at a time, the delimiter after the first segment starts in the first read and ends in the second
+        testRunner.enqueue(new String(first) + "||b||c");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSnowflakeStreamIngestAsRaw.REL_SUCCESS, 1);
+        assertEquals(Arrays.asList(new String(first), "b", "c"), insertedValues);
+    }
+
+    @Test
+    public void testFixedSize() {
+        testRunner.setProperty(PutSnowflakeStreamIngestAsRaw.SPLIT_MODE, PutSnowflakeStreamIngestAsRaw.SPLIT_FIXED_SIZE.getValue());
+        testRunner.setProperty(PutSnowflakeStreamIngestAsRaw.MAX_SEGMENT_SIZE, "4 B");
+
+        testRunner.enqueue("abcdefghij");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSnowflakeStreamIngestAsRaw.REL_SUCCESS, 1);
+        assertEquals(Arrays.asList("abcd", "efgh", "ij"), insertedValues);
+    }
+
+    @Test
+    public void testOversizeLineRoutesToFailure() {
+        testRunner.setProperty(PutSnowflakeStreamIngestAsRaw.SPLIT_MODE, PutSnowflakeStreamIngestAsRaw.SPLIT_PER_LINE.getValue());
+        testRunner.setProperty(PutSnowflakeStreamIngestAsRaw.MAX_SEGMENT_SIZE, "4 B");
+
+        testRunner.enqueue("abcdefghij\n");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSnowflakeStreamIngestAsRaw.REL_FAILURE, 1);
+    }
+
+    @Test
+    public void testBinaryContentIsWrittenAsBytes() {
+        testRunner.setProperty(PutSnowflakeStreamIngestAsRaw.TARGET_COLUMN_TYPE, PutSnowflakeStreamIngestAsRaw.COLUMN_TYPE_BINARY.getValue());
+        final byte[] content = {(byte) 0xFF, 0, '\n', (byte) 0xC3};
+
+        testRunner.enqueue(content);
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSnowflakeStreamIngestAsRaw.REL_SUCCESS, 1);
+        assertEquals(1, insertedValues.size());
+        assertArrayEquals(content, (byte[]) insertedValues.get(0));
+    }
+
+    @Test
+    public void testOversizeBinaryContentRoutesToFailure() {
+        testRunner.setProperty(PutSnowflakeStreamIngestAsRaw.TARGET_COLUMN_TYPE, PutSnowflakeStreamIngestAsRaw.COLUMN_TYPE_BINARY.getValue());
+        testRunner.setProperty(PutSnowflakeStreamIngestAsRaw.MAX_SEGMENT_SIZE, "4 B");
+
+        testRunner.enqueue(new byte[5]);
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSnowflakeStreamIngestAsRaw.REL_FAILURE, 1);
+        assertEquals(0, insertedValues.size());
+    }
+}
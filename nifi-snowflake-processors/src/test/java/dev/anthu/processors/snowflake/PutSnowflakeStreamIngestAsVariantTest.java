@@ -0,0 +1,143 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dev.anthu.processors.snowflake;
+
+import net.snowflake.ingest.streaming.InsertValidationResponse;
+import net.snowflake.ingest.streaming.SnowflakeStreamingIngestChannel;
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.serialization.record.MockRecordParser;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class PutSnowflakeStreamIngestAsVariantTest {
+
+    private TestRunner testRunner;
+    private MockRecordParser recordReader;
+
+    private final List<Map<String, Object>> insertedRows = new ArrayList<>();
+
+    @BeforeEach
+    public void init() throws InitializationException {
+        testRunner = TestRunners.newTestRunner(PutSnowflakeStreamIngestAsVariant.class);
+
+        final SnowflakeStreamingIngestChannel channel = mock(SnowflakeStreamingIngestChannel.class);
+        final InsertValidationResponse response = mock(InsertValidationResponse.class);
+        when(channel.insertRows(any(), any())).thenAnswer(invocation -> {
+            final Iterable<Map<String, Object>> rows = invocation.getArgument(0);
+            for (Map<String, Object> row : rows) {
+                insertedRows.add(new HashMap<>(row));
+            }
+            return response;
+        });
+
+        final MockSnowflakeIngestController controller = new MockSnowflakeIngestController(channel);
+        testRunner.addControllerService("snowflake", controller);
+        testRunner.enableControllerService(controller);
+
+        recordReader = new MockRecordParser();
+        testRunner.addControllerService("reader", recordReader);
+        testRunner.enableControllerService(recordReader);
+
+        testRunner.setProperty(SnowflakeDefaultProperties.RECORD_READER, "reader");
+        testRunner.setProperty(SnowflakeDefaultProperties.SNOWFLAKE_SERVICE, "snowflake");
+        testRunner.setProperty(SnowflakeDefaultProperties.SNOWFLAKE_DATABASE, "DB");
+        testRunner.setProperty(SnowflakeDefaultProperties.SNOWFLAKE_SCHEMA, "PUBLIC");
+        testRunner.setProperty(SnowflakeDefaultProperties.SNOWFLAKE_TABLE, "SINK");
+        testRunner.setProperty(PutSnowflakeStreamIngestAsVariant.SNOWFLAKE_TARGET_COLUMN, "V");
+    }
+
+    @Test
+    public void testRecordsAreWrittenWithNativeJsonTypes() {
+        recordReader.addSchemaField("id", RecordFieldType.INT);
+        recordReader.addSchemaField("name", RecordFieldType.STRING);
+        recordReader.addSchemaField("active", RecordFieldType.BOOLEAN);
+        recordReader.addSchemaField("score", RecordFieldType.DOUBLE);
+        recordReader.addRecord(1, "first", true, 1.5);
+        recordReader.addRecord(2, null, false, null);
+
+        testRunner.enqueue("");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSnowflakeStreamIngestAsVariant.REL_SUCCESS, 1);
+        assertEquals(2, insertedRows.size());
+        assertEquals("{\"id\":1,\"name\":\"first\",\"active\":true,\"score\":1.5}", insertedRows.get(0).get("V"));
+        assertEquals("{\"id\":2,\"name\":null,\"active\":false,\"score\":null}", insertedRows.get(1).get("V"));
+    }
+
+    @Test
+    public void testFieldsAreSplitIntoColumnsAsJson() {
+        recordReader.addSchemaField("id", RecordFieldType.INT);
+        recordReader.addSchemaField("source", RecordFieldType.STRING);
+        recordReader.addSchemaField("name", RecordFieldType.STRING);
+        recordReader.addRecord(1, "crm", "first");
+        testRunner.setProperty("META", "source, id");
+
+        testRunner.enqueue("");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSnowflakeStreamIngestAsVariant.REL_SUCCESS, 1);
+        assertEquals("{\"name\":\"first\"}", insertedRows.get(0).get("V"));
+        assertEquals("{\"id\":1,\"source\":\"crm\"}", insertedRows.get(0).get("META"));
+    }
+
+    @Test
+    public void testStructuredFormatWritesMapsAndLists() {
+        recordReader.addSchemaField("id", RecordFieldType.INT);
+        recordReader.addSchemaField(new RecordField("tags", RecordFieldType.ARRAY.getArrayDataType(RecordFieldType.STRING.getDataType())));
+        recordReader.addRecord(1, new Object[]{"a", "b"});
+        testRunner.setProperty(PutSnowflakeStreamIngestAsVariant.VARIANT_FORMAT, PutSnowflakeStreamIngestAsVariant.VARIANT_FORMAT_STRUCTURED.getValue());
+
+        testRunner.enqueue("");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSnowflakeStreamIngestAsVariant.REL_SUCCESS, 1);
+        final Map<String, Object> expected = new LinkedHashMap<>();
+        expected.put("id", 1);
+        expected.put("tags", Arrays.asList("a", "b"));
+        assertEquals(expected, insertedRows.get(0).get("V"));
+    }
+
+    @Test
+    public void testRecordReaderIsRequired() {
+        testRunner.removeProperty(SnowflakeDefaultProperties.RECORD_READER);
+        testRunner.assertNotValid();
+    }
+
+    @Test
+    public void testFieldInTwoColumnsIsInvalid() {
+        testRunner.setProperty("META", "id");
+        testRunner.setProperty("KEYS", "id");
+
+        testRunner.assertNotValid();
+    }
+}
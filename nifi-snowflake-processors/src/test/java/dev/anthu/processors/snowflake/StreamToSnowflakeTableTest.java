@@ -16,24 +16,637 @@
  */
 package dev.anthu.processors.snowflake;
 
+import net.snowflake.ingest.streaming.InsertValidationResponse;
+import net.snowflake.ingest.streaming.SnowflakeStreamingIngestChannel;
+import net.snowflake.ingest.utils.ErrorCode;
+import net.snowflake.ingest.utils.SFException;
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.record.MockRecordParser;
+import org.apache.nifi.serialization.record.MockRecordWriter;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.util.MockFlowFile;
 import org.apache.nifi.util.TestRunner;
 import org.apache.nifi.util.TestRunners;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
 
 public class StreamToSnowflakeTableTest {
 
     private TestRunner testRunner;
+    private SnowflakeStreamingIngestChannel channel;
+    private MockSnowflakeIngestController controller;
+    private MockRecordParser recordReader;
+
+    private final List<Integer> batchSizes = new ArrayList<>();
+    private final List<String> offsetTokens = new ArrayList<>();
+    private final List<Map<String, Object>> insertedRows = new ArrayList<>();
 
     @BeforeEach
-    public void init() {
+    public void init() throws InitializationException {
         testRunner = TestRunners.newTestRunner(PutSnowflakeStreamIngest.class);
+
+        channel = mock(SnowflakeStreamingIngestChannel.class);
+        when(channel.isValid()).thenReturn(true);
+        controller = new MockSnowflakeIngestController(channel);
+        testRunner.addControllerService("snowflake", controller);
+        testRunner.enableControllerService(controller);
+
+        recordReader = new MockRecordParser();
+        recordReader.addSchemaField("ID", RecordFieldType.INT);
+        recordReader.addSchemaField("name", RecordFieldType.STRING);
+        testRunner.addControllerService("reader", recordReader);
+        testRunner.enableControllerService(recordReader);
+
+        testRunner.setProperty(SnowflakeDefaultProperties.RECORD_READER, "reader");
+        testRunner.setProperty(SnowflakeDefaultProperties.SNOWFLAKE_SERVICE, "snowflake");
+        testRunner.setProperty(SnowflakeDefaultProperties.SNOWFLAKE_DATABASE, "DB");
+        testRunner.setProperty(SnowflakeDefaultProperties.SNOWFLAKE_SCHEMA, "PUBLIC");
+        testRunner.setProperty(SnowflakeDefaultProperties.SNOWFLAKE_TABLE, "SINK");
     }
 
     @Test
     public void testProcessor() {
+        respondWith(Collections.emptyList());
+        recordReader.addRecord(1, "first");
+
+        testRunner.enqueue("");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSnowflakeStreamIngest.REL_SUCCESS, 1);
+        assertEquals(Collections.singletonList(1), batchSizes);
+    }
+
+    @Test
+    public void testRecordsAreInsertedInBatches() {
+        respondWith(Collections.emptyList());
+        addRecords(2500);
+        testRunner.setProperty(SnowflakeDefaultProperties.SNOWFLAKE_BATCH_SIZE, "1000");
+
+        testRunner.enqueue("");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSnowflakeStreamIngest.REL_SUCCESS, 1);
+        assertEquals(Arrays.asList(1000, 1000, 500), batchSizes);
+        assertTrue(offsetTokens.get(0).endsWith(":999"));
+        assertTrue(offsetTokens.get(1).endsWith(":1999"));
+        assertTrue(offsetTokens.get(2).endsWith(":2499"));
+        verify(channel, never()).insertRow(any(), any());
+    }
+
+    @Test
+    public void testIngestMetricsAreReportedAsCounters() {
+        respondWith(Collections.singletonList(4L));
+        addRecords(2500);
+        testRunner.setProperty(SnowflakeDefaultProperties.SNOWFLAKE_BATCH_SIZE, "1000");
+
+        testRunner.enqueue("content");
+        testRunner.run();
+
+        assertEquals(3, (long) testRunner.getCounterValue("Insert Calls"));
+        assertEquals(2497, (long) testRunner.getCounterValue("Rows Inserted"));
+        assertEquals(3, (long) testRunner.getCounterValue("Rows Rejected"));
+        assertEquals(7, (long) testRunner.getCounterValue("Bytes Ingested"));
+        assertEquals(2, (long) testRunner.getCounterValue("Batch Size <= 1024 rows"));
+        assertEquals(1, (long) testRunner.getCounterValue("Batch Size <= 512 rows"));
+    }
+
+    @Test
+    public void testBatchingReducesChannelCalls() {
+        respondWith(Collections.emptyList());
+        addRecords(5000);
+
+        testRunner.setProperty(SnowflakeDefaultProperties.SNOWFLAKE_BATCH_SIZE, "1");
+        testRunner.enqueue("");
+        testRunner.run();
+        final int unbatchedCalls = batchSizes.size();
+
+        batchSizes.clear();
+        testRunner.setProperty(SnowflakeDefaultProperties.SNOWFLAKE_BATCH_SIZE, "1000");
+        testRunner.enqueue("");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSnowflakeStreamIngest.REL_SUCCESS, 2);
+        assertEquals(5000, unbatchedCalls);
+        assertEquals(5, batchSizes.size());
+    }
+
+    @Test
+    public void testRejectedRowFailsFlowFile() {
+        respondWith(Collections.singletonList(2L));
+        addRecords(10);
+        testRunner.setProperty(SnowflakeDefaultProperties.SNOWFLAKE_BATCH_SIZE, "4");
+
+        testRunner.enqueue("");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSnowflakeStreamIngest.REL_FAILURE, 1);
+        assertEquals(Arrays.asList(4, 4, 2), batchSizes);
+    }
+
+    @Test
+    public void testRejectedRecordsAreWrittenToFailure() throws InitializationException {
+        respondWith(Collections.singletonList(2L));
+        addRecords(8);
+        testRunner.setProperty(SnowflakeDefaultProperties.SNOWFLAKE_BATCH_SIZE, "4");
+        final MockRecordWriter recordWriter = new MockRecordWriter(null, false);
+        testRunner.addControllerService("writer", recordWriter);
+        testRunner.enableControllerService(recordWriter);
+        testRunner.setProperty(SnowflakeDefaultProperties.RECORD_WRITER, "writer");
+
+        testRunner.enqueue("");
+        testRunner.run();
+
+        testRunner.assertTransferCount(PutSnowflakeStreamIngest.REL_SUCCESS, 1);
+        testRunner.assertTransferCount(PutSnowflakeStreamIngest.REL_FAILURE, 1);
+        final MockFlowFile failed = testRunner.getFlowFilesForRelationship(PutSnowflakeStreamIngest.REL_FAILURE).get(0);
+        failed.assertAttributeEquals("record.count", "2");
+        failed.assertAttributeEquals(RejectedRecords.ERROR_COUNT, "2");
+        failed.assertAttributeEquals(RejectedRecords.ERROR_RECORD_INDEX, "2");
+        failed.assertAttributeEquals(RejectedRecords.ERROR_MESSAGE, new SFException(ErrorCode.INTERNAL_ERROR, "rejected").getMessage());
+        // Success only gets the accepted records, not the original FlowFile
+        final MockFlowFile accepted = testRunner.getFlowFilesForRelationship(PutSnowflakeStreamIngest.REL_SUCCESS).get(0);
+        accepted.assertAttributeEquals("record.count", "6");
+        accepted.assertAttributeNotExists(RejectedRecords.ERROR_COUNT);
+    }
+
+    @Test
+    public void testRecordsReadBeforeAFailureAreNotInserted() throws InitializationException {
+        respondWith(Collections.emptyList());
+        final MockRecordParser failingReader = new MockRecordParser(3);
+        failingReader.addSchemaField("ID", RecordFieldType.INT);
+        failingReader.addSchemaField("name", RecordFieldType.STRING);
+        for (int i = 0; i < 5; i++) {
+            failingReader.addRecord(i, "name" + i);
+        }
+        testRunner.addControllerService("failing-reader", failingReader);
+        testRunner.enableControllerService(failingReader);
+        testRunner.setProperty(SnowflakeDefaultProperties.RECORD_READER, "failing-reader");
+
+        testRunner.enqueue("");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSnowflakeStreamIngest.REL_FAILURE, 1);
+        assertTrue(batchSizes.isEmpty());
+    }
+
+    @Test
+    public void testValueAConverterCannotHandleFailsOnlyItsFlowFile() {
+        respondWith(Collections.emptyList());
+        recordReader.addSchemaField(new RecordField("RAW", RecordFieldType.ARRAY.getArrayDataType(RecordFieldType.BYTE.getDataType())));
+        recordReader.addRecord(1, "first", new Object[]{"not a byte"});
+
+        testRunner.enqueue("");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSnowflakeStreamIngest.REL_FAILURE, 1);
+        assertTrue(batchSizes.isEmpty());
+    }
+
+    @Test
+    public void testFieldsWithoutColumnAreIgnored() {
+        respondWith(Collections.emptyList());
+        recordReader.addRecord(1, "first");
+        controller.setColumns(Collections.singleton("ID"));
+        testRunner.setProperty(SnowflakeDefaultProperties.SNOWFLAKE_UNKNOWN_COLUMN_HANDLING, SnowflakeDefaultProperties.UNKNOWN_COLUMNS_IGNORE.getValue());
+
+        testRunner.enqueue("");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSnowflakeStreamIngest.REL_SUCCESS, 1);
+        assertEquals(Collections.singletonMap("ID", 1), insertedRows.get(0));
+    }
+
+    @Test
+    public void testFieldsWithoutColumnRouteToFailure() {
+        respondWith(Collections.emptyList());
+        recordReader.addRecord(1, "first");
+        controller.setColumns(Collections.singleton("ID"));
+        testRunner.setProperty(SnowflakeDefaultProperties.SNOWFLAKE_UNKNOWN_COLUMN_HANDLING, SnowflakeDefaultProperties.UNKNOWN_COLUMNS_FAIL.getValue());
+
+        testRunner.enqueue("");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSnowflakeStreamIngest.REL_FAILURE, 1);
+        assertTrue(batchSizes.isEmpty());
+    }
+
+    @Test
+    public void testColumnsAreAddedForFieldsWithoutColumn() {
+        respondWith(Collections.emptyList());
+        recordReader.addRecord(1, "first");
+        controller.setColumns(Collections.singleton("ID"));
+        testRunner.setProperty(SnowflakeDefaultProperties.SNOWFLAKE_UNKNOWN_COLUMN_HANDLING, SnowflakeDefaultProperties.UNKNOWN_COLUMNS_ADD.getValue());
+
+        testRunner.enqueue("");
+        testRunner.run();
+
+        assertEquals(Collections.singletonMap("\"name\"", "VARCHAR"), controller.getAddedColumns());
+        testRunner.assertQueueNotEmpty();
+        assertTrue(batchSizes.isEmpty());
+
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSnowflakeStreamIngest.REL_SUCCESS, 1);
+        assertEquals("first", insertedRows.get(0).get("\"name\""));
+    }
+
+    @Test
+    public void testFlowFilesAreIngestedTogetherAndRoutedIndividually() {
+        respondWith(Collections.singletonList(4L));
+        addRecords(3);
+
+        testRunner.enqueue("");
+        testRunner.enqueue("");
+        testRunner.run();
+
+        assertEquals(Collections.singletonList(6), batchSizes);
+        testRunner.assertTransferCount(PutSnowflakeStreamIngest.REL_SUCCESS, 1);
+        testRunner.assertTransferCount(PutSnowflakeStreamIngest.REL_FAILURE, 1);
+    }
+
+    @Test
+    public void testMaxFlowFilesPerBatch() {
+        respondWith(Collections.emptyList());
+        addRecords(3);
+        testRunner.setProperty(SnowflakeDefaultProperties.SNOWFLAKE_MAX_FLOWFILES, "2");
+
+        for (int i = 0; i < 5; i++) {
+            testRunner.enqueue("");
+        }
+        testRunner.run(3);
+
+        testRunner.assertAllFlowFilesTransferred(PutSnowflakeStreamIngest.REL_SUCCESS, 5);
+        assertEquals(Arrays.asList(6, 6, 3), batchSizes);
+        // Every execution hands its channels back, so that the service may evict them
+        assertEquals(0, controller.getLeasedChannels());
+    }
+
+    @Test
+    public void testInsertThreadsUseChannelsOfTheirOwn() {
+        respondWith(Collections.emptyList());
+        addRecords(2500);
+        testRunner.setProperty(SnowflakeDefaultProperties.SNOWFLAKE_INSERT_THREADS, "2");
+
+        for (int i = 0; i < 3; i++) {
+            testRunner.enqueue("");
+        }
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSnowflakeStreamIngest.REL_SUCCESS, 3);
+        assertEquals(7500, insertedRows.size());
+        assertEquals(new LinkedHashSet<>(Arrays.asList("channel1", "channel1_1")), controller.getRequestedChannels());
+        assertEquals(0, controller.getLeasedChannels());
+    }
+
+    @Test
+    public void testInsertThreadsAreUsedAcrossExecutions() {
+        respondWith(Collections.emptyList());
+        addRecords(3);
+        testRunner.setProperty(SnowflakeDefaultProperties.SNOWFLAKE_INSERT_THREADS, "2");
+        testRunner.setProperty(SnowflakeDefaultProperties.SNOWFLAKE_MAX_FLOWFILES, "1");
 
+        testRunner.enqueue("");
+        testRunner.enqueue("");
+        testRunner.run(2);
+
+        testRunner.assertAllFlowFilesTransferred(PutSnowflakeStreamIngest.REL_SUCCESS, 2);
+        assertEquals(new LinkedHashSet<>(Arrays.asList("channel1", "channel1_1")), controller.getRequestedChannels());
+    }
+
+    @Test
+    public void testFlowFilesAreHeldUntilCommitted() {
+        respondWith(Collections.emptyList());
+        addRecords(3);
+        controller.setCommitted(false);
+        testRunner.setProperty(SnowflakeDefaultProperties.SNOWFLAKE_DELIVERY_GUARANTEE, SnowflakeDefaultProperties.DELIVERY_AT_LEAST_ONCE.getValue());
+
+        testRunner.enqueue("");
+        testRunner.run();
+
+        testRunner.assertTransferCount(PutSnowflakeStreamIngest.REL_SUCCESS, 0);
+        testRunner.assertQueueNotEmpty();
+
+        controller.setCommitted(true);
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSnowflakeStreamIngest.REL_SUCCESS, 1);
+        assertEquals(Arrays.asList(3, 3), batchSizes);
+    }
+
+    @Test
+    public void testCommittedRecordsAreSkippedWhenIngestedAgain() {
+        respondWith(Collections.emptyList());
+        addRecords(3);
+        controller.setCommitted(false);
+        testRunner.setProperty(SnowflakeDefaultProperties.SNOWFLAKE_DELIVERY_GUARANTEE, SnowflakeDefaultProperties.DELIVERY_AT_LEAST_ONCE.getValue());
+
+        testRunner.enqueue("");
+        testRunner.run();
+
+        assertEquals(1, controller.getProgress().size());
+        final String flowFileUuid = controller.getProgress().keySet().iterator().next();
+        assertEquals("-1|1:2", controller.getProgress().get(flowFileUuid));
+
+        // Snowflake committed the first two records before the FlowFile was returned to the queue
+        controller.getProgress().put(flowFileUuid, "1|");
+        controller.setCommitted(true);
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSnowflakeStreamIngest.REL_SUCCESS, 1);
+        assertEquals(Arrays.asList(3, 1), batchSizes);
+        assertEquals(2, insertedRows.get(3).get("ID"));
+        assertTrue(controller.getProgress().isEmpty());
+    }
+
+    @Test
+    public void testRowsInsertedBeforeAFailedExecutionAreNotInsertedAgain() {
+        respondWith(Collections.emptyList());
+        addRecords(3);
+        testRunner.setProperty(SnowflakeDefaultProperties.SNOWFLAKE_DELIVERY_GUARANTEE, SnowflakeDefaultProperties.DELIVERY_AT_LEAST_ONCE.getValue());
+        testRunner.setProperty(SnowflakeDefaultProperties.SNOWFLAKE_BATCH_SIZE, "1");
+        testRunner.setProperty(SnowflakeDefaultProperties.SNOWFLAKE_TABLE, "${table}");
+        controller.setUnavailableTable("SECOND");
+
+        testRunner.enqueue("", Collections.singletonMap("table", "FIRST"));
+        testRunner.enqueue("", Collections.singletonMap("table", "SECOND"));
+        assertThrows(AssertionError.class, () -> testRunner.run());
+
+        // The rows of the first FlowFile were inserted before the channel of the second one failed to open
+        testRunner.assertQueueNotEmpty();
+        assertEquals(3, insertedRows.size());
+
+        controller.setUnavailableTable(null);
+        testRunner.run(2);
+
+        testRunner.assertAllFlowFilesTransferred(PutSnowflakeStreamIngest.REL_SUCCESS, 2);
+        assertEquals(6, insertedRows.size());
+    }
+
+    @Test
+    public void testBestEffortRoutesBeforeCommit() {
+        respondWith(Collections.emptyList());
+        addRecords(3);
+        controller.setCommitted(false);
+        testRunner.setProperty(SnowflakeDefaultProperties.SNOWFLAKE_DELIVERY_GUARANTEE, SnowflakeDefaultProperties.DELIVERY_BEST_EFFORT.getValue());
+
+        testRunner.enqueue("");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSnowflakeStreamIngest.REL_SUCCESS, 1);
+    }
+
+    @Test
+    public void testYieldsAboveHighWaterMarkUntilBelowLowWaterMark() {
+        respondWith(Collections.emptyList());
+        addRecords(3);
+        testRunner.setProperty(SnowflakeDefaultProperties.SNOWFLAKE_UNCOMMITTED_ROWS_HIGH_WATER_MARK, "100");
+        testRunner.setProperty(SnowflakeDefaultProperties.SNOWFLAKE_UNCOMMITTED_ROWS_LOW_WATER_MARK, "10");
+        testRunner.enqueue("");
+
+        controller.setUncommittedRows(100);
+        testRunner.run(1, false);
+        testRunner.assertQueueNotEmpty();
+
+        controller.setUncommittedRows(50);
+        testRunner.run(1, false, false);
+        testRunner.assertQueueNotEmpty();
+
+        controller.setUncommittedRows(10);
+        testRunner.run(1, true, false);
+        testRunner.assertAllFlowFilesTransferred(PutSnowflakeStreamIngest.REL_SUCCESS, 1);
+    }
+
+    @Test
+    public void testLowWaterMarkAboveHighWaterMarkIsInvalid() {
+        testRunner.setProperty(SnowflakeDefaultProperties.SNOWFLAKE_UNCOMMITTED_ROWS_HIGH_WATER_MARK, "10");
+        testRunner.setProperty(SnowflakeDefaultProperties.SNOWFLAKE_UNCOMMITTED_ROWS_LOW_WATER_MARK, "100");
+        testRunner.assertNotValid();
+    }
+
+    @Test
+    public void testRecordReaderIsOnlyOptionalForAvroContent() {
+        testRunner.removeProperty(SnowflakeDefaultProperties.RECORD_READER);
+        testRunner.assertNotValid();
+
+        testRunner.setProperty(SnowflakeDefaultProperties.SNOWFLAKE_CONTENT_FORMAT, SnowflakeDefaultProperties.CONTENT_FORMAT_AVRO.getValue());
+        testRunner.assertValid();
     }
 
+    @Test
+    public void testFlowFilesAreGroupedByTargetTable() {
+        respondWith(Collections.emptyList());
+        addRecords(2);
+        testRunner.setProperty(SnowflakeDefaultProperties.SNOWFLAKE_TABLE, "${table}");
+
+        testRunner.enqueue("", Collections.singletonMap("table", "FIRST"));
+        testRunner.enqueue("", Collections.singletonMap("table", "SECOND"));
+        testRunner.enqueue("", Collections.singletonMap("table", "FIRST"));
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSnowflakeStreamIngest.REL_SUCCESS, 3);
+        assertEquals(Arrays.asList("FIRST", "SECOND"), controller.getRequestedTables());
+        assertEquals(Arrays.asList(4, 2), batchSizes);
+    }
+
+    @Test
+    public void testInvalidatedChannelReturnsFlowFilesToQueue() {
+        when(channel.insertRows(any(), any())).thenThrow(new SFException(ErrorCode.INTERNAL_ERROR, "invalidated"));
+        when(channel.isValid()).thenReturn(false);
+        addRecords(3);
+
+        testRunner.enqueue("");
+        assertThrows(AssertionError.class, () -> testRunner.run());
+
+        testRunner.assertTransferCount(PutSnowflakeStreamIngest.REL_SUCCESS, 0);
+        testRunner.assertTransferCount(PutSnowflakeStreamIngest.REL_FAILURE, 0);
+        testRunner.assertQueueNotEmpty();
+    }
+
+    @Test
+    public void testRowsUseQuotedColumnsAndTimestampOverridesField() {
+        respondWith(Collections.emptyList());
+        recordReader.addSchemaField("INGESTED_AT", RecordFieldType.STRING);
+        recordReader.addRecord(1, "first", "overridden");
+        recordReader.addRecord(2, "second", "overridden");
+        testRunner.setProperty(SnowflakeDefaultProperties.SNOWFLAKE_ADD_INGESTION_TIMESTAMP, "true");
+        testRunner.setProperty(SnowflakeDefaultProperties.SNOWFLAKE_BATCH_SIZE, "1");
+
+        testRunner.enqueue("");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSnowflakeStreamIngest.REL_SUCCESS, 1);
+        assertEquals(2, insertedRows.size());
+        final Map<String, Object> row = insertedRows.get(1);
+        assertEquals(3, row.size());
+        assertEquals(2, row.get("ID"));
+        assertEquals("second", row.get("\"name\""));
+        assertTrue(row.get("INGESTED_AT") instanceof LocalDateTime);
+    }
+
+    @Test
+    public void testTimestampPerFlowFileIsSharedByItsRows() {
+        respondWith(Collections.emptyList());
+        addRecords(3);
+        testRunner.setProperty(SnowflakeDefaultProperties.SNOWFLAKE_ADD_INGESTION_TIMESTAMP, "true");
+        testRunner.setProperty(SnowflakeDefaultProperties.SNOWFLAKE_INGESTION_TIMESTAMP_GRANULARITY, SnowflakeDefaultProperties.TIMESTAMP_PER_FLOWFILE.getValue());
+        testRunner.setProperty(SnowflakeDefaultProperties.SNOWFLAKE_INGESTION_TIMESTAMP_TYPE, SnowflakeDefaultProperties.TIMESTAMP_LTZ.getValue());
+        testRunner.setProperty(SnowflakeDefaultProperties.SNOWFLAKE_BATCH_SIZE, "1");
+
+        testRunner.enqueue("");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSnowflakeStreamIngest.REL_SUCCESS, 1);
+        assertEquals(3, insertedRows.size());
+        assertTrue(insertedRows.get(0).get("INGESTED_AT") instanceof OffsetDateTime);
+        assertSame(insertedRows.get(0).get("INGESTED_AT"), insertedRows.get(2).get("INGESTED_AT"));
+    }
+
+    @Test
+    public void testServerDefaultTimestampLeavesColumnOut() {
+        respondWith(Collections.emptyList());
+        recordReader.addSchemaField("INGESTED_AT", RecordFieldType.STRING);
+        recordReader.addRecord(1, "first", "overridden");
+        testRunner.setProperty(SnowflakeDefaultProperties.SNOWFLAKE_ADD_INGESTION_TIMESTAMP, "true");
+        testRunner.setProperty(SnowflakeDefaultProperties.SNOWFLAKE_INGESTION_TIMESTAMP_GRANULARITY, SnowflakeDefaultProperties.TIMESTAMP_SERVER_DEFAULT.getValue());
+
+        testRunner.enqueue("");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSnowflakeStreamIngest.REL_SUCCESS, 1);
+        assertEquals(1, insertedRows.size());
+        assertEquals(2, insertedRows.get(0).size());
+        assertFalse(insertedRows.get(0).containsKey("INGESTED_AT"));
+    }
+
+    @Test
+    public void testValuesAreConvertedPerColumnType() {
+        respondWith(Collections.emptyList());
+        final SimpleRecordSchema nestedSchema = new SimpleRecordSchema(
+                Collections.singletonList(new RecordField("D", RecordFieldType.DATE.getDataType())));
+        recordReader.addSchemaField("TS", RecordFieldType.TIMESTAMP);
+        recordReader.addSchemaField("BIG", RecordFieldType.BIGINT);
+        recordReader.addSchemaField("U", RecordFieldType.UUID);
+        recordReader.addSchemaField(new RecordField("TAGS", RecordFieldType.ARRAY.getArrayDataType(RecordFieldType.STRING.getDataType())));
+        recordReader.addSchemaField(new RecordField("RAW", RecordFieldType.ARRAY.getArrayDataType(RecordFieldType.BYTE.getDataType())));
+        recordReader.addSchemaField(new RecordField("NESTED", RecordFieldType.RECORD.getRecordDataType(nestedSchema)));
+        final UUID uuid = UUID.randomUUID();
+        recordReader.addRecord(1, "first", new Timestamp(0), BigInteger.TEN, uuid, new Object[]{"a", "b"}, new Object[]{(byte) 1, (byte) 2},
+                new MapRecord(nestedSchema, Collections.singletonMap("D", Date.valueOf("2020-01-02"))));
+
+        testRunner.enqueue("");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSnowflakeStreamIngest.REL_SUCCESS, 1);
+        final Map<String, Object> row = insertedRows.get(0);
+        assertEquals(new Timestamp(0).toLocalDateTime(), row.get("TS"));
+        assertEquals(BigDecimal.TEN, row.get("BIG"));
+        assertEquals(uuid.toString(), row.get("U"));
+        assertEquals(Arrays.asList("a", "b"), row.get("TAGS"));
+        assertArrayEquals(new byte[]{1, 2}, (byte[]) row.get("RAW"));
+        assertEquals(Collections.singletonMap("D", "2020-01-02"), row.get("NESTED"));
+    }
+
+    @Test
+    public void testAvroContentIsDecodedWithoutRecordReader() throws IOException {
+        respondWith(Collections.emptyList());
+        final Schema schema = new Schema.Parser().parse("{\"type\": \"record\", \"name\": \"row\", \"fields\": ["
+                + "{\"name\": \"ID\", \"type\": \"int\"}, "
+                + "{\"name\": \"name\", \"type\": [\"null\", \"string\"]}, "
+                + "{\"name\": \"D\", \"type\": {\"type\": \"int\", \"logicalType\": \"date\"}}]}");
+        final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        try (DataFileWriter<GenericRecord> writer = new DataFileWriter<>(new GenericDatumWriter<GenericRecord>(schema))) {
+            writer.create(schema, content);
+            for (int i = 0; i < 3; i++) {
+                final GenericRecord record = new GenericData.Record(schema);
+                record.put("ID", i);
+                record.put("name", "name" + i);
+                record.put("D", 18000 + i);
+                writer.append(record);
+            }
+        }
+        testRunner.setProperty(SnowflakeDefaultProperties.SNOWFLAKE_CONTENT_FORMAT, SnowflakeDefaultProperties.CONTENT_FORMAT_AVRO.getValue());
+
+        testRunner.enqueue(content.toByteArray());
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(PutSnowflakeStreamIngest.REL_SUCCESS, 1);
+        assertEquals(3, insertedRows.size());
+        final Map<String, Object> row = insertedRows.get(2);
+        assertEquals(2, row.get("ID"));
+        assertEquals("name2", row.get("\"name\""));
+        assertEquals(LocalDate.ofEpochDay(18002), row.get("D"));
+    }
+
+    private void addRecords(int count) {
+        for (int i = 0; i < count; i++) {
+            recordReader.addRecord(i, "name" + i);
+        }
+    }
+
+    /**
+     * Records the size and offset token of every insertRows call and rejects the given row indices of each batch.
+     */
+    private void respondWith(List<Long> rejectedRowIndices) {
+        final List<InsertValidationResponse.InsertError> errors = new ArrayList<>();
+        for (Long rowIndex : rejectedRowIndices) {
+            final InsertValidationResponse.InsertError error = mock(InsertValidationResponse.InsertError.class);
+            when(error.getRowIndex()).thenReturn(rowIndex);
+            when(error.getException()).thenReturn(new SFException(ErrorCode.INTERNAL_ERROR, "rejected"));
+            errors.add(error);
+        }
+        final InsertValidationResponse response = mock(InsertValidationResponse.class);
+        when(response.hasErrors()).thenReturn(!errors.isEmpty());
+        when(response.getInsertErrors()).thenReturn(errors);
+
+        when(channel.insertRows(any(), any())).thenAnswer(invocation -> {
+            final Iterable<Map<String, Object>> rows = invocation.getArgument(0);
+            int count = 0;
+            for (Map<String, Object> row : rows) {
+                insertedRows.add(new HashMap<>(row));
+                count++;
+            }
+            batchSizes.add(count);
+            offsetTokens.add(invocation.getArgument(1));
+            return response;
+        });
+    }
 }